@@ -0,0 +1,209 @@
+package paxos;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The process-wide event log shared by every node in the JVM.
+ *
+ * Logging a structured event copies its int arguments into a preallocated slot of a ring
+ * buffer; producers claim slots with one atomic increment and never take a lock, allocate or
+ * format. A single background thread formats published events in sequence order and writes them
+ * to the output (stdout by default, or the file named by the system property "paxos.log.file").
+ * If producers get a whole ring ahead of the writer they wait for it, so no event is dropped.
+ *
+ * Callers check the level first with `isEnabled`, or use `log`, which checks it: an event below
+ * the configured `LogLevel` costs one volatile read.
+ */
+public final class AsyncLogger {
+    private static final int CAPACITY = 1 << 14;
+    private static final int MASK = CAPACITY - 1;
+    private static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final Slot[] RING = new Slot[CAPACITY];
+    private static final AtomicLong claimed = new AtomicLong();
+    private static final AtomicLong consumed = new AtomicLong();
+    private static volatile long written = 0; // events formatted and flushed to the output
+    private static final AtomicLong flushTarget = new AtomicLong(); // the latest event a flush() waits for
+    private static volatile int threshold = LogLevel.fromSystemProperty().ordinal();
+    private static volatile PrintStream output = defaultOutput();
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            RING[i] = new Slot();
+        }
+        Thread writer = new Thread(AsyncLogger::runWriter, "async-logger");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(TimeUnit.SECONDS.toNanos(1))));
+    }
+
+    private AsyncLogger() {
+    }
+
+    /**
+     * Returns whether events of the given level are currently recorded.
+     */
+    public static boolean isEnabled(LogLevel level) {
+        return level.ordinal() >= threshold;
+    }
+
+    /**
+     * Changes the minimum level of recorded events.
+     *
+     * @param level The new level; OFF disables logging.
+     */
+    public static void setLevel(LogLevel level) {
+        threshold = level.ordinal();
+    }
+
+    /**
+     * Redirects the log. Events already recorded are written to the previous output first.
+     *
+     * @param stream The new output.
+     */
+    public static void setOutput(PrintStream stream) {
+        flush();
+        output = stream;
+    }
+
+    public static void log(LogEvent event, int first) {
+        if (isEnabled(event.level())) {
+            publish(event, 1, first, 0, 0, null);
+        }
+    }
+
+    public static void log(LogEvent event, int first, int second) {
+        if (isEnabled(event.level())) {
+            publish(event, 2, first, second, 0, null);
+        }
+    }
+
+    public static void log(LogEvent event, int first, int second, int third) {
+        if (isEnabled(event.level())) {
+            publish(event, 3, first, second, third, null);
+        }
+    }
+
+    /**
+     * Logs a preformatted message at INFO level. Meant for rare events such as startup, since
+     * building the message allocates on the caller's thread.
+     *
+     * @param message The complete message.
+     */
+    public static void info(String message) {
+        if (isEnabled(LogLevel.INFO)) {
+            publish(LogEvent.MESSAGE, 0, 0, 0, 0, message);
+        }
+    }
+
+    /**
+     * Waits until every event recorded so far has been written to the output.
+     */
+    public static void flush() {
+        flush(Long.MAX_VALUE);
+    }
+
+    private static void flush(long timeoutNanos) {
+        long target = claimed.get();
+        flushTarget.accumulateAndGet(target, Math::max);
+        long deadline = System.nanoTime() + Math.min(timeoutNanos, Long.MAX_VALUE / 2);
+        while (written < target && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(50_000);
+        }
+    }
+
+    private static void publish(LogEvent event, int argumentCount, int first, int second, int third, String text) {
+        long sequence = claimed.getAndIncrement();
+        // Wait for the writer if this slot still holds an event it has not formatted yet
+        while (sequence - consumed.get() >= CAPACITY) {
+            Thread.yield();
+        }
+        Slot slot = RING[(int) sequence & MASK];
+        slot.event = event;
+        slot.argumentCount = argumentCount;
+        slot.first = first;
+        slot.second = second;
+        slot.third = third;
+        slot.text = text;
+        slot.published = sequence; // volatile write: makes the fields above visible to the writer
+    }
+
+    private static void runWriter() {
+        StringBuilder line = new StringBuilder(128);
+        long next = 0;
+        long idleNanos = 0;
+        while (true) {
+            Slot slot = RING[(int) next & MASK];
+            if (slot.published != next) {
+                if (written < next) {
+                    output.flush();
+                    written = next;
+                }
+                // Back off gradually while the ring stays empty
+                idleNanos = Math.min(MAX_IDLE_NANOS, Math.max(10_000, idleNanos * 2));
+                LockSupport.parkNanos(idleNanos);
+                continue;
+            }
+            idleNanos = 0;
+
+            line.setLength(0);
+            format(slot, line);
+            slot.text = null;
+            consumed.lazySet(++next);
+            output.println(line);
+            // A waiting flush() is released as soon as its events are out, even if others keep logging
+            long waitedFor = flushTarget.get();
+            if (written < waitedFor && waitedFor <= next) {
+                output.flush();
+                written = next;
+            }
+        }
+    }
+
+    private static void format(Slot slot, StringBuilder line) {
+        if (slot.text != null) {
+            line.append(slot.text);
+            return;
+        }
+        String template = slot.event.template();
+        int argument = 0;
+        for (int i = 0; i < template.length(); i++) {
+            char c = template.charAt(i);
+            if (c == '{' && i + 1 < template.length() && template.charAt(i + 1) == '}' && argument < slot.argumentCount) {
+                line.append(argument == 0 ? slot.first : argument == 1 ? slot.second : slot.third);
+                argument++;
+                i++;
+            } else {
+                line.append(c);
+            }
+        }
+    }
+
+    private static PrintStream defaultOutput() {
+        String file = System.getProperty("paxos.log.file");
+        try {
+            OutputStream target = file == null || file.isEmpty()
+                    ? new FileOutputStream(FileDescriptor.out)
+                    : new FileOutputStream(file, true);
+            return new PrintStream(new BufferedOutputStream(target, 1 << 16), false);
+        } catch (FileNotFoundException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * One preallocated event record; `published` holds the sequence of the event it carries.
+     */
+    private static final class Slot {
+        volatile long published = -1;
+        LogEvent event;
+        int argumentCount;
+        int first;
+        int second;
+        int third;
+        String text;
+    }
+}
@@ -0,0 +1,61 @@
+package paxos;
+
+import java.util.concurrent.*;
+
+/**
+ * The time, timers and randomness that a PaxosNode's protocol decisions depend on.
+ *
+ * Nodes normally run on the system clock, whose timers fire on the timer thread of the component
+ * that schedules them. A Simulation substitutes a virtual clock that only advances when its
+ * next event runs, so the same protocol code runs deterministically on one thread and a run is
+ * fully determined by its seed. Time that is only measured for metrics may still be read from
+ * the system clock.
+ */
+public interface Clock {
+    /**
+     * Returns the current time in nanoseconds, for measuring elapsed time only.
+     */
+    long nanoTime();
+
+    /**
+     * Runs a task once after a delay.
+     */
+    ScheduledFuture<?> schedule(Runnable task, long delayNanos);
+
+    /**
+     * Runs a task every `periodNanos`, starting one period from now, until it is cancelled.
+     */
+    ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long periodNanos);
+
+    /**
+     * Returns a uniformly distributed random number between 0 (inclusive) and `bound` (exclusive).
+     */
+    long randomLong(long bound);
+
+    /**
+     * Returns the system clock, with timers on the given timer executor.
+     */
+    static Clock system(ScheduledExecutorService timer) {
+        return new Clock() {
+            @Override
+            public long nanoTime() {
+                return System.nanoTime();
+            }
+
+            @Override
+            public ScheduledFuture<?> schedule(Runnable task, long delayNanos) {
+                return timer.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+            }
+
+            @Override
+            public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long periodNanos) {
+                return timer.scheduleAtFixedRate(task, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+            }
+
+            @Override
+            public long randomLong(long bound) {
+                return ThreadLocalRandom.current().nextLong(bound);
+            }
+        };
+    }
+}
@@ -0,0 +1,230 @@
+package paxos;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * The size, roles, addresses and simulated network of a cluster, read from a properties file.
+ *
+ *     nodes=25                   number of nodes, with IDs 1 to nodes
+ *     proposers=1,2              IDs of the proposer nodes (default 1)
+ *     host=localhost             host of every node without its own address
+ *     basePort=8001              node i listens on basePort + i - 1
+ *     node.7=10.0.0.7:8001       explicit address of one node, overriding host and basePort
+ *     transport=memory           tcp or memory (default: the "paxos.transport" system property)
+ *     quorum=flexible:3          quorum system, see QuorumSystem (default: the "paxos.quorum" system property)
+ *     groups=4                   number of Paxos groups keys are partitioned over (default: the
+ *                                "paxos.groups" system property, or 1)
+ *     latency.node.3=500         simulated latency in ms of every message to node 3
+ *     latency.link.1.9=1200      simulated latency in ms of messages from node 1 to node 9
+ *     latency.jitter=20          maximum random extra latency in ms per message
+ *     offline=4,5                nodes that never receive messages
+ *
+ * Every node is addressed through the resulting ID-to-address map; nothing derives a node ID
+ * from a port number.
+ */
+public final class ClusterConfig {
+    private final List<Integer> nodeIds;
+    private final Set<Integer> proposerIds;
+    private final Map<Integer, InetSocketAddress> addresses;
+    private final String transport;
+    private final String quorum;
+    private final int groups;
+    private final Properties latencyProfile;
+
+    private ClusterConfig(List<Integer> nodeIds, Set<Integer> proposerIds, Map<Integer, InetSocketAddress> addresses,
+                          String transport, String quorum, int groups, Properties latencyProfile) {
+        this.nodeIds = Collections.unmodifiableList(nodeIds);
+        this.proposerIds = Collections.unmodifiableSet(proposerIds);
+        this.addresses = Collections.unmodifiableMap(addresses);
+        this.transport = transport;
+        this.quorum = quorum;
+        this.groups = groups;
+        this.latencyProfile = latencyProfile;
+    }
+
+    /**
+     * Reads a cluster configuration file.
+     *
+     * @param file The properties file to read.
+     * @return     The configuration it describes.
+     * @throws IOException If the file cannot be read.
+     * @throws IllegalArgumentException If a value is malformed or refers to a node outside the cluster.
+     */
+    public static ClusterConfig load(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file)) {
+            properties.load(reader);
+        }
+        return fromProperties(properties);
+    }
+
+    /**
+     * Returns the configuration of `nodes` nodes on consecutive localhost ports starting at
+     * 8001, with node 1 as the only proposer and no simulated latency.
+     */
+    public static ClusterConfig ofSize(int nodes) {
+        Properties properties = new Properties();
+        properties.setProperty("nodes", Integer.toString(nodes));
+        return fromProperties(properties);
+    }
+
+    /**
+     * Builds a configuration from properties using the keys described on this class.
+     */
+    public static ClusterConfig fromProperties(Properties properties) {
+        int nodes = Integer.parseInt(properties.getProperty("nodes", "9").trim());
+        if (nodes < 1) {
+            throw new IllegalArgumentException("A cluster needs at least one node, not " + nodes);
+        }
+        List<Integer> nodeIds = new ArrayList<>();
+        for (int id = 1; id <= nodes; id++) {
+            nodeIds.add(id);
+        }
+
+        Set<Integer> proposerIds = new TreeSet<>(parseIds(properties.getProperty("proposers", "1"), nodes));
+
+        String host = properties.getProperty("host", "localhost").trim();
+        int basePort = Integer.parseInt(properties.getProperty("basePort", "8001").trim());
+        Map<Integer, InetSocketAddress> addresses = new LinkedHashMap<>();
+        for (int id : nodeIds) {
+            String explicit = properties.getProperty("node." + id);
+            addresses.put(id, explicit != null ? parseAddress(explicit) : new InetSocketAddress(host, basePort + id - 1));
+        }
+
+        String transport = properties.getProperty("transport", System.getProperty("paxos.transport", "tcp")).trim();
+        if (!transport.equalsIgnoreCase("tcp") && !transport.equalsIgnoreCase("memory")) {
+            throw new IllegalArgumentException("Unknown transport " + transport);
+        }
+
+        String quorum = properties.getProperty("quorum", System.getProperty("paxos.quorum", "majority")).trim();
+
+        int groups = Integer.parseInt(properties.getProperty("groups", System.getProperty("paxos.groups", "1")).trim());
+        if (groups < 1) {
+            throw new IllegalArgumentException("A cluster needs at least one Paxos group, not " + groups);
+        }
+
+        Properties latencyProfile = new Properties();
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith("latency.") || key.equals("offline")) {
+                latencyProfile.setProperty(key, properties.getProperty(key).trim());
+            }
+        }
+        ClusterConfig config = new ClusterConfig(nodeIds, proposerIds, addresses, transport, quorum, groups, latencyProfile);
+        config.quorumSystem(); // rejects quorum systems that do not fit the cluster
+        return config;
+    }
+
+    /**
+     * Returns a copy of this configuration with a different set of proposers.
+     */
+    public ClusterConfig withProposers(Set<Integer> proposerIds) {
+        return new ClusterConfig(nodeIds, new TreeSet<>(proposerIds), addresses, transport, quorum, groups, latencyProfile);
+    }
+
+    public List<Integer> nodeIds() {
+        return nodeIds;
+    }
+
+    public Set<Integer> proposerIds() {
+        return proposerIds;
+    }
+
+    /**
+     * Returns the number of Paxos groups every node hosts.
+     */
+    public int groupCount() {
+        return groups;
+    }
+
+    /**
+     * Returns the address of every node, keyed by node ID.
+     */
+    public Map<Integer, InetSocketAddress> addresses() {
+        return addresses;
+    }
+
+    /**
+     * Returns the IDs of the acceptors, i.e. every node that is not a proposer.
+     */
+    public List<Integer> acceptorIds() {
+        List<Integer> acceptors = new ArrayList<>(nodeIds);
+        acceptors.removeAll(proposerIds);
+        return acceptors;
+    }
+
+    /**
+     * Builds the configured quorum system over this cluster's acceptors.
+     */
+    public QuorumSystem quorumSystem() {
+        return QuorumSystem.parse(quorum, acceptorIds());
+    }
+
+    /**
+     * Creates the transport of one node: a TcpTransport on the configured addresses, or a
+     * transport on the shared in-memory network.
+     */
+    public Transport newTransport() {
+        if (transport.equalsIgnoreCase("memory")) {
+            return InMemoryNetwork.shared().newTransport();
+        }
+        return new TcpTransport(addresses);
+    }
+
+    /**
+     * Configures NetworkSimulator with the latencies, jitter and offline nodes of this cluster.
+     */
+    public void applyLatencyProfile() {
+        for (String key : latencyProfile.stringPropertyNames()) {
+            String value = latencyProfile.getProperty(key);
+            String[] parts = key.split("\\.");
+            if (key.equals("offline")) {
+                for (int id : parseIds(value, nodeIds.size())) {
+                    NetworkSimulator.setNodeOffline(id);
+                }
+            } else if (key.equals("latency.jitter")) {
+                NetworkSimulator.setJitter(Integer.parseInt(value));
+            } else if (parts.length == 3 && parts[1].equals("node")) {
+                NetworkSimulator.setNodeLatency(checkId(Integer.parseInt(parts[2]), nodeIds.size()), Integer.parseInt(value));
+            } else if (parts.length == 4 && parts[1].equals("link")) {
+                NetworkSimulator.setLinkLatency(checkId(Integer.parseInt(parts[2]), nodeIds.size()),
+                        checkId(Integer.parseInt(parts[3]), nodeIds.size()), Integer.parseInt(value));
+            } else {
+                throw new IllegalArgumentException("Unknown latency setting " + key);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return nodeIds.size() + " nodes, proposers " + proposerIds + ", " + quorumSystem().describe() + " quorums, "
+                + (groups > 1 ? groups + " groups, " : "") + transport + " transport";
+    }
+
+    private static List<Integer> parseIds(String list, int nodes) {
+        List<Integer> ids = new ArrayList<>();
+        for (String id : list.split(",")) {
+            if (!id.trim().isEmpty()) {
+                ids.add(checkId(Integer.parseInt(id.trim()), nodes));
+            }
+        }
+        return ids;
+    }
+
+    private static int checkId(int id, int nodes) {
+        if (id < 1 || id > nodes) {
+            throw new IllegalArgumentException("Node " + id + " is not in a cluster of " + nodes + " nodes");
+        }
+        return id;
+    }
+
+    private static InetSocketAddress parseAddress(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Address " + address + " is not host:port");
+        }
+        return new InetSocketAddress(address.substring(0, colon).trim(), Integer.parseInt(address.substring(colon + 1).trim()));
+    }
+}
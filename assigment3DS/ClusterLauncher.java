@@ -0,0 +1,130 @@
+package paxos;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Starts every node of a configured cluster, in parallel so that large clusters boot quickly.
+ *
+ * Run with: java paxos.ClusterLauncher <cluster.properties> [elections]
+ *
+ * Boots the cluster described by the file (see `ClusterConfig`), lets the first proposer run
+ * the given number of elections (default 20) one after another, and reports the election
+ * latency and the number of messages the cluster exchanged per election, which shows how both
+ * scale with the cluster size.
+ */
+public final class ClusterLauncher {
+    private ClusterLauncher() {
+    }
+
+    /**
+     * Creates and starts one node per configured ID and applies the cluster's latency profile.
+     *
+     * @param config    The cluster to start.
+     * @param configure Called for every node before it starts, e.g. to set its durability or
+     *                  the applier of its replicated log.
+     * @return          The started nodes, ordered by node ID (node i is at index i - 1).
+     * @throws IOException If any node fails to start; the nodes that did start are stopped again.
+     */
+    public static List<PaxosNode> launch(ClusterConfig config, Consumer<PaxosNode> configure) throws IOException {
+        config.applyLatencyProfile();
+
+        QuorumSystem quorums = config.quorumSystem();
+        List<PaxosNode> nodes = new ArrayList<>();
+        for (int nodeId : config.nodeIds()) {
+            PaxosNode node = new PaxosNode(nodeId, config.nodeIds(), config.proposerIds(), config.newTransport());
+            node.setQuorumSystem(quorums);
+            node.setGroupCount(config.groupCount());
+            configure.accept(node);
+            nodes.add(node);
+        }
+
+        int threads = Math.min(nodes.size(), 2 * Runtime.getRuntime().availableProcessors());
+        ExecutorService starters = Executors.newFixedThreadPool(threads);
+        List<Future<?>> started = new ArrayList<>();
+        try {
+            for (PaxosNode node : nodes) {
+                started.add(starters.submit(() -> {
+                    node.start();
+                    return null;
+                }));
+            }
+            IOException failure = null;
+            for (Future<?> start : started) {
+                try {
+                    start.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof IOException
+                                ? (IOException) e.getCause() : new IOException(e.getCause());
+                    }
+                }
+            }
+            if (failure != null) {
+                for (PaxosNode node : nodes) {
+                    node.stop();
+                }
+                throw failure;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while starting the cluster", e);
+        } finally {
+            starters.shutdown();
+        }
+        return nodes;
+    }
+
+    /**
+     * Starts a cluster without any per-node configuration.
+     */
+    public static List<PaxosNode> launch(ClusterConfig config) throws IOException {
+        return launch(config, node -> { });
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: java paxos.ClusterLauncher <cluster.properties> [elections]");
+            return;
+        }
+        ClusterConfig config = ClusterConfig.load(Paths.get(args[0]));
+        int elections = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        long bootStart = System.nanoTime();
+        List<PaxosNode> nodes = launch(config);
+        AsyncLogger.info("Started " + config + " in " + (System.nanoTime() - bootStart) / 1_000_000 + " ms");
+
+        PaxosNode proposer = nodes.get(config.proposerIds().iterator().next() - 1);
+        proposer.proposeLeadership(1).get(60, TimeUnit.SECONDS); // opens every connection before measuring
+
+        LatencyHistogram latency = new LatencyHistogram();
+        long messagesBefore = messagesSent(nodes);
+        for (int value = 2; value < elections + 2; value++) {
+            long start = System.nanoTime();
+            proposer.proposeLeadership(value).get(60, TimeUnit.SECONDS);
+            latency.recordSince(start);
+        }
+        // Declarations and agreements are still travelling when the last quorum completes
+        Thread.sleep(500);
+        long messages = messagesSent(nodes) - messagesBefore;
+
+        AsyncLogger.info("Election latency over " + elections + " elections: " + latency.summary());
+        AsyncLogger.info("Messages per election: " + messages / elections);
+        AsyncLogger.flush();
+        for (PaxosNode node : nodes) {
+            node.stop();
+        }
+        System.exit(0);
+    }
+
+    private static long messagesSent(List<PaxosNode> nodes) {
+        long sent = 0;
+        for (PaxosNode node : nodes) {
+            sent += node.metrics().getMessagesSent();
+        }
+        return sent;
+    }
+}
@@ -0,0 +1,27 @@
+package paxos;
+
+/**
+ * Selects how an acceptor's promises and accepts survive a restart.
+ *
+ * NONE keeps acceptor state in memory only, as before. MAPPED appends every state change to a
+ * memory-mapped write-ahead log before the reply is sent, which survives a crash of the process
+ * but not of the machine. FSYNC additionally forces each record to disk before the reply is
+ * sent; records appended while a force is running are forced together by the next one. The
+ * default can be chosen with the system property "paxos.durability"
+ * (e.g. -Dpaxos.durability=fsync), and the log directory with "paxos.wal.dir".
+ */
+public enum DurabilityMode {
+    NONE,
+    MAPPED,
+    FSYNC;
+
+    /**
+     * Resolves the durability mode configured through the "paxos.durability" system property.
+     *
+     * @return The configured mode, or NONE if the property is not set.
+     * @throws IllegalArgumentException If the property names no mode.
+     */
+    public static DurabilityMode fromSystemProperty() {
+        return SystemProperties.fromProperty("paxos.durability", DurabilityMode.class, NONE);
+    }
+}
@@ -0,0 +1,53 @@
+package paxos;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+
+/**
+ * Selects which threads run a PaxosNode's message handlers and blocking sends.
+ *
+ * FIXED_POOL is the original three-thread pool. VIRTUAL_THREADS starts one virtual thread per
+ * task, so a send parked on a slow peer costs almost nothing and cannot starve other handlers.
+ * Virtual threads need Java 21; on older runtimes VIRTUAL_THREADS falls back to an unbounded
+ * pool of daemon platform threads, which keeps the no-starvation property at a higher cost per
+ * blocked task. The default can be chosen with the system property "paxos.execution"
+ * (e.g. -Dpaxos.execution=virtual_threads).
+ */
+public enum ExecutionMode {
+    FIXED_POOL,
+    VIRTUAL_THREADS;
+
+    private static final int FIXED_POOL_SIZE = 3;
+
+    /**
+     * Creates the executor for this mode.
+     *
+     * @return A new executor owned by the caller.
+     */
+    public ExecutorService newExecutor() {
+        if (this == FIXED_POOL) {
+            return Executors.newFixedThreadPool(FIXED_POOL_SIZE);
+        }
+
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException unsupported) {
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Resolves the execution mode configured through the "paxos.execution" system property.
+     *
+     * @return The configured mode, or FIXED_POOL if the property is not set.
+     * @throws IllegalArgumentException If the property names no mode.
+     */
+    public static ExecutionMode fromSystemProperty() {
+        return SystemProperties.fromProperty("paxos.execution", ExecutionMode.class, FIXED_POOL);
+    }
+}
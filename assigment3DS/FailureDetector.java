@@ -0,0 +1,188 @@
+package paxos;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A phi-accrual failure detector over the heartbeats a node receives from its peers.
+ *
+ * Instead of declaring a peer dead after a fixed timeout, the detector keeps the last
+ * `WINDOW` intervals between heartbeats of every peer and estimates how unlikely the current
+ * silence is under a normal distribution of those intervals. The suspicion level phi is
+ * -log10 of the probability that a heartbeat would still arrive this late: phi = 1 means a 10%
+ * chance of being wrong when suspecting the peer, phi = 8 a one-in-10^8 chance. A peer is
+ * suspected once its phi reaches the threshold, so the time to detect a failure follows the
+ * jitter actually observed on each link rather than a constant.
+ *
+ * Every peer starts with one expected heartbeat interval of history. Peers get `STARTUP_GRACE`
+ * intervals after `start` to answer their first heartbeat, since the nodes of a cluster do not
+ * all start at once; a peer that never answers is suspected after that. A suspected peer is
+ * trusted again on its next heartbeat.
+ */
+public class FailureDetector {
+    private static final int WINDOW = 100;
+    private static final int STARTUP_GRACE = 10;
+
+    /**
+     * Notified when a peer becomes suspected or is trusted again.
+     */
+    public interface Listener {
+        void suspicionChanged(int peerId, boolean suspected);
+    }
+
+    private final long expectedIntervalNanos;
+    private final double threshold;
+    private final long minStdDevNanos;
+    private final Map<Integer, History> histories = new ConcurrentHashMap<>();
+    private final Set<Integer> suspected = ConcurrentHashMap.newKeySet();
+    private volatile Listener listener = (peerId, isSuspected) -> { };
+
+    /**
+     * Constructor for the FailureDetector class.
+     *
+     * @param peerIds               The peers to monitor.
+     * @param expectedIntervalNanos The interval at which peers are expected to answer heartbeats.
+     * @param threshold             The phi at which a peer is suspected, e.g. 8.
+     */
+    public FailureDetector(Collection<Integer> peerIds, long expectedIntervalNanos, double threshold) {
+        this.expectedIntervalNanos = expectedIntervalNanos;
+        this.threshold = threshold;
+        // Perfectly regular heartbeats would otherwise make the slightest delay look like a failure
+        this.minStdDevNanos = Math.max(1, expectedIntervalNanos / 4);
+        for (int peerId : peerIds) {
+            histories.put(peerId, new History());
+        }
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts the clock of every peer, as if each would send its first heartbeat within the
+     * startup grace period.
+     */
+    public void start(long nowNanos) {
+        for (History history : histories.values()) {
+            history.start(nowNanos);
+        }
+    }
+
+    /**
+     * Records a heartbeat received from a peer.
+     */
+    public void heartbeat(int peerId, long nowNanos) {
+        History history = histories.get(peerId);
+        if (history == null) {
+            return;
+        }
+        history.arrived(nowNanos);
+        if (suspected.remove(peerId)) {
+            listener.suspicionChanged(peerId, false);
+        }
+    }
+
+    /**
+     * Returns the current suspicion level of a peer, or 0 for a peer that is not monitored.
+     */
+    public double phi(int peerId, long nowNanos) {
+        History history = histories.get(peerId);
+        return history == null ? 0 : history.phi(nowNanos);
+    }
+
+    /**
+     * Re-evaluates every peer and notifies the listener of peers that became suspected.
+     */
+    public void evaluate(long nowNanos) {
+        for (Map.Entry<Integer, History> entry : histories.entrySet()) {
+            int peerId = entry.getKey();
+            if (entry.getValue().phi(nowNanos) >= threshold && suspected.add(peerId)) {
+                listener.suspicionChanged(peerId, true);
+            }
+        }
+    }
+
+    /**
+     * Returns whether a peer was suspected at the last evaluation and has not answered since.
+     */
+    public boolean isSuspected(int peerId) {
+        return suspected.contains(peerId);
+    }
+
+    /**
+     * Returns the peers currently suspected.
+     */
+    public Set<Integer> suspected() {
+        return Collections.unmodifiableSet(suspected);
+    }
+
+    /**
+     * Returns the suspicion level of every monitored peer.
+     */
+    public Map<Integer, Double> suspicion(long nowNanos) {
+        Map<Integer, Double> levels = new TreeMap<>();
+        for (Map.Entry<Integer, History> entry : histories.entrySet()) {
+            levels.put(entry.getKey(), entry.getValue().phi(nowNanos));
+        }
+        return levels;
+    }
+
+    /**
+     * The recent heartbeat intervals of one peer, with their running sum and sum of squares.
+     */
+    private final class History {
+        private final long[] intervals = new long[WINDOW];
+        private int count;
+        private int next;
+        private double sum;
+        private double sumOfSquares;
+        private boolean started;
+        private boolean heard;
+        private long lastArrival;
+
+        synchronized void start(long nowNanos) {
+            if (!started) {
+                started = true;
+                lastArrival = nowNanos + (STARTUP_GRACE - 1) * expectedIntervalNanos;
+                add(expectedIntervalNanos);
+            }
+        }
+
+        synchronized void arrived(long nowNanos) {
+            if (heard) {
+                add(nowNanos - lastArrival);
+            }
+            heard = true;
+            started = true;
+            lastArrival = nowNanos;
+        }
+
+        synchronized double phi(long nowNanos) {
+            if (!started || count == 0) {
+                return 0;
+            }
+            double mean = sum / count;
+            double variance = Math.max(0, sumOfSquares / count - mean * mean);
+            double stdDev = Math.max(Math.sqrt(variance), minStdDevNanos);
+            double y = (nowNanos - lastArrival - mean) / stdDev;
+            // Logistic approximation of the normal CDF, as used by Akka and Cassandra
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            double phi = y > 0 ? -Math.log10(e / (1 + e)) : -Math.log10(1 - 1 / (1 + e));
+            return Math.max(0, phi);
+        }
+
+        private void add(long interval) {
+            if (count == WINDOW) {
+                double evicted = intervals[next];
+                sum -= evicted;
+                sumOfSquares -= evicted * evicted;
+            } else {
+                count++;
+            }
+            intervals[next] = interval;
+            next = (next + 1) % WINDOW;
+            sum += interval;
+            sumOfSquares += (double) interval * interval;
+        }
+    }
+}
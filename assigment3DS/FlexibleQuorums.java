@@ -0,0 +1,55 @@
+package paxos;
+
+import java.util.*;
+
+/**
+ * Flexible Paxos quorums: any `phase1Size` acceptors in phase 1 and any `phase2Size` in phase 2.
+ *
+ * Only phase-1 and phase-2 quorums have to intersect, which holds whenever the two sizes add up
+ * to more than the number of acceptors. A small phase-2 quorum lets the leader commit as soon as
+ * its closest acceptors have accepted, at the price of a larger quorum when a new leader takes over.
+ */
+public class FlexibleQuorums implements QuorumSystem {
+    private final Set<Integer> acceptorIds;
+    private final int phase1Size;
+    private final int phase2Size;
+
+    /**
+     * Constructor for the FlexibleQuorums class.
+     *
+     * @param acceptorIds The acceptors the quorums are drawn from.
+     * @param phase1Size  The number of promises a proposer needs.
+     * @param phase2Size  The number of accepts a decision needs.
+     * @throws IllegalArgumentException If the sizes are out of range or do not add up to more
+     *                                  than the number of acceptors.
+     */
+    public FlexibleQuorums(List<Integer> acceptorIds, int phase1Size, int phase2Size) {
+        int acceptors = acceptorIds.size();
+        if (phase1Size < 1 || phase2Size < 1 || phase1Size > acceptors || phase2Size > acceptors) {
+            throw new IllegalArgumentException("Quorum sizes " + phase1Size + "/" + phase2Size
+                    + " do not fit " + acceptors + " acceptors");
+        }
+        if (phase1Size + phase2Size <= acceptors) {
+            throw new IllegalArgumentException("Quorum sizes " + phase1Size + "/" + phase2Size
+                    + " do not intersect among " + acceptors + " acceptors");
+        }
+        this.acceptorIds = new HashSet<>(acceptorIds);
+        this.phase1Size = phase1Size;
+        this.phase2Size = phase2Size;
+    }
+
+    @Override
+    public boolean isQuorum(Phase phase, Set<Integer> voters) {
+        return MajorityQuorums.countAcceptors(acceptorIds, voters) >= minimumSize(phase);
+    }
+
+    @Override
+    public int minimumSize(Phase phase) {
+        return phase == Phase.ONE ? phase1Size : phase2Size;
+    }
+
+    @Override
+    public String describe() {
+        return "flexible " + phase1Size + "/" + phase2Size + " of " + acceptorIds.size();
+    }
+}
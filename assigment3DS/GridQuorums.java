@@ -0,0 +1,68 @@
+package paxos;
+
+import java.util.*;
+
+/**
+ * Grid quorums: the acceptors are laid out row by row, in the order given, in a grid of `rows`
+ * rows (the last row may be shorter).
+ *
+ * A phase-2 quorum is any complete row, and a phase-1 quorum is any set holding at least one
+ * acceptor of every row, so every phase-1 quorum meets every phase-2 quorum. With n acceptors in
+ * a square grid, a decision needs only about sqrt(n) accepts instead of n / 2 + 1.
+ */
+public class GridQuorums implements QuorumSystem {
+    private final Map<Integer, Integer> rowOf = new HashMap<>();
+    private final int[] rowSizes;
+
+    /**
+     * Constructor for the GridQuorums class.
+     *
+     * @param acceptorIds The acceptors, in grid order.
+     * @param rows        The number of rows, between 1 and the number of acceptors.
+     */
+    public GridQuorums(List<Integer> acceptorIds, int rows) {
+        if (rows < 1 || rows > acceptorIds.size()) {
+            throw new IllegalArgumentException("Cannot lay out " + acceptorIds.size() + " acceptors in " + rows + " rows");
+        }
+        int columns = (acceptorIds.size() + rows - 1) / rows;
+        rows = (acceptorIds.size() + columns - 1) / columns; // drop rows that would stay empty
+        rowSizes = new int[rows];
+        for (int i = 0; i < acceptorIds.size(); i++) {
+            rowOf.put(acceptorIds.get(i), i / columns);
+            rowSizes[i / columns]++;
+        }
+    }
+
+    @Override
+    public boolean isQuorum(Phase phase, Set<Integer> voters) {
+        int[] votesPerRow = new int[rowSizes.length];
+        for (int voter : voters) {
+            Integer row = rowOf.get(voter);
+            if (row != null) {
+                votesPerRow[row]++;
+            }
+        }
+        for (int row = 0; row < rowSizes.length; row++) {
+            if (phase == Phase.TWO && votesPerRow[row] == rowSizes[row]) {
+                return true;
+            }
+            if (phase == Phase.ONE && votesPerRow[row] == 0) {
+                return false;
+            }
+        }
+        return phase == Phase.ONE;
+    }
+
+    @Override
+    public int minimumSize(Phase phase) {
+        if (phase == Phase.ONE) {
+            return rowSizes.length;
+        }
+        return Arrays.stream(rowSizes).min().orElse(0);
+    }
+
+    @Override
+    public String describe() {
+        return "grid of " + rowSizes.length + " rows x " + rowSizes[0];
+    }
+}
@@ -0,0 +1,103 @@
+package paxos;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * A socket-free network connecting PaxosNode instances that live in one JVM.
+ *
+ * Every node registers a mailbox on the network. A send is scheduled through
+ * `NetworkSimulator.deliver`, so latency and offline rules still apply, and on delivery the
+ * message is appended to the target's lock-free mailbox. The target drains its mailbox on its
+ * own executor, with at most one drain task scheduled at a time.
+ */
+public class InMemoryNetwork {
+    private static final InMemoryNetwork SHARED = new InMemoryNetwork();
+
+    private final Map<Integer, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the network shared by every node that selects the in-memory transport
+     * through the "paxos.transport" system property.
+     */
+    public static InMemoryNetwork shared() {
+        return SHARED;
+    }
+
+    /**
+     * Creates an unbound transport on this network; it registers its node on `start`.
+     */
+    public Transport newTransport() {
+        return new InMemoryTransport();
+    }
+
+    /**
+     * The receiving side of one node: a lock-free queue plus a flag that keeps at most one
+     * drain task in flight.
+     */
+    private static final class Mailbox {
+        private final Queue<PaxosMessage> messages = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private final Executor executor;
+        private final Consumer<PaxosMessage> inbound;
+
+        Mailbox(Executor executor, Consumer<PaxosMessage> inbound) {
+            this.executor = executor;
+            this.inbound = inbound;
+        }
+
+        void offer(PaxosMessage message) {
+            messages.offer(message);
+            if (draining.compareAndSet(false, true)) {
+                executor.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            do {
+                PaxosMessage message;
+                while ((message = messages.poll()) != null) {
+                    inbound.accept(message);
+                }
+                draining.set(false);
+                // A message may have been offered after the last poll but before the flag was cleared
+            } while (!messages.isEmpty() && draining.compareAndSet(false, true));
+        }
+    }
+
+    private final class InMemoryTransport implements Transport {
+        private int nodeId;
+        private Executor executor;
+
+        @Override
+        public void start(int nodeId, Executor executor, Consumer<PaxosMessage> inbound) {
+            this.nodeId = nodeId;
+            this.executor = executor;
+            if (mailboxes.putIfAbsent(nodeId, new Mailbox(executor, inbound)) != null) {
+                throw new IllegalStateException("Node " + nodeId + " is already registered on the in-memory network");
+            }
+        }
+
+        @Override
+        public CompletableFuture<Void> send(int targetNodeId, PaxosMessage message) {
+            return NetworkSimulator.deliver(nodeId, targetNodeId, executor, () -> {
+                Mailbox target = mailboxes.get(targetNodeId);
+                if (target != null) {
+                    target.offer(message);
+                }
+            });
+        }
+
+        @Override
+        public String describe() {
+            return "the in-memory network";
+        }
+
+        @Override
+        public void close() {
+            mailboxes.remove(nodeId);
+        }
+    }
+}
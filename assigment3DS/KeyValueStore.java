@@ -0,0 +1,365 @@
+package paxos;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A replicated key-value store: a state machine fed by the replicated logs of a PaxosNode.
+ *
+ * Every write (put, compare-and-set, delete) is submitted as one multi-word command to the log
+ * of the Paxos group that owns its key, and every node applies the decided commands in slot
+ * order to its own copy of that group's entries. The node that submitted a write answers it
+ * with the result it computed while applying the command, so each write sees exactly the
+ * writes decided before it. A restarted node numbers its requests from 1 again, so a decided
+ * command only answers the pending write it is identical to: one that an earlier instance of the
+ * node submitted under the same request ID is applied without an answer. A command is laid out as
+ *
+ *     op << 24 | length | origin node | request ID | key | value... | expected...
+ *
+ * where each string is its UTF-8 length (or -1 for null) followed by its bytes packed
+ * big-endian into words.
+ *
+ * Reads go through `MultiPaxos.read`, so they are linearizable; a leader holding a lease
+ * answers them locally. Entries are stored in encoded form, and a bounded LRU cache of decoded
+ * values sits in front of them. Since only proposers serve reads, in practice only the leader
+ * fills its cache. Applying a write drops the key from the cache, so a cached value is never
+ * older than the applied state.
+ *
+ * Each group's entries also make up the snapshot the log records when it compacts its
+ * write-ahead log: the entry count, then each key and value in the string form above.
+ *
+ * Each group's entries and cache are only touched while its log's lock is held (by the applier
+ * and by read queries), so they need no locking of their own. Futures are completed while that
+ * lock is held.
+ */
+public class KeyValueStore {
+    private static final int OP_PUT = 1;
+    private static final int OP_CAS = 2;
+    private static final int OP_DELETE = 3;
+    private static final int HEADER_WORDS = 3;
+    private static final int MAX_STRING_BYTES = 64 * 1024;
+
+    private final PaxosNode node;
+    private final Partition[] partitions;
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final Map<Integer, PendingWrite> pending = new ConcurrentHashMap<>();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+
+    /**
+     * Constructor for a KeyValueStore with the cache size configured by the "paxos.kv.cache"
+     * system property (default 1024 entries per group).
+     *
+     * @param node The node whose replicated logs hold the store.
+     */
+    public KeyValueStore(PaxosNode node) {
+        this(node, Integer.getInteger("paxos.kv.cache", 1024));
+    }
+
+    /**
+     * Constructor for the KeyValueStore class. Must be called on every node, after its group
+     * count is set and before it starts, since the store becomes the applier of each group's log.
+     *
+     * @param node      The node whose replicated logs hold the store.
+     * @param cacheSize The number of decoded values cached per group; 0 disables the cache.
+     */
+    public KeyValueStore(PaxosNode node, int cacheSize) {
+        this.node = node;
+        this.partitions = new Partition[node.groupCount()];
+        for (int groupId = 0; groupId < partitions.length; groupId++) {
+            partitions[groupId] = new Partition(node.group(groupId), Math.max(0, cacheSize));
+            node.group(groupId).setApplier(partitions[groupId]);
+        }
+    }
+
+    /**
+     * Returns the Paxos group that owns a key. Writes and reads of the key must be sent to a
+     * proposer of this group, ideally `node.preferredLeader(groupOf(key))`.
+     */
+    public int groupOf(String key) {
+        return node.groupOf(key.hashCode());
+    }
+
+    /**
+     * Reads the value of a key.
+     *
+     * @param key The key.
+     * @return    A future that completes with the value, or null if the key is absent. It fails
+     *            if this node is not a proposer or loses its leadership before the read is ordered.
+     */
+    public CompletableFuture<String> get(String key) {
+        Partition partition = partitions[groupOf(key)];
+        return partition.log.read(() -> partition.lookup(key));
+    }
+
+    /**
+     * Sets the value of a key.
+     *
+     * @param key   The key.
+     * @param value The new value.
+     * @return      A future that completes with the previous value, or null if the key was absent.
+     */
+    public CompletableFuture<String> put(String key, String value) {
+        return write(OP_PUT, key, Objects.requireNonNull(value, "value"), null);
+    }
+
+    /**
+     * Sets the value of a key if it currently has the expected value.
+     *
+     * @param key      The key.
+     * @param expected The value the key must have, or null if the key must be absent.
+     * @param value    The new value.
+     * @return         A future that completes with whether the value was set.
+     */
+    public CompletableFuture<Boolean> compareAndSet(String key, String expected, String value) {
+        return write(OP_CAS, key, Objects.requireNonNull(value, "value"), expected);
+    }
+
+    /**
+     * Removes a key.
+     *
+     * @param key The key.
+     * @return    A future that completes with the removed value, or null if the key was absent.
+     */
+    public CompletableFuture<String> delete(String key) {
+        return write(OP_DELETE, key, null, null);
+    }
+
+    /**
+     * Returns how many reads were answered from the cache of decoded values.
+     */
+    public long cacheHits() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * Returns how many reads had to decode a stored value or found the key absent.
+     */
+    public long cacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    /**
+     * Submits one write. Its future fails if the log fails the command; a command whose leader
+     * was preempted may still be decided later, in which case it is applied without an answer.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> write(int op, String key, String value, String expected) {
+        byte[] keyBytes = encode(Objects.requireNonNull(key, "key"));
+        byte[] valueBytes = encode(value);
+        byte[] expectedBytes = encode(expected);
+        int length = HEADER_WORDS + words(keyBytes) + words(valueBytes) + words(expectedBytes);
+        int requestId = nextRequestId.incrementAndGet();
+
+        int[] command = new int[length];
+        command[0] = op << 24 | length;
+        command[1] = node.nodeId();
+        command[2] = requestId;
+        int position = pack(keyBytes, command, HEADER_WORDS);
+        position = pack(valueBytes, command, position);
+        pack(expectedBytes, command, position);
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        pending.put(requestId, new PendingWrite(command, (CompletableFuture<Object>) (CompletableFuture<?>) result));
+        partitions[groupOf(key)].log.submit(command).whenComplete((slot, error) -> {
+            if (error != null && pending.remove(requestId) != null) {
+                result.completeExceptionally(error);
+            }
+        });
+        return result;
+    }
+
+    private static byte[] encode(String text) {
+        if (text == null) {
+            return null;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_BYTES) {
+            throw new IllegalArgumentException("Keys and values are limited to " + MAX_STRING_BYTES + " bytes");
+        }
+        return bytes;
+    }
+
+    private static String decode(byte[] bytes) {
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int words(byte[] bytes) {
+        return bytes == null ? 1 : 1 + (bytes.length + 3) / 4;
+    }
+
+    private static int pack(byte[] bytes, int[] command, int position) {
+        if (bytes == null) {
+            command[position] = -1;
+            return position + 1;
+        }
+        command[position++] = bytes.length;
+        for (int i = 0; i < bytes.length; i++) {
+            command[position + i / 4] |= (bytes[i] & 0xFF) << (24 - 8 * (i % 4));
+        }
+        return position + (bytes.length + 3) / 4;
+    }
+
+    /**
+     * Reads the string at `position[0]` and advances the position past it.
+     */
+    private static byte[] unpack(int[] command, int[] position) {
+        int length = command[position[0]++];
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (command[position[0] + i / 4] >>> (24 - 8 * (i % 4)));
+        }
+        position[0] += (length + 3) / 4;
+        return bytes;
+    }
+
+    /**
+     * The entries of one Paxos group, with the cache in front of them and the words of the
+     * command being applied.
+     */
+    private final class Partition implements MultiPaxos.StateMachine {
+        private final MultiPaxos log;
+        private final int cacheSize;
+        private final Map<String, byte[]> entries = new HashMap<>();
+        private final LinkedHashMap<String, String> cache;
+        private int[] command;
+        private int filled;
+
+        Partition(MultiPaxos log, int cacheSize) {
+            this.log = log;
+            this.cacheSize = cacheSize;
+            this.cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > Partition.this.cacheSize;
+                }
+            };
+        }
+
+        /**
+         * Receives the decided words in order and executes each command once all its words
+         * have arrived.
+         */
+        @Override
+        public void apply(int slot, int word) {
+            if (command == null) {
+                command = new int[Math.max(word & 0xFFFFFF, 1)];
+                filled = 0;
+            }
+            command[filled++] = word;
+            if (filled == command.length) {
+                int[] complete = command;
+                command = null;
+                execute(complete);
+            }
+        }
+
+        private void execute(int[] words) {
+            if (words.length < HEADER_WORDS) {
+                return;
+            }
+            int op = words[0] >>> 24;
+            boolean answer = words[1] == node.nodeId();
+            int[] position = {HEADER_WORDS};
+            String key = decode(unpack(words, position));
+            byte[] value = unpack(words, position);
+            byte[] expected = unpack(words, position);
+
+            Object result;
+            switch (op) {
+                case OP_PUT:
+                    byte[] replaced = entries.put(key, value);
+                    result = answer ? decode(replaced) : null;
+                    cache.remove(key);
+                    break;
+                case OP_CAS:
+                    byte[] current = entries.get(key);
+                    boolean matches = expected == null ? current == null : Arrays.equals(current, expected);
+                    if (matches) {
+                        entries.put(key, value);
+                        cache.remove(key);
+                    }
+                    result = matches;
+                    break;
+                case OP_DELETE:
+                    byte[] removed = entries.remove(key);
+                    result = answer ? decode(removed) : null;
+                    cache.remove(key);
+                    break;
+                default:
+                    return;
+            }
+            if (answer) {
+                PendingWrite write = pending.get(words[2]);
+                if (write != null && Arrays.equals(write.command, words)) {
+                    pending.remove(words[2]);
+                    write.result.complete(result);
+                }
+            }
+        }
+
+        @Override
+        public int[] snapshot() {
+            int length = 1;
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                length += words(encode(entry.getKey())) + words(entry.getValue());
+            }
+            int[] snapshot = new int[length];
+            snapshot[0] = entries.size();
+            int position = 1;
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                position = pack(encode(entry.getKey()), snapshot, position);
+                position = pack(entry.getValue(), snapshot, position);
+            }
+            return snapshot;
+        }
+
+        @Override
+        public void restore(int[] snapshot) {
+            entries.clear();
+            cache.clear();
+            command = null;
+            int[] position = {1};
+            for (int i = 0; i < snapshot[0]; i++) {
+                String key = decode(unpack(snapshot, position));
+                entries.put(key, unpack(snapshot, position));
+            }
+        }
+
+        /**
+         * Answers a read from the cache, or from the stored entry and caches its decoded value.
+         * Runs as a `MultiPaxos.read` query, under the log's lock.
+         */
+        String lookup(String key) {
+            String cached = cache.get(key);
+            if (cached != null) {
+                cacheHits.increment();
+                return cached;
+            }
+            cacheMisses.increment();
+            String value = decode(entries.get(key));
+            if (value != null && cacheSize > 0) {
+                cache.put(key, value);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * A write submitted by this node, waiting for its command to be applied.
+     */
+    private static final class PendingWrite {
+        final int[] command;
+        final CompletableFuture<Object> result;
+
+        PendingWrite(int[] command, CompletableFuture<Object> result) {
+            this.command = command;
+            this.result = result;
+        }
+    }
+}
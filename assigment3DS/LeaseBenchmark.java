@@ -0,0 +1,109 @@
+package paxos;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures linearizable read latency and throughput on the replicated-log leader with leader
+ * leases enabled and disabled.
+ *
+ * Run with: java paxos.LeaseBenchmark [latencyMs] [reads] [clients]
+ *
+ * Each run starts a fresh cluster of one proposer and four acceptors on an in-memory network
+ * where every message takes `latencyMs` to arrive, commits some writes, and then lets `clients`
+ * closed-loop clients issue `reads` reads of the leader's state machine between them. With a
+ * lease, a read is answered from the leader's applied state; without one, every read first
+ * decides an empty log slot.
+ */
+public class LeaseBenchmark {
+    private static final List<Integer> NODE_IDS = Arrays.asList(1, 2, 3, 4, 5);
+    private static final long LEASE_MILLIS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int latencyMs = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+        int reads = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+        for (int nodeId : NODE_IDS) {
+            NetworkSimulator.setNodeLatency(nodeId, latencyMs);
+        }
+
+        List<String> results = new ArrayList<>();
+        for (boolean leases : new boolean[] {false, true}) {
+            results.add(run(leases, reads, clients));
+        }
+
+        AsyncLogger.flush();
+        System.out.println();
+        System.out.println("Lease benchmark: " + reads + " reads from " + clients + " clients, "
+                + latencyMs + " ms one-way latency");
+        for (String result : results) {
+            System.out.println(result);
+        }
+        System.exit(0);
+    }
+
+    private static String run(boolean leases, int reads, int clients) throws Exception {
+        InMemoryNetwork network = new InMemoryNetwork();
+        Set<Integer> proposerIds = new HashSet<>(Arrays.asList(1));
+        AtomicLong state = new AtomicLong(); // the leader's state machine: the sum of applied commands
+        List<PaxosNode> nodes = new ArrayList<>();
+        for (int nodeId : NODE_IDS) {
+            PaxosNode node = new PaxosNode(nodeId, NODE_IDS, proposerIds, network.newTransport());
+            node.replicatedLog().setLeases(leases ? LEASE_MILLIS : 0, 0.01);
+            if (nodeId == 1) {
+                node.replicatedLog().setApplier((slot, command) -> state.addAndGet(command));
+            }
+            node.start();
+            nodes.add(node);
+        }
+
+        try {
+            MultiPaxos log = nodes.get(0).replicatedLog();
+            CompletableFuture<?>[] writes = new CompletableFuture<?>[100];
+            for (int i = 0; i < writes.length; i++) {
+                writes[i] = log.submit(i + 1);
+            }
+            CompletableFuture.allOf(writes).get(1, TimeUnit.MINUTES);
+            while (leases && !log.holdsLease()) {
+                Thread.sleep(1);
+            }
+
+            LatencyHistogram latency = new LatencyHistogram();
+            AtomicLong remaining = new AtomicLong(reads);
+            List<Thread> threads = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int client = 0; client < clients; client++) {
+                Thread thread = new Thread(() -> readLoop(log, state, remaining, latency));
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            return String.format("leases %-3s  %10.0f reads/s  %s", leases ? "on" : "off", reads / seconds,
+                    latency.summary());
+        } finally {
+            for (PaxosNode node : nodes) {
+                node.stop();
+            }
+        }
+    }
+
+    private static void readLoop(MultiPaxos log, AtomicLong state, AtomicLong remaining, LatencyHistogram latency) {
+        try {
+            while (remaining.getAndDecrement() > 0) {
+                long start = System.nanoTime();
+                long value = log.read(state::get).get(10, TimeUnit.SECONDS);
+                latency.recordSince(start);
+                if (value != 5050) {
+                    throw new IllegalStateException("Read returned " + value + " instead of 5050");
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package paxos;
+
+/**
+ * Selects how a PaxosNode accepts and reads inbound connections.
+ *
+ * THREAD_PER_CONNECTION is the original blocking listener that starts one thread per accepted
+ * connection. NIO multiplexes every connection onto a small number of selector event loops.
+ * The default can be chosen with the system property "paxos.listener" (e.g. -Dpaxos.listener=nio).
+ */
+public enum ListenerMode {
+    THREAD_PER_CONNECTION,
+    NIO;
+
+    /**
+     * Resolves the listener mode configured through the "paxos.listener" system property.
+     *
+     * @return The configured mode, or THREAD_PER_CONNECTION if the property is not set.
+     * @throws IllegalArgumentException If the property names no mode.
+     */
+    public static ListenerMode fromSystemProperty() {
+        return SystemProperties.fromProperty("paxos.listener", ListenerMode.class, THREAD_PER_CONNECTION);
+    }
+}
@@ -0,0 +1,42 @@
+package paxos;
+
+/**
+ * The structured events nodes log on their hot paths.
+ *
+ * Each event has a level and a message template whose "{}" placeholders are filled with the
+ * event's int arguments, in order, when the logger's background thread formats it.
+ */
+public enum LogEvent {
+    PROPOSAL_RECEIVED(LogLevel.DEBUG, "ACCEPTOR Node {} received proposal from PROPOSER Node {} with value: {}"),
+    PROPOSAL_ACCEPTED(LogLevel.INFO, "ACCEPTOR Node {} accepts proposal {} from PROPOSER Node {}"),
+    PROMISE_RECEIVED(LogLevel.DEBUG, "PROPOSER Node {} received promise from ACCEPTOR Node {} with value: {}"),
+    PROPOSING(LogLevel.INFO, "PROPOSER Node {} is proposing leadership for value {}"),
+    PROPOSAL_REJECTED(LogLevel.DEBUG, "ACCEPTOR Node {} rejected proposal {}: it promised {}"),
+    ELECTION_RETRY(LogLevel.INFO, "PROPOSER Node {} retries its election with ballot {} (round {})"),
+    DECLARING_LEADER(LogLevel.INFO, "Node {} is declaring itself as the leader for proposal value {}"),
+    DECLARATION_AGREED(LogLevel.INFO, "Node {} agrees with leader declaration: Node {} is the leader."),
+    DECLARATION_REJECTED(LogLevel.INFO, "Node {} disagrees with leader declaration: Node {} is not the leader."),
+    PEER_SUSPECTED(LogLevel.INFO, "Node {} suspects that Node {} has failed"),
+    PEER_TRUSTED(LogLevel.INFO, "Node {} hears from Node {} again"),
+    LEADER_SUSPECTED(LogLevel.INFO, "PROPOSER Node {} replaces suspected leader Node {}"),
+    LOG_LEADER(LogLevel.INFO, "Node {} leads the replicated log with ballot {}"),
+    LOG_APPLIED(LogLevel.DEBUG, "Node {} applied slot {}: command {}"),
+    LOG_COMMITTED(LogLevel.INFO, "Command {} committed in slot {}"),
+    MESSAGE(LogLevel.INFO, "{}"); // preformatted text, see AsyncLogger.info
+
+    private final LogLevel level;
+    private final String template;
+
+    LogEvent(LogLevel level, String template) {
+        this.level = level;
+        this.template = template;
+    }
+
+    public LogLevel level() {
+        return level;
+    }
+
+    public String template() {
+        return template;
+    }
+}
@@ -0,0 +1,23 @@
+package paxos;
+
+/**
+ * The severity of a log event. Events below the configured level are dropped before anything
+ * is recorded. The level can be chosen with the system property "paxos.log.level"
+ * (e.g. -Dpaxos.log.level=info); OFF disables logging entirely.
+ */
+public enum LogLevel {
+    DEBUG,
+    INFO,
+    WARN,
+    OFF;
+
+    /**
+     * Resolves the log level configured through the "paxos.log.level" system property.
+     *
+     * @return The configured level, or DEBUG (every event) if the property is not set.
+     * @throws IllegalArgumentException If the property names no level.
+     */
+    public static LogLevel fromSystemProperty() {
+        return SystemProperties.fromProperty("paxos.log.level", LogLevel.class, DEBUG);
+    }
+}
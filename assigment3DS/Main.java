@@ -1,12 +1,16 @@
+package paxos;
+
 import java.io.IOException;
-import java.net.InetSocketAddress;
+import java.nio.file.*;
 import java.util.*;
+import java.util.function.Consumer;
 
 public class Main {
     /**
      * The main entry point for the Paxos simulation program.
      * 
-     * @param args Command-line arguments, where the first argument is the test case number to execute.
+     * @param args Command-line arguments, where the first argument is the test case number to execute
+     *             and the optional second argument a cluster configuration file (see `ClusterConfig`).
      * @throws IOException If there is an error during node communication or initialization.
      * @throws InterruptedException If the program is interrupted during execution.
      * 
@@ -16,8 +20,8 @@ public class Main {
      */
     public static void main(String[] args) throws IOException, InterruptedException {
         // Validate input arguments
-        if (args.length != 1) {
-            System.out.println("Usage: java Main <test_case_number>");
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: java paxos.Main <test_case_number> [cluster.properties]");
             return;
         }
 
@@ -29,46 +33,49 @@ public class Main {
             return;
         }
 
-        // Set up peer nodes with corresponding IP addresses and ports
-        List<InetSocketAddress> peers = new ArrayList<>();
-        for (int i = 1; i <= 9; i++) {
-            peers.add(new InetSocketAddress("localhost", 8000 + i)); // Assign ports 8001 to 8009
-        }
+        // Nine nodes on ports 8001 to 8009 unless a cluster configuration file is given
+        ClusterConfig cluster = args.length > 1 ? ClusterConfig.load(Paths.get(args[1])) : ClusterConfig.ofSize(9);
 
         // Run the selected test case based on input
         switch (testCase) {
             case 1:
-                runTestCase1(peers); 
+                runTestCase1(cluster); 
                 break;
                 case 2:
-                runTestCase2(peers); 
+                runTestCase2(cluster); 
                 break;
             case 3:
-                runTestCase3(peers); 
+                runTestCase3(cluster); 
                 break;
             case 4:
-                runTestCase4(peers); 
+                runTestCase4(cluster); 
                 break;
             case 5:
-                runTestCase5(peers); 
+                runTestCase5(cluster); 
                 break;
             case 6:
-                runTestCase6(peers); 
+                runTestCase6(cluster); 
                 break;
             case 7:
-                runTestCase7(peers);
+                runTestCase7(cluster);
                 break;
             case 8:
-                runTestCase8(peers); 
+                runTestCase8(cluster); 
                 break;
             case 9:
-                runTestCase9(peers);
+                runTestCase9(cluster);
                 break;
             case 10:
-                runTestCase10(peers);
+                runTestCase10(cluster);
+                break;
+            case 11:
+                runTestCase11(cluster);
+                break;
+            case 12:
+                runTestCase12(cluster);
                 break;
             default:
-                System.out.println("Please select a test case from 1 to 10.");
+                System.out.println("Please select a test case from 1 to 12.");
         }
 
         //terminate the program after 20 sec
@@ -80,23 +87,26 @@ public class Main {
         }, 20000); 
     }
 
+    /**
+     * Starts every node of the cluster with the test case's proposers.
+     *
+     * @param cluster     The configured cluster.
+     * @param proposerIds The IDs of the nodes that act as proposers in this test case.
+     * @param configure   Called for every node before it starts.
+     * @return            The started nodes; node i is at index i - 1.
+     */
+    private static List<PaxosNode> startNodes(ClusterConfig cluster, Set<Integer> proposerIds,
+                                              Consumer<PaxosNode> configure) throws IOException {
+        return ClusterLauncher.launch(cluster.withProposers(proposerIds), configure);
+    }
+
     // Paxos implementation works in the case where all M1-M9 have immediate responses to voting queries
-    private static void runTestCase1(List<InetSocketAddress> peers) {
+    private static void runTestCase1(ClusterConfig cluster) throws IOException {
         Set<Integer> proposerIds = new HashSet<>(Arrays.asList(1)); // Node 1 is proposer
 
-        // Initialize and start Paxos nodes
-        List<PaxosNode> nodes = new ArrayList<>();
-        for (int i = 1; i <= 9; i++) {
-            PaxosNode node = new PaxosNode(i, peers, proposerIds);
-            try {
-                node.start(); 
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            nodes.add(node);
-        }
+        List<PaxosNode> nodes = startNodes(cluster, proposerIds, node -> { });
 
-        System.out.println("Test Case 1: Node 1 proposes leadership with proposal number 40.");
+        AsyncLogger.info("Test Case 1: Node 1 proposes leadership with proposal number 40.");
         
         // Simulate Node 1 proposing leadership
         new Thread(() -> {
@@ -105,44 +115,24 @@ public class Main {
     }
 
      //Paxos implementation works when two councillors send voting proposals at the same time
-     private static void runTestCase2(List<InetSocketAddress> peers) {
+     private static void runTestCase2(ClusterConfig cluster) throws IOException {
         Set<Integer> proposerIds = new HashSet<>(Arrays.asList(1,2));
 
-        // Initialize and start Paxos nodes
-        List<PaxosNode> nodes = new ArrayList<>();
-        for (int i = 1; i <= 9; i++) {
-            PaxosNode node = new PaxosNode(i, peers, proposerIds);
-            try {
-                node.start(); 
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            nodes.add(node);
-        }
+        List<PaxosNode> nodes = startNodes(cluster, proposerIds, node -> { });
         int val1 = 50;
         int val2 = 30;
-        System.out.println("Test Case 2: Simulate Node 1 proposing "+ val1 + " and Node 2 proposing " + val2 + " concurrently.");
+        AsyncLogger.info("Test Case 2: Simulate Node 1 proposing "+ val1 + " and Node 2 proposing " + val2 + " concurrently.");
 
         new Thread(() -> nodes.get(0).proposeLeadership(val1)).start();
         new Thread(() -> nodes.get(1).proposeLeadership(val2)).start();
     }
 
     //Test Case 3: Node 1 proposes leadership with proposal number 40, Node 3 has a small delay.
-    private static void runTestCase3(List<InetSocketAddress> peers) {
+    private static void runTestCase3(ClusterConfig cluster) throws IOException {
         Set<Integer> proposerIds = new HashSet<>(Arrays.asList(1)); // Node 1 is proposer
 
-        // Initialize and start Paxos nodes
-        List<PaxosNode> nodes = new ArrayList<>();
-        for (int i = 1; i <= 9; i++) {
-            PaxosNode node = new PaxosNode(i, peers, proposerIds);
-            try {
-                node.start(); 
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            nodes.add(node);
-        }
-        System.out.println("Test Case 3: Node 1 proposes leadership with proposal number 40, Node 3 has a small delay.");
+        List<PaxosNode> nodes = startNodes(cluster, proposerIds, node -> { });
+        AsyncLogger.info("Test Case 3: Node 1 proposes leadership with proposal number 40, Node 3 has a small delay.");
         
         // Set network latencies using the NetworkSimulator
         NetworkSimulator.setNodeLatency(3, 500); 
@@ -160,21 +150,11 @@ public class Main {
     }
 
     //Test Case 4: Node 1 proposes leadership with proposal number 60, Node 9 has a large delay.
-    private static void runTestCase4(List<InetSocketAddress> peers) {
+    private static void runTestCase4(ClusterConfig cluster) throws IOException {
         Set<Integer> proposerIds = new HashSet<>(Arrays.asList(1));
 
-        // Initialize and start Paxos nodes
-        List<PaxosNode> nodes = new ArrayList<>();
-        for (int i = 1; i <= 9; i++) {
-            PaxosNode node = new PaxosNode(i, peers, proposerIds);
-            try {
-                node.start(); 
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            nodes.add(node);
-        }
-        System.out.println("Test Case 4: Node 1 proposes leadership with proposal number 60, Node 9 has a large delay.");
+        List<PaxosNode> nodes = startNodes(cluster, proposerIds, node -> { });
+        AsyncLogger.info("Test Case 4: Node 1 proposes leadership with proposal number 60, Node 9 has a large delay.");
         
 
         NetworkSimulator.setNodeLatency(9, 3000);  // Node 7 has 3-second latency
@@ -190,21 +170,11 @@ public class Main {
     }
 
     //Test Case 5: Multiple nodes with varying delays.
-    private static void runTestCase5(List<InetSocketAddress> peers) {
+    private static void runTestCase5(ClusterConfig cluster) throws IOException {
         Set<Integer> proposerIds = new HashSet<>(Arrays.asList(1));
 
-        // Initialize and start Paxos nodes
-        List<PaxosNode> nodes = new ArrayList<>();
-        for (int i = 1; i <= 9; i++) {
-            PaxosNode node = new PaxosNode(i, peers, proposerIds);
-            try {
-                node.start(); 
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            nodes.add(node);
-        }
-        System.out.println("Test Case 5: Multiple nodes with varying delays.");
+        List<PaxosNode> nodes = startNodes(cluster, proposerIds, node -> { });
+        AsyncLogger.info("Test Case 5: Multiple nodes with varying delays.");
     
         // Set network latencies using the NetworkSimulator
         NetworkSimulator.setNodeLatency(3, 500);  // Node 3 has 500 ms latency
@@ -227,21 +197,11 @@ public class Main {
     }
 
     //Test Case 6: Node 2 as proposer with latency response.
-    private static void runTestCase6(List<InetSocketAddress> peers) {
-        System.out.println("Test Case 6: Node 2 as proposer with latency response.");
+    private static void runTestCase6(ClusterConfig cluster) throws IOException {
+        AsyncLogger.info("Test Case 6: Node 2 as proposer with latency response.");
         Set<Integer> proposerIds = new HashSet<>(Arrays.asList(2));
 
-        // Initialize and start Paxos nodes
-        List<PaxosNode> nodes = new ArrayList<>();
-        for (int i = 1; i <= 9; i++) {
-            PaxosNode node = new PaxosNode(i, peers, proposerIds);
-            try {
-                node.start(); 
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            nodes.add(node);
-        }
+        List<PaxosNode> nodes = startNodes(cluster, proposerIds, node -> { });
         NetworkSimulator.setNodeLatency(2, 3000);  
       
         new Thread(() -> {
@@ -257,21 +217,11 @@ public class Main {
     }
 
     // Test Case 7: Node 2 as proposer with latency propose. (node 8 and 9 receive proposal value later than the other nodes)
-    private static void runTestCase7(List<InetSocketAddress> peers) {
+    private static void runTestCase7(ClusterConfig cluster) throws IOException {
         Set<Integer> proposerIds = new HashSet<>(Arrays.asList(2));
 
-        // Initialize and start Paxos nodes
-        List<PaxosNode> nodes = new ArrayList<>();
-        for (int i = 1; i <= 9; i++) {
-            PaxosNode node = new PaxosNode(i, peers, proposerIds);
-            try {
-                node.start(); 
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            nodes.add(node);
-        }
-        System.out.println("Test Case 7: Node 2 as proposer with latency propose");
+        List<PaxosNode> nodes = startNodes(cluster, proposerIds, node -> { });
+        AsyncLogger.info("Test Case 7: Node 2 as proposer with latency propose");
 
         NetworkSimulator.setNodeLatency(8, 3000); 
         NetworkSimulator.setNodeLatency(9, 2000); 
@@ -299,23 +249,13 @@ public class Main {
 
 
     // Test Case 8: Simulate Node 1 proposing and Node 2 proposing concurrently with network latency.
-    private static void runTestCase8(List<InetSocketAddress> peers) {
+    private static void runTestCase8(ClusterConfig cluster) throws IOException {
         Set<Integer> proposerIds = new HashSet<>(Arrays.asList(1,2));
 
-        // Initialize and start Paxos nodes
-        List<PaxosNode> nodes = new ArrayList<>();
-        for (int i = 1; i <= 9; i++) {
-            PaxosNode node = new PaxosNode(i, peers, proposerIds);
-            try {
-                node.start(); 
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            nodes.add(node);
-        }
+        List<PaxosNode> nodes = startNodes(cluster, proposerIds, node -> { });
         int val1 = 30;
         int val2 = 50;
-        System.out.println("Test Case 8: Simulate Node 1 proposing " + val1 + " and Node 2 proposing " + val2 + " concurrently with network latency.");
+        AsyncLogger.info("Test Case 8: Simulate Node 1 proposing " + val1 + " and Node 2 proposing " + val2 + " concurrently with network latency.");
 
         // Set specific latencies for each node if necessary
         NetworkSimulator.setNodeLatency(1, 2000);  // Node 1 has a 2-second latency
@@ -344,21 +284,11 @@ public class Main {
     }
 
     // Test Case 9: Simulate Node 3 proposing a value and then going offline.
-    private static void runTestCase9(List<InetSocketAddress> peers) {
+    private static void runTestCase9(ClusterConfig cluster) throws IOException {
         Set<Integer> proposerIds = new HashSet<>(Arrays.asList(3));
 
-        // Initialize and start Paxos nodes
-        List<PaxosNode> nodes = new ArrayList<>();
-        for (int i = 1; i <= 9; i++) {
-            PaxosNode node = new PaxosNode(i, peers, proposerIds);
-            try {
-                node.start(); 
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            nodes.add(node);
-        }
-        System.out.println("Test Case 9: Node 3 as proposer goes offline.");
+        List<PaxosNode> nodes = startNodes(cluster, proposerIds, node -> { });
+        AsyncLogger.info("Test Case 9: Node 3 as proposer goes offline.");
     
         // Mark Node 3 as offline
         NetworkSimulator.setNodeOffline(3);
@@ -380,28 +310,18 @@ public class Main {
         new Timer().schedule(new TimerTask() {
             @Override
             public void run() {
-                System.out.println("Proposer went offline. No leader is chosen");
+                AsyncLogger.info("Proposer went offline. No leader is chosen");
                 System.exit(0); 
             }
         }, 20000);
     }
     
      // Test Case 10: Simulate Node 3 proposing a value and then going offline and going online again.
-     private static void runTestCase10(List<InetSocketAddress> peers) {
+     private static void runTestCase10(ClusterConfig cluster) throws IOException {
         Set<Integer> proposerIds = new HashSet<>(Arrays.asList(3));
 
-        // Initialize and start Paxos nodes
-        List<PaxosNode> nodes = new ArrayList<>();
-        for (int i = 1; i <= 9; i++) {
-            PaxosNode node = new PaxosNode(i, peers, proposerIds);
-            try {
-                node.start(); 
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            nodes.add(node);
-        }
-        System.out.println("Test Case 10: Node 3 as proposer goes offline then go online.");
+        List<PaxosNode> nodes = startNodes(cluster, proposerIds, node -> { });
+        AsyncLogger.info("Test Case 10: Node 3 as proposer goes offline then go online.");
     
         // Mark Node 3 as offline
         NetworkSimulator.setNodeLatency(2, 5000);
@@ -419,4 +339,57 @@ public class Main {
             }
         }).start();
     }
+
+    // Test Case 11: Node 1 leads a Multi-Paxos replicated log and commits a stream of commands.
+    private static void runTestCase11(ClusterConfig cluster) throws IOException {
+        Set<Integer> proposerIds = new HashSet<>(Arrays.asList(1));
+
+        List<PaxosNode> nodes = startNodes(cluster, proposerIds, node -> {
+            int id = node.nodeId();
+            node.replicatedLog().setApplier((slot, command) ->
+                    AsyncLogger.log(LogEvent.LOG_APPLIED, id, slot, command));
+        });
+        AsyncLogger.info("Test Case 11: Node 1 leads a replicated log and commits commands 101 to 105.");
+
+        NetworkSimulator.setNodeLatency(9, 1000); // Node 9 lags behind but still applies every slot in order
+
+        new Thread(() -> {
+            MultiPaxos log = nodes.get(0).replicatedLog();
+            for (int command = 101; command <= 105; command++) {
+                int submitted = command;
+                log.submit(command).thenAccept(slot ->
+                        AsyncLogger.log(LogEvent.LOG_COMMITTED, submitted, slot));
+            }
+        }).start();
+    }
+
+    // Test Case 12: Acceptor node 5 crashes after promising 40 and restarts with its promise recovered from disk.
+    private static void runTestCase12(ClusterConfig cluster) throws IOException {
+        Set<Integer> proposerIds = new HashSet<>(Arrays.asList(1, 2));
+        Path walDirectory = Files.createTempDirectory("paxos-wal");
+
+        List<PaxosNode> nodes = startNodes(cluster, proposerIds,
+                node -> node.setDurability(DurabilityMode.FSYNC, walDirectory));
+        AsyncLogger.info("Test Case 12: Node 5 restarts after promising 40; Node 2 then proposes 30.");
+
+        new Thread(() -> {
+            try {
+                nodes.get(0).proposeLeadership(40).get();
+                Thread.sleep(500);
+
+                nodes.get(4).stop();
+                AsyncLogger.info("Node 5 crashed and is restarting.");
+                PaxosNode restarted = new PaxosNode(5, cluster.nodeIds(), proposerIds, cluster.newTransport());
+                restarted.setQuorumSystem(cluster.withProposers(proposerIds).quorumSystem());
+                restarted.setDurability(DurabilityMode.FSYNC, walDirectory);
+                restarted.start();
+                nodes.set(4, restarted);
+
+                // The restarted node still remembers 40, so it does not promise the lower proposal
+                nodes.get(1).proposeLeadership(30);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }).start();
+    }
 }
@@ -0,0 +1,41 @@
+package paxos;
+
+import java.util.*;
+
+/**
+ * Classic Paxos quorums: more than half of the acceptors, in both phases.
+ */
+public class MajorityQuorums implements QuorumSystem {
+    private final Set<Integer> acceptorIds;
+    private final int quorumSize;
+
+    public MajorityQuorums(List<Integer> acceptorIds) {
+        this.acceptorIds = new HashSet<>(acceptorIds);
+        this.quorumSize = acceptorIds.size() / 2 + 1;
+    }
+
+    @Override
+    public boolean isQuorum(Phase phase, Set<Integer> voters) {
+        return countAcceptors(acceptorIds, voters) >= quorumSize;
+    }
+
+    @Override
+    public int minimumSize(Phase phase) {
+        return quorumSize;
+    }
+
+    @Override
+    public String describe() {
+        return "majority of " + acceptorIds.size();
+    }
+
+    static int countAcceptors(Set<Integer> acceptorIds, Set<Integer> voters) {
+        int count = 0;
+        for (int voter : voters) {
+            if (acceptorIds.contains(voter)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,240 @@
+package paxos;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Encodes and decodes length-prefixed message frames.
+ *
+ * Every frame starts with a 4-byte big-endian payload length. A version 2 binary payload is
+ *
+ *     version (1 byte) | type (1 byte) | nodeId | ballot | slot | acceptedBallot | value
+ *
+ * with every field after the type a 4-byte int, optionally followed by the message's batch of
+ * commands as further 4-byte ints up to the end of the payload. Messages of a Paxos group other
+ * than 0 are written as version 3, which adds a 4-byte groupId right after the type. Version 1
+ * payloads, which lack the slot and acceptedBallot fields, are still decoded. A text payload is
+ * the UTF-8 debug form produced by `PaxosMessage.toString()`, "type:nodeId:value" (or
+ * "type@group:nodeId:value") plus optional trailing fields. Text payloads
+ * always start with a letter, so the first payload byte tells the two formats apart.
+ *
+ * A bundle payload carries several messages for the same peer in one frame:
+ *
+ *     BUNDLE (1 byte) | count | count complete frames, each with its own length prefix
+ *
+ * Bundled frames may be binary or text, and are decoded in order by `decodeFrame`.
+ */
+public final class MessageCodec {
+    public static final byte VERSION = 2;
+    public static final byte VERSION_1 = 1;
+    public static final byte VERSION_3 = 3;
+    public static final byte BUNDLE = 0x10;
+    public static final int BUNDLE_HEADER_SIZE = 1 + 4;
+    public static final int FRAME_HEADER_SIZE = 4;
+    public static final int BINARY_PAYLOAD_SIZE = 1 + 1 + 4 + 4 + 4 + 4 + 4;
+    public static final int BINARY_V1_PAYLOAD_SIZE = 1 + 1 + 4 + 4 + 4;
+    public static final int BINARY_V3_PAYLOAD_SIZE = BINARY_PAYLOAD_SIZE + 4;
+    public static final int MAX_FRAME_SIZE = 1024 * 1024;
+    private static final int MAX_TEXT_FIELD_SIZE = 12;
+
+    private MessageCodec() {
+    }
+
+    /**
+     * Writes one complete frame for the message into the buffer.
+     *
+     * @param message The message to encode.
+     * @param format  The wire format of the payload.
+     * @param out     The destination buffer; must have room for the whole frame.
+     */
+    public static void encode(PaxosMessage message, WireFormat format, ByteBuffer out) {
+        if (format == WireFormat.TEXT) {
+            byte[] payload = message.toString().getBytes(StandardCharsets.UTF_8);
+            out.putInt(payload.length);
+            out.put(payload);
+            return;
+        }
+
+        int[] commands = message.commands();
+        int commandCount = commands == null ? 0 : commands.length;
+        boolean grouped = message.groupId() != 0;
+        out.putInt((grouped ? BINARY_V3_PAYLOAD_SIZE : BINARY_PAYLOAD_SIZE) + 4 * commandCount);
+        out.put(grouped ? VERSION_3 : VERSION);
+        out.put(message.type().code());
+        if (grouped) {
+            out.putInt(message.groupId());
+        }
+        out.putInt(message.nodeId());
+        out.putInt(message.ballot());
+        out.putInt(message.slot());
+        out.putInt(message.acceptedBallot());
+        out.putInt(message.value());
+        for (int i = 0; i < commandCount; i++) {
+            out.putInt(commands[i]);
+        }
+    }
+
+    /**
+     * Completes a bundle frame whose nested frames have been encoded into the buffer from
+     * `start + FRAME_HEADER_SIZE + BUNDLE_HEADER_SIZE` up to its position, by writing the length
+     * prefix and bundle header in front of them.
+     *
+     * @param out   The buffer holding the bundle.
+     * @param start The index at which the bundle frame starts.
+     * @param count The number of nested frames.
+     */
+    public static void finishBundle(ByteBuffer out, int start, int count) {
+        out.putInt(start, out.position() - start - FRAME_HEADER_SIZE);
+        out.put(start + FRAME_HEADER_SIZE, BUNDLE);
+        out.putInt(start + FRAME_HEADER_SIZE + 1, count);
+    }
+
+    /**
+     * Returns an upper bound on the size of the frame `encode` writes for the message, including
+     * the length prefix.
+     *
+     * @param message The message to be encoded.
+     * @param format  The wire format of the payload.
+     */
+    public static int maxFrameSize(PaxosMessage message, WireFormat format) {
+        int commandCount = message.commands() == null ? 0 : message.commands().length;
+        if (format == WireFormat.TEXT) {
+            return FRAME_HEADER_SIZE + 32 + MAX_TEXT_FIELD_SIZE * (7 + commandCount);
+        }
+        int payload = message.groupId() != 0 ? BINARY_V3_PAYLOAD_SIZE : BINARY_PAYLOAD_SIZE;
+        return FRAME_HEADER_SIZE + payload + 4 * commandCount;
+    }
+
+    /**
+     * Decodes one payload of the given length starting at the buffer's position, and advances
+     * the position past it.
+     *
+     * @param in     The buffer holding the payload (the length prefix already consumed).
+     * @param length The payload length read from the frame header.
+     * @return       The decoded message.
+     * @throws ProtocolException If the payload is malformed or uses an unknown version or type.
+     */
+    public static PaxosMessage decode(ByteBuffer in, int length) throws ProtocolException {
+        if (length <= 0 || length > in.remaining()) {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+
+        byte first = in.get(in.position());
+        if (Character.isLetter(first)) {
+            return decodeText(in, length);
+        }
+        if (first != VERSION && first != VERSION_1 && first != VERSION_3) {
+            throw new ProtocolException("Unsupported wire format version " + first);
+        }
+        int fixedSize = first == VERSION_3 ? BINARY_V3_PAYLOAD_SIZE : BINARY_PAYLOAD_SIZE;
+        boolean validLength = first != VERSION_1
+                ? length >= fixedSize && (length - fixedSize) % 4 == 0
+                : length == BINARY_V1_PAYLOAD_SIZE;
+        if (!validLength) {
+            throw new ProtocolException("Invalid binary payload length " + length);
+        }
+
+        in.get(); // version
+        MessageType type = MessageType.fromCode(in.get());
+        int groupId = first == VERSION_3 ? in.getInt() : 0;
+        int nodeId = in.getInt();
+        int ballot = in.getInt();
+        int slot = first != VERSION_1 ? in.getInt() : 0;
+        int acceptedBallot = first != VERSION_1 ? in.getInt() : 0;
+        int value = in.getInt();
+        int[] commands = null;
+        if (first != VERSION_1 && length > fixedSize) {
+            commands = new int[(length - fixedSize) / 4];
+            for (int i = 0; i < commands.length; i++) {
+                commands[i] = in.getInt();
+            }
+        }
+        if (type == null) {
+            throw new ProtocolException("Unknown message type");
+        }
+        return new PaxosMessage(type, groupId, nodeId, ballot, slot, acceptedBallot, value, commands);
+    }
+
+    /**
+     * Decodes one payload of the given length, which holds either a single message or a bundle,
+     * and advances the position past it.
+     *
+     * @param in       The buffer holding the payload (the length prefix already consumed).
+     * @param length   The payload length read from the frame header.
+     * @param messages Receives every decoded message, in the order they were bundled.
+     * @throws ProtocolException If the payload or any bundled frame is malformed.
+     */
+    public static void decodeFrame(ByteBuffer in, int length, Consumer<PaxosMessage> messages) throws ProtocolException {
+        if (length <= 0 || length > in.remaining()) {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+        if (in.get(in.position()) != BUNDLE) {
+            messages.accept(decode(in, length));
+            return;
+        }
+        if (length < BUNDLE_HEADER_SIZE) {
+            throw new ProtocolException("Invalid bundle length " + length);
+        }
+
+        int end = in.position() + length;
+        in.get(); // bundle marker
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            if (end - in.position() < FRAME_HEADER_SIZE) {
+                throw new ProtocolException("Truncated bundle");
+            }
+            int nested = in.getInt();
+            if (nested <= 0 || nested > end - in.position() || in.get(in.position()) == BUNDLE) {
+                throw new ProtocolException("Invalid bundled frame length " + nested);
+            }
+            messages.accept(decode(in, nested));
+        }
+        if (in.position() != end) {
+            throw new ProtocolException("Bundle length does not match its frames");
+        }
+    }
+
+    /**
+     * Checks a frame header before the payload is read.
+     *
+     * @param length The payload length read from the header.
+     * @throws ProtocolException If the length cannot belong to a valid frame.
+     */
+    public static void checkFrameLength(int length) throws ProtocolException {
+        if (length <= 0 || length > MAX_FRAME_SIZE) {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+    }
+
+    private static PaxosMessage decodeText(ByteBuffer in, int length) throws ProtocolException {
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        String[] parts = new String(bytes, StandardCharsets.UTF_8).split(":");
+        int at = parts[0].indexOf('@');
+        MessageType type = MessageType.fromTextName(at < 0 ? parts[0] : parts[0].substring(0, at));
+        if (type == null || parts.length < 3) {
+            throw new ProtocolException("Malformed text message");
+        }
+        try {
+            int groupId = at < 0 ? 0 : Integer.parseInt(parts[0].substring(at + 1));
+            int nodeId = Integer.parseInt(parts[1]);
+            int value = Integer.parseInt(parts[2]);
+            int ballot = parts.length > 3 ? Integer.parseInt(parts[3]) : value;
+            int slot = parts.length > 5 ? Integer.parseInt(parts[4]) : 0;
+            int acceptedBallot = parts.length > 5 ? Integer.parseInt(parts[5]) : 0;
+            int[] commands = null;
+            if (parts.length > 6) {
+                String[] batch = parts[6].split(",");
+                commands = new int[batch.length];
+                for (int i = 0; i < batch.length; i++) {
+                    commands[i] = Integer.parseInt(batch[i]);
+                }
+            }
+            return new PaxosMessage(type, groupId, nodeId, ballot, slot, acceptedBallot, value, commands);
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Malformed text message");
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package paxos;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The protocol messages exchanged between Paxos nodes.
+ *
+ * Each type has a one-byte code used by the binary wire format and the name used by the
+ * text debug format ("type:nodeId:value"). The LOG_ types belong to the Multi-Paxos
+ * replicated log and are handled by `MultiPaxos`.
+ */
+public enum MessageType {
+    PROPOSE(1, "propose"),
+    PROMISE(2, "promise"),
+    ACCEPT(3, "accept"),
+    DECLARE_LEADER(4, "declareLeader"),
+    LOG_PREPARE(5, "logPrepare"),
+    LOG_PROMISE(6, "logPromise"),
+    LOG_PROMISE_ENTRY(7, "logPromiseEntry"),
+    LOG_ACCEPT(8, "logAccept"),
+    LOG_ACCEPTED(9, "logAccepted"),
+    LOG_COMMIT(10, "logCommit"),
+    LOG_NACK(11, "logNack"),
+    LOG_LEASE(12, "logLease"),
+    LOG_LEASE_GRANT(13, "logLeaseGrant"),
+    REJECT(14, "reject"),
+    HEARTBEAT(15, "heartbeat"),
+    HEARTBEAT_ACK(16, "heartbeatAck"),
+    LOG_FAST_ANY(17, "logFastAny"),
+    LOG_FAST_ACCEPT(18, "logFastAccept"),
+    LOG_FAST_ACCEPTED(19, "logFastAccepted"),
+    LOG_READ_INDEX(20, "logReadIndex"),
+    LOG_READ_INDEX_REPLY(21, "logReadIndexReply"),
+    LOG_SNAPSHOT(22, "logSnapshot");
+
+    private static final MessageType[] BY_CODE = new MessageType[256];
+    private static final Set<MessageType> LOG_TYPES = EnumSet.range(LOG_PREPARE, LOG_LEASE_GRANT);
+
+    static {
+        LOG_TYPES.addAll(EnumSet.range(LOG_FAST_ANY, LOG_SNAPSHOT));
+        for (MessageType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
+
+    private final byte code;
+    private final String textName;
+
+    MessageType(int code, String textName) {
+        this.code = (byte) code;
+        this.textName = textName;
+    }
+
+    public byte code() {
+        return code;
+    }
+
+    public String textName() {
+        return textName;
+    }
+
+    /**
+     * Returns whether this type belongs to the Multi-Paxos replicated log.
+     */
+    public boolean isLogMessage() {
+        return LOG_TYPES.contains(this);
+    }
+
+    /**
+     * Looks up a message type by its binary code.
+     *
+     * @param code The one-byte code read from the wire.
+     * @return     The matching type, or null if the code is unknown.
+     */
+    public static MessageType fromCode(byte code) {
+        return BY_CODE[code & 0xFF];
+    }
+
+    /**
+     * Looks up a message type by its text debug name.
+     *
+     * @param textName The name read from a text frame, e.g. "promise".
+     * @return         The matching type, or null if the name is unknown.
+     */
+    public static MessageType fromTextName(String textName) {
+        for (MessageType type : values()) {
+            if (type.textName.equals(textName)) {
+                return type;
+            }
+        }
+        return null;
+    }
+}
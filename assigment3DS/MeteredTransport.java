@@ -0,0 +1,62 @@
+package paxos;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * A transport decorator that counts every message a node sends, receives or fails to deliver.
+ */
+public class MeteredTransport implements Transport {
+    private final Transport delegate;
+    private final NodeMetrics metrics;
+
+    /**
+     * Constructor for the MeteredTransport class.
+     *
+     * @param delegate The transport that actually carries the messages.
+     * @param metrics  The metrics of the node using the transport.
+     */
+    public MeteredTransport(Transport delegate, NodeMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the wrapped transport.
+     */
+    public Transport delegate() {
+        return delegate;
+    }
+
+    @Override
+    public void start(int nodeId, Executor executor, Consumer<PaxosMessage> inbound) throws IOException {
+        delegate.start(nodeId, executor, message -> {
+            metrics.messageReceived(message.type());
+            inbound.accept(message);
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> send(int targetNodeId, PaxosMessage message) {
+        metrics.messageSent(message.type());
+        CompletableFuture<Void> delivery = delegate.send(targetNodeId, message);
+        delivery.whenComplete((ignored, failure) -> {
+            if (failure != null) {
+                metrics.messageDropped();
+            }
+        });
+        return delivery;
+    }
+
+    @Override
+    public String describe() {
+        return delegate.describe();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+}
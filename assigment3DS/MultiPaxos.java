@@ -0,0 +1,1808 @@
+package paxos;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+
+/**
+ * A Multi-Paxos replicated log hosted by a PaxosNode.
+ *
+ * Proposer nodes compete for leadership of the whole log with a single phase 1 (LOG_PREPARE /
+ * LOG_PROMISE) that covers every slot from the first undecided one onwards. Once a quorum of
+ * acceptors has promised, the leader commits each batch of submitted commands with one phase 2
+ * round (LOG_ACCEPT / LOG_ACCEPTED) and announces the decision with LOG_COMMIT. Every node
+ * applies decided slots strictly in slot order.
+ *
+ * Submitted commands are grouped into batches of up to `maxBatchSize` commands, or whatever has
+ * arrived within `maxBatchDelayMicros` of the first command of the batch. Up to `pipelineWindow`
+ * slots may be in phase 2 at once; further batches wait until a slot is decided.
+ *
+ * With a write-ahead log configured, an acceptor records each promise and accept before
+ * answering it, so a restarted acceptor never contradicts what it promised before the crash, and
+ * a proposer records each ballot before preparing it, so a restarted proposer never reuses one.
+ * When the log is compacted and the applier is a StateMachine, the acceptor records a snapshot of
+ * the applied state instead of its entries for the applied slots. A proposer that prepares or reads
+ * from a slot the snapshot covers is sent the snapshot (LOG_SNAPSHOT) instead of a promise; it
+ * installs it and prepares again from the slot after, so no dropped slot is ever filled anew.
+ *
+ * Acceptors that the node's failure detector suspects are left out of phase 1, phase 2 and lease
+ * heartbeats as long as the remaining acceptors can still form the quorum of that phase.
+ *
+ * With leases enabled, an acceptor that promises a ballot also grants its proposer a lease of
+ * `leaseMillis`, renewed by the leader's LOG_LEASE heartbeats, and promises no other proposer
+ * until the lease has run out. Once a phase-2 quorum has granted the lease, no other proposer
+ * can complete phase 1, so the leader serves `read`s from its own applied state.
+ *
+ * In fast mode, a leader that has completed phase 1 opens a fast round (LOG_FAST_ANY) for every
+ * slot after those it recovered. Any proposer, leader or not, then sends its batches straight to
+ * the acceptors (LOG_FAST_ACCEPT) in a slot it picks itself, and each acceptor votes for the first
+ * batch it receives in a slot. A batch is decided once a fast quorum of acceptors, larger than a
+ * classic one, has voted for it, which its proposer learns from the votes one round trip after
+ * sending it. When proposers collide on a slot, the leader coordinates: as soon as the votes of a
+ * phase-1 quorum show that no batch can still reach a fast quorum, it picks the one batch that a
+ * fast quorum may have chosen, or the most voted one, and decides it with a classic phase 2 in the
+ * same ballot. A proposer whose batch lost its slot proposes it again in a fresh one. Batches are
+ * compared by value, so equal batches from different proposers count as one. Reads do not use
+ * leases in fast mode, since other proposers decide slots the leader has not heard of yet.
+ *
+ * All state is guarded by one lock; messages are only sent after the lock is released. Decided
+ * commands are applied while holding the lock, which keeps them in slot order even when
+ * decisions are learned on several threads at once.
+ */
+public class MultiPaxos {
+    // Ballots are round * BALLOT_STRIDE + nodeId, so ballots of different proposers never collide
+    private static final int BALLOT_STRIDE = 1024;
+
+    // The batch used to fill slots that a new leader finds undecided and empty
+    private static final int[] NO_OP = new int[0];
+
+    private static final int DEFAULT_PIPELINE_WINDOW = 64;
+
+    // The value of a LOG_PROMISE_ENTRY that reports a fast-round vote rather than a classic accept
+    private static final int FAST_VOTE = 1;
+
+    private static final ScheduledExecutorService BATCH_TIMER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "multipaxos-batch-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Receives decided commands in slot order, and in submission order within a slot.
+     */
+    public interface Applier {
+        void apply(int slot, int command);
+    }
+
+    /**
+     * The part of a transport the log sends through. Receiving is left to the hosting node, which
+     * passes the log's messages to `handleMessage`, so a log never starts or closes a transport.
+     */
+    public interface Sender {
+        /**
+         * Sends a message to another node.
+         *
+         * @param targetNodeId The ID of the target node.
+         * @param message      The message to be sent.
+         * @return             A future that completes once the message has been handed to the target.
+         */
+        CompletableFuture<Void> send(int targetNodeId, PaxosMessage message);
+
+        /**
+         * Returns a human-readable description of the local endpoint, used in logs.
+         */
+        String describe();
+    }
+
+    /**
+     * An applier that can also save and restore the state it has built. Only with such an applier
+     * does a compaction drop the accepted entries of applied slots. A snapshot travels in a single
+     * message, so it must fit in one frame (`MessageCodec.MAX_FRAME_SIZE`).
+     */
+    public interface StateMachine extends Applier {
+        /**
+         * Returns the state built from every command applied so far, as words `restore` accepts.
+         */
+        int[] snapshot();
+
+        /**
+         * Replaces the state with one returned by `snapshot`, on this node or on another one.
+         */
+        void restore(int[] snapshot);
+    }
+
+    private enum Role { FOLLOWER, PREPARING, LEADING }
+
+    private final int nodeId;
+    private final List<Integer> peerIds;
+    private final List<Integer> acceptorIds = new ArrayList<>();
+    private final boolean isProposer;
+    private final Sender transport;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile Applier applier = (slot, command) -> { };
+    private WriteAheadLog wal;
+    private volatile NodeMetrics metrics = new NodeMetrics(0);
+    private Clock clock = Clock.system(BATCH_TIMER);
+    private QuorumSystem quorums;
+    // The acceptors each phase is sent to: every acceptor not suspected to have failed
+    private Set<Integer> suspectedPeers = Collections.emptySet();
+    private List<Integer> phase1Targets;
+    private List<Integer> phase2Targets;
+    private List<Integer> fastTargets;
+    private int fastQuorumSize;
+
+    // Acceptor state
+    private int promisedBallot = 0;
+    private final NavigableMap<Integer, AcceptedEntry> acceptedEntries = new TreeMap<>();
+    // Every entry up to this slot was replaced by a snapshot when the write-ahead log was compacted
+    private int compactedThrough = 0;
+
+    // Learner state
+    private final Map<Integer, int[]> decided = new HashMap<>();
+    private int appliedThrough = 0;
+
+    // Proposer state
+    private Role role = Role.FOLLOWER;
+    private int ballot = 0;
+    private int highestSeenBallot = 0;
+    private int nextSlot = 1;
+    private final Map<Integer, Integer> expectedEntries = new HashMap<>();
+    private final Map<Integer, Integer> receivedEntries = new HashMap<>();
+    private final Set<Integer> promisedAcceptors = new HashSet<>();
+    private final Map<Integer, AcceptedEntry> recoveredEntries = new HashMap<>();
+    // The fast votes reported for each slot whose highest recovered entry is a fast vote, by acceptor
+    private final Map<Integer, Map<Integer, int[]>> recoveredVotes = new HashMap<>();
+    private final Map<Integer, Proposal> inFlight = new HashMap<>();
+    private final Deque<Proposal> readyBatches = new ArrayDeque<>();
+
+    // Batching and pipelining
+    private int maxBatchSize = 1;
+    private long maxBatchDelayMicros = 0;
+    private int pipelineWindow = DEFAULT_PIPELINE_WINDOW;
+    private int[] pendingCommands = new int[16];
+    private int pendingCount = 0;
+    private final List<CompletableFuture<Integer>> pendingFutures = new ArrayList<>();
+    private long batchesCut = 0;
+
+    // Leader leases; disabled while leaseNanos is 0
+    private long leaseNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("paxos.lease.ms", 0));
+    private double maxClockDrift = Double.parseDouble(System.getProperty("paxos.lease.drift", "0.01"));
+    // Acceptor: the ballot holding this acceptor's lease (-1 for any ballot, after a restart) and
+    // when the lease runs out on this acceptor's clock
+    private int leaseGrantedTo = 0;
+    private long leaseGrantedUntil;
+    // Leader: when its lease runs out on its own clock, and the heartbeat rounds awaiting grants
+    private boolean leaseHeld = false;
+    private long leaseHeldUntil;
+    private long phase1StartNanos;
+    private int leaseRound = 0;
+    private final Map<Integer, LeaseRound> leaseRounds = new HashMap<>();
+    private ScheduledFuture<?> leaseRenewal;
+
+    // Reads: every slot up to readIndex may have been reported decided to a client
+    private int readIndex = 0;
+    private final PriorityQueue<PendingRead> pendingReads = new PriorityQueue<>();
+
+    // Fast Paxos; disabled unless fastPaxos is set
+    private boolean fastPaxos = Boolean.getBoolean("paxos.fast");
+    private long fastTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("paxos.fast.timeout.ms", 50));
+    // Acceptor: the fast round it votes in, from slot fastFrom onwards
+    private int fastBallot = 0;
+    private int fastFrom;
+    // Proposer: the latest fast round it has heard of, its own batches in it, and the highest slot
+    // it knows any acceptor to have accepted
+    private int openFastBallot = 0;
+    private int openFastFrom;
+    private final Map<Integer, Proposal> fastInFlight = new HashMap<>();
+    private int highestSlotSeen = 0;
+    // Coordinator: the votes reported for each undecided slot of its fast round
+    private final Map<Integer, FastSlot> fastVotes = new HashMap<>();
+    private ScheduledFuture<?> fastCheck;
+    // Follower: fires phase 1 if no coordinator has opened a fast round within a fast timeout
+    private ScheduledFuture<?> fastFallback;
+    // Fast-mode reads awaiting the highest accepted slot from a phase-1 quorum
+    private int readRound = 0;
+    private final Map<Integer, IndexRead> indexReads = new HashMap<>();
+
+    /**
+     * Constructor for the MultiPaxos class.
+     *
+     * @param nodeId      The ID of the hosting node.
+     * @param peerIds     The IDs of every node in the cluster, including the hosting node.
+     * @param proposerIds The IDs of the proposer nodes; every other node is an acceptor.
+     * @param transport   Sends this log's messages to the other nodes.
+     */
+    public MultiPaxos(int nodeId, List<Integer> peerIds, Set<Integer> proposerIds, Sender transport) {
+        this.nodeId = nodeId;
+        this.peerIds = peerIds;
+        this.isProposer = proposerIds.contains(nodeId);
+        this.transport = transport;
+        for (int peerId : peerIds) {
+            if (!proposerIds.contains(peerId)) {
+                acceptorIds.add(peerId);
+            }
+        }
+        this.quorums = new MajorityQuorums(acceptorIds);
+        updateTargets();
+    }
+
+    /**
+     * Selects which sets of acceptors complete phase 1 and phase 2. With a phase-2 quorum
+     * smaller than a majority, each slot is decided by the first acceptors to answer.
+     *
+     * @param quorums The quorum system over this log's acceptors.
+     */
+    public void setQuorumSystem(QuorumSystem quorums) {
+        lock.lock();
+        try {
+            this.quorums = quorums;
+            updateTargets();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tells the log which peers are suspected to have failed, so that its messages skip them.
+     *
+     * @param suspected The suspected peers; the set is copied.
+     */
+    public void setSuspectedPeers(Set<Integer> suspected) {
+        lock.lock();
+        try {
+            this.suspectedPeers = new HashSet<>(suspected);
+            updateTargets();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void updateTargets() {
+        phase1Targets = targetsFor(QuorumSystem.Phase.ONE);
+        phase2Targets = targetsFor(QuorumSystem.Phase.TWO);
+        // Any phase-1 quorum shares an acceptor with any two fast quorums, so the votes of a phase-1
+        // quorum show which batch, if any, a fast quorum may have chosen
+        int acceptors = acceptorIds.size();
+        fastQuorumSize = (2 * acceptors - quorums.minimumSize(QuorumSystem.Phase.ONE)) / 2 + 1;
+        fastTargets = phase2Targets.size() >= fastQuorumSize ? phase2Targets : acceptorIds;
+    }
+
+    private List<Integer> targetsFor(QuorumSystem.Phase phase) {
+        List<Integer> live = new ArrayList<>();
+        for (int acceptorId : acceptorIds) {
+            if (!suspectedPeers.contains(acceptorId)) {
+                live.add(acceptorId);
+            }
+        }
+        // Too many suspects to form a quorum: the detector may be wrong, so try everyone
+        return quorums.isQuorum(phase, new HashSet<>(live)) ? live : acceptorIds;
+    }
+
+    /**
+     * Registers the callback that receives decided commands, in slot order.
+     *
+     * @param applier The state machine fed by this log.
+     */
+    public void setApplier(Applier applier) {
+        this.applier = applier;
+    }
+
+    /**
+     * Returns the registered applier.
+     *
+     * Package-private so that SimulationRunner can record the commands a KeyValueStore applies.
+     */
+    Applier applier() {
+        return applier;
+    }
+
+    /**
+     * Replaces the system clock that times batches and leases, e.g. with a Simulation's virtual
+     * clock. Must be called before the log is used.
+     *
+     * @param clock The clock to use.
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Makes this node's acceptor record its promises and accepts in a write-ahead log, and
+     * answer them only once the record is durable. Called by PaxosNode before it starts.
+     *
+     * @param wal The log, already replayed through `recover`.
+     */
+    public void setWriteAheadLog(WriteAheadLog wal) {
+        lock.lock();
+        try {
+            this.wal = wal;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Enables or disables leader leases. Must be called before the node starts, with the same
+     * settings on every node.
+     *
+     * @param leaseMillis   How long an acceptor's grant lasts on its own clock; 0 disables leases.
+     * @param maxClockDrift The largest relative rate difference between any node's clock and real
+     *                      time, e.g. 0.01 for 1%. The leader shortens its view of the lease so that
+     *                      it expires before any acceptor's grant, even with its clock running slow
+     *                      and theirs fast.
+     *
+     * Defaults to the "paxos.lease.ms" and "paxos.lease.drift" system properties (0 and 0.01).
+     */
+    public void setLeases(long leaseMillis, double maxClockDrift) {
+        lock.lock();
+        try {
+            this.leaseNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+            this.maxClockDrift = maxClockDrift;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Enables or disables Fast Paxos rounds. Must be called before the node starts, with the same
+     * settings on every node.
+     *
+     * @param enabled       Whether a new leader opens a fast round in which every proposer sends
+     *                      its batches straight to the acceptors.
+     * @param timeoutMillis How long a proposer waits for its batch to be decided before sending it
+     *                      again, and how long the leader lets a slot of its fast round stall before
+     *                      deciding it itself.
+     *
+     * Defaults to the "paxos.fast" and "paxos.fast.timeout.ms" system properties (false and 50).
+     */
+    public void setFastPaxos(boolean enabled, long timeoutMillis) {
+        lock.lock();
+        try {
+            this.fastPaxos = enabled;
+            this.fastTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, timeoutMillis));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records this log's commit latencies in the hosting node's metrics.
+     */
+    public void setMetrics(NodeMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the number of slots this node currently drives through phase 2, including its batches
+     * in a fast round.
+     */
+    public int inFlightSlots() {
+        lock.lock();
+        try {
+            return inFlight.size() + fastInFlight.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Restores one acceptor state change, or a ballot this node prepared, read from the write-ahead
+     * log.
+     *
+     * @param type   The kind of record; only the LOG_ records concern the log.
+     * @param fields The values of the record.
+     */
+    public void recover(WalRecordType type, int[] fields) {
+        lock.lock();
+        try {
+            if (type == WalRecordType.LOG_PROMISED) {
+                promisedBallot = Math.max(promisedBallot, fields[0]);
+                if (leaseNanos > 0) {
+                    // A lease granted before the crash is not in the log, so honour one for any ballot
+                    leaseGrantedTo = -1;
+                    leaseGrantedUntil = clock.nanoTime() + leaseNanos;
+                }
+            } else if (type == WalRecordType.LOG_ACCEPTED || type == WalRecordType.LOG_FAST_ACCEPTED) {
+                promisedBallot = Math.max(promisedBallot, fields[1]);
+                acceptedEntries.put(fields[0], new AcceptedEntry(fields[1], Arrays.copyOfRange(fields, 2, fields.length),
+                        type == WalRecordType.LOG_FAST_ACCEPTED));
+            } else if (type == WalRecordType.LOG_SNAPSHOT) {
+                installSnapshot(fields[0], Arrays.copyOfRange(fields, 1, fields.length));
+                compactedThrough = Math.max(compactedThrough, fields[0]);
+            } else if (type == WalRecordType.LOG_PREPARED) {
+                ballot = Math.max(ballot, fields[0]);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rewrites a write-ahead log as a snapshot of this log's acceptor state. If the applier is a
+     * StateMachine, the accepted entries of every slot this node has applied are replaced by a
+     * snapshot of the applied state. Called by PaxosNode, outside any handler, once the log has
+     * grown past its compaction threshold.
+     *
+     * @param wal    The log this acceptor records in.
+     * @param shared Writes the records of the hosting node's other state kept in the same log,
+     *               while this log's lock is held.
+     */
+    public void compact(WriteAheadLog wal, WriteAheadLog.SnapshotWriter shared) {
+        lock.lock();
+        try {
+            int[] state = null;
+            if (applier instanceof StateMachine && appliedThrough > 0) {
+                state = ((StateMachine) applier).snapshot();
+                acceptedEntries.headMap(appliedThrough, true).clear();
+                compactedThrough = appliedThrough;
+            }
+            int[] snapshot = state;
+            wal.compact(out -> {
+                shared.write(out);
+                out.onRecord(WalRecordType.LOG_PROMISED, new int[] {promisedBallot});
+                if (ballot > 0) {
+                    out.onRecord(WalRecordType.LOG_PREPARED, new int[] {ballot});
+                }
+                if (snapshot != null) {
+                    int[] fields = new int[1 + snapshot.length];
+                    fields[0] = compactedThrough;
+                    System.arraycopy(snapshot, 0, fields, 1, snapshot.length);
+                    out.onRecord(WalRecordType.LOG_SNAPSHOT, fields);
+                }
+                for (Map.Entry<Integer, AcceptedEntry> entry : acceptedEntries.entrySet()) {
+                    AcceptedEntry accepted = entry.getValue();
+                    out.onRecord(accepted.fast ? WalRecordType.LOG_FAST_ACCEPTED : WalRecordType.LOG_ACCEPTED,
+                            entryFields(entry.getKey(), accepted.ballot, accepted.commands));
+                }
+            });
+            AsyncLogger.info("Node " + nodeId + " compacted " + wal.path() + " through slot " + compactedThrough
+                    + ", keeping " + acceptedEntries.size() + " entries");
+        } catch (IOException e) {
+            AsyncLogger.info("Node " + nodeId + " could not compact " + wal.path() + ": " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Configures how submitted commands are grouped into one log entry.
+     *
+     * @param maxBatchSize        The number of command words that closes a batch immediately.
+     * @param maxBatchDelayMicros How long the first command of a batch may wait for more commands
+     *                            before the batch is closed anyway. Zero closes every batch as
+     *                            soon as its first command arrives.
+     *
+     * Defaults to batches of one command without delay.
+     */
+    public void setBatching(int maxBatchSize, long maxBatchDelayMicros) {
+        lock.lock();
+        try {
+            this.maxBatchSize = Math.max(1, maxBatchSize);
+            this.maxBatchDelayMicros = Math.max(0, maxBatchDelayMicros);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Configures how many slots the leader may have in phase 2 at the same time.
+     *
+     * @param pipelineWindow The maximum number of undecided slots; 1 disables pipelining.
+     *
+     * Defaults to 64.
+     */
+    public void setPipelineWindow(int pipelineWindow) {
+        lock.lock();
+        try {
+            this.pipelineWindow = Math.max(1, pipelineWindow);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Submits a command to the replicated log.
+     *
+     * @param command The command to replicate.
+     * @return        A future that completes with the slot the command was decided in. It fails
+     *                if this node is not a proposer or if its leadership is preempted before
+     *                the command is decided.
+     *
+     * The command joins the open batch. A leader starts phase 2 for closed batches as long as
+     * the pipeline window has room, and so does any proposer while a fast round is open; any other
+     * proposer keeps the batches and first runs phase 1 to become leader.
+     */
+    public CompletableFuture<Integer> submit(int command) {
+        return submit(new int[] {command});
+    }
+
+    /**
+     * Submits a command made of several words, which are decided in the same slot and handed
+     * to the applier one after another, with no other command's words in between.
+     *
+     * @param words The words of the command, at least one.
+     * @return      A future that completes with the slot the command was decided in, as for
+     *              `submit(int)`.
+     *
+     * Batch sizes count words, but a batch is only closed between commands.
+     */
+    public CompletableFuture<Integer> submit(int[] words) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        if (!isProposer) {
+            future.completeExceptionally(new IllegalStateException("Node " + nodeId + " is not a proposer"));
+            return future;
+        }
+
+        List<Runnable> sends = new ArrayList<>();
+        lock.lock();
+        try {
+            if (pendingCount + words.length > pendingCommands.length) {
+                pendingCommands = Arrays.copyOf(pendingCommands, Math.max(pendingCommands.length * 2, pendingCount + words.length));
+            }
+            boolean opened = pendingCount == 0;
+            System.arraycopy(words, 0, pendingCommands, pendingCount, words.length);
+            pendingCount += words.length;
+            pendingFutures.add(future);
+
+            if (pendingCount >= maxBatchSize || maxBatchDelayMicros == 0) {
+                cutBatch();
+            } else if (opened) {
+                long batch = batchesCut;
+                clock.schedule(() -> flushBatch(batch), TimeUnit.MICROSECONDS.toNanos(maxBatchDelayMicros));
+            }
+            resume(sends);
+        } finally {
+            lock.unlock();
+        }
+        runAll(sends);
+        return future;
+    }
+
+    /**
+     * Runs a linearizable read against the state machine fed by this log.
+     *
+     * @param query Reads the state machine; it runs while the log's lock is held, after every
+     *              command decided before the read was issued has been applied.
+     * @return      A future that completes with the query's result. It fails if this node is not a
+     *              proposer or if its leadership is preempted before the read could be ordered.
+     *
+     * A leader holding a valid lease answers from its local state as soon as it has applied every
+     * slot it knows to be decided, without contacting any other node. Otherwise the read is
+     * ordered through the log: an empty slot is decided first and the query runs once it is applied.
+     * In fast mode the read instead asks a phase-1 quorum of acceptors for the highest slot they have
+     * accepted or compacted, which is at or after every slot decided before the read was issued, and
+     * the query runs once that slot is applied.
+     */
+    public <T> CompletableFuture<T> read(Supplier<T> query) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (!isProposer) {
+            result.completeExceptionally(new IllegalStateException("Node " + nodeId + " is not a proposer"));
+            return result;
+        }
+
+        List<Runnable> sends = new ArrayList<>();
+        lock.lock();
+        try {
+            if (fastPaxos) {
+                int round = ++readRound;
+                indexReads.put(round, new IndexRead(index -> readAt(index, query, result)));
+                PaxosMessage ask = new PaxosMessage(MessageType.LOG_READ_INDEX, nodeId, 0, firstUndecidedSlot(), 0, round);
+                for (int acceptorId : phase1Targets) {
+                    sends.add(send(acceptorId, ask));
+                }
+            } else if (role == Role.LEADING && holdsLease()) {
+                readAt(readIndex, query, result);
+            } else {
+                CompletableFuture<Integer> barrier = new CompletableFuture<>();
+                barrier.whenComplete((slot, error) -> {
+                    if (error != null) {
+                        result.completeExceptionally(error);
+                        return;
+                    }
+                    lock.lock();
+                    try {
+                        readAt(slot, query, result);
+                    } finally {
+                        lock.unlock();
+                    }
+                });
+                cutBatch();
+                readyBatches.add(new Proposal(NO_OP, new ArrayList<>(Collections.singletonList(barrier))));
+                resume(sends);
+            }
+        } finally {
+            lock.unlock();
+        }
+        runAll(sends);
+        return result;
+    }
+
+    /**
+     * Returns whether this node currently leads the log under a valid lease, so that `read`
+     * needs no round trip.
+     */
+    public boolean holdsLease() {
+        lock.lock();
+        try {
+            return role == Role.LEADING && leaseHeld && clock.nanoTime() - leaseHeldUntil < 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs phase 1 so that this proposer leads the log, without submitting a command.
+     */
+    public void becomeLeader() {
+        List<Runnable> sends = new ArrayList<>();
+        lock.lock();
+        try {
+            if (isProposer && role == Role.FOLLOWER) {
+                startPhase1(sends);
+            }
+        } finally {
+            lock.unlock();
+        }
+        runAll(sends);
+    }
+
+    /**
+     * Returns whether this node currently leads the log.
+     */
+    public boolean isLeader() {
+        lock.lock();
+        try {
+            return role == Role.LEADING;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the ID of the node this node believes leads the log, or -1 if it has not heard
+     * from any leader yet. The leader is identified by the highest ballot seen.
+     */
+    public int leaderId() {
+        lock.lock();
+        try {
+            if (role == Role.LEADING) {
+                return nodeId;
+            }
+            return highestSeenBallot > 0 ? highestSeenBallot % BALLOT_STRIDE : -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the highest slot applied on this node; every lower slot has been applied too.
+     */
+    public int appliedThrough() {
+        lock.lock();
+        try {
+            return appliedThrough;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Handles a replicated-log message. Called by PaxosNode for every LOG_ message type.
+     *
+     * @param message The received message.
+     */
+    public void handleMessage(PaxosMessage message) {
+        List<Runnable> sends = new ArrayList<>();
+        lock.lock();
+        try {
+            switch (message.type()) {
+                case LOG_PREPARE:
+                    onPrepare(message, sends);
+                    break;
+                case LOG_PROMISE_ENTRY:
+                    onPromiseEntry(message, sends);
+                    break;
+                case LOG_PROMISE:
+                    onPromise(message, sends);
+                    break;
+                case LOG_ACCEPT:
+                    onAccept(message, sends);
+                    break;
+                case LOG_ACCEPTED:
+                    onAccepted(message, sends);
+                    break;
+                case LOG_COMMIT:
+                    highestSeenBallot = Math.max(highestSeenBallot, message.ballot());
+                    learn(message.slot(), batchOf(message));
+                    break;
+                case LOG_NACK:
+                    onNack(message, sends);
+                    break;
+                case LOG_LEASE:
+                    onLease(message, sends);
+                    break;
+                case LOG_LEASE_GRANT:
+                    onLeaseGrant(message);
+                    break;
+                case LOG_FAST_ANY:
+                    onFastAny(message, sends);
+                    break;
+                case LOG_FAST_ACCEPT:
+                    onFastAccept(message, sends);
+                    break;
+                case LOG_FAST_ACCEPTED:
+                    onFastAccepted(message, sends);
+                    break;
+                case LOG_READ_INDEX:
+                    onReadIndex(message, sends);
+                    break;
+                case LOG_READ_INDEX_REPLY:
+                    onReadIndexReply(message);
+                    break;
+                case LOG_SNAPSHOT:
+                    onSnapshot(message, sends);
+                    break;
+                default:
+                    break;
+            }
+            if (fastPaxos && !readyBatches.isEmpty()) {
+                // A fast round may have opened, or a batch may have lost its slot to another proposer's
+                resume(sends);
+            }
+        } finally {
+            lock.unlock();
+        }
+        runAll(sends);
+    }
+
+    // ---- Acceptor ----
+
+    private void onPrepare(PaxosMessage message, List<Runnable> sends) {
+        int proposerId = message.nodeId();
+        if (message.ballot() <= promisedBallot) {
+            sends.add(send(proposerId, new PaxosMessage(MessageType.LOG_NACK, nodeId, promisedBallot, 0)));
+            return;
+        }
+        if (refuseForLease(proposerId, sends)) {
+            return;
+        }
+        if (message.slot() <= compactedThrough) {
+            // The proposer could not recover the slots this acceptor dropped: it gets the state they
+            // add up to instead of a promise, and prepares again from the slot after
+            sends.add(send(proposerId, snapshotMessage(message.ballot())));
+            return;
+        }
+        promisedBallot = message.ballot();
+        grantLease(promisedBallot);
+        CompletableFuture<Void> durable = record(WalRecordType.LOG_PROMISED, promisedBallot);
+
+        // Report every accepted entry at or after the proposer's first undecided slot, then the promise
+        // itself with the number of reports so the proposer knows when it has seen all of them
+        SortedMap<Integer, AcceptedEntry> reported = acceptedEntries.tailMap(message.slot());
+        for (Map.Entry<Integer, AcceptedEntry> entry : reported.entrySet()) {
+            AcceptedEntry accepted = entry.getValue();
+            sends.add(sendWhenDurable(durable, proposerId, new PaxosMessage(MessageType.LOG_PROMISE_ENTRY, nodeId,
+                    promisedBallot, entry.getKey(), accepted.ballot, accepted.fast ? FAST_VOTE : 0, accepted.commands)));
+        }
+        sends.add(sendWhenDurable(durable, proposerId, new PaxosMessage(MessageType.LOG_PROMISE, nodeId, promisedBallot,
+                message.slot(), 0, reported.size())));
+    }
+
+    private void onAccept(PaxosMessage message, List<Runnable> sends) {
+        int proposerId = message.nodeId();
+        if (message.ballot() < promisedBallot) {
+            sends.add(send(proposerId, new PaxosMessage(MessageType.LOG_NACK, nodeId, promisedBallot, 0)));
+            return;
+        }
+        promisedBallot = message.ballot();
+        int[] commands = batchOf(message);
+        acceptedEntries.put(message.slot(), new AcceptedEntry(message.ballot(), commands));
+        CompletableFuture<Void> durable = record(WalRecordType.LOG_ACCEPTED, entryFields(message.slot(), message.ballot(), commands));
+        sends.add(sendWhenDurable(durable, proposerId, new PaxosMessage(MessageType.LOG_ACCEPTED, nodeId,
+                message.ballot(), message.slot(), 0, message.value())));
+    }
+
+    /**
+     * Lets this acceptor vote in a fast round: from slot `slot` onwards, it accepts the first batch
+     * any proposer sends it under the round's ballot. Proposers only note the round.
+     */
+    private void onFastAny(PaxosMessage message, List<Runnable> sends) {
+        if (isProposer) {
+            highestSeenBallot = Math.max(highestSeenBallot, message.ballot());
+            if (role != Role.FOLLOWER && message.ballot() > ballot) {
+                stepDown(new IllegalStateException("Node " + nodeId + " was preempted by ballot " + message.ballot()),
+                        fastPaxos);
+            }
+            if (message.ballot() >= openFastBallot) {
+                openFastBallot = message.ballot();
+                openFastFrom = message.slot();
+            }
+            return;
+        }
+        if (message.ballot() < promisedBallot) {
+            sends.add(send(message.nodeId(), new PaxosMessage(MessageType.LOG_NACK, nodeId, promisedBallot, 0)));
+            return;
+        }
+        if (message.ballot() > promisedBallot) {
+            promisedBallot = message.ballot();
+            record(WalRecordType.LOG_PROMISED, promisedBallot);
+        }
+        fastBallot = message.ballot();
+        fastFrom = message.slot();
+    }
+
+    /**
+     * Votes for a proposer's batch in a fast round, unless this acceptor already holds a batch for
+     * the slot in that round. Either way, the batch it holds is reported to the proposer and to the
+     * round's coordinator, together with the highest slot it holds anything for.
+     */
+    private void onFastAccept(PaxosMessage message, List<Runnable> sends) {
+        int proposerId = message.nodeId();
+        if (message.ballot() < promisedBallot) {
+            sends.add(send(proposerId, new PaxosMessage(MessageType.LOG_NACK, nodeId, promisedBallot, 0)));
+            return;
+        }
+        if (message.ballot() != fastBallot || message.slot() < fastFrom) {
+            // The round has not been opened here yet, or not for this slot: the proposer sends again
+            return;
+        }
+        if (message.slot() <= compactedThrough) {
+            // The slot is decided and its vote was dropped, so voting again could elect a second batch:
+            // the proposer, which has not learned the slot, gets the applied state instead
+            sends.add(send(proposerId, snapshotMessage(0)));
+            return;
+        }
+        AcceptedEntry held = acceptedEntries.get(message.slot());
+        CompletableFuture<Void> durable = CompletableFuture.completedFuture(null);
+        if (held == null || held.ballot < message.ballot()) {
+            held = new AcceptedEntry(message.ballot(), batchOf(message), true);
+            acceptedEntries.put(message.slot(), held);
+            durable = record(WalRecordType.LOG_FAST_ACCEPTED, entryFields(message.slot(), message.ballot(), held.commands));
+        }
+        PaxosMessage vote = new PaxosMessage(MessageType.LOG_FAST_ACCEPTED, nodeId, message.ballot(), message.slot(), 0,
+                acceptedEntries.lastKey(), held.commands);
+        sends.add(sendWhenDurable(durable, proposerId, vote));
+        int coordinatorId = message.ballot() % BALLOT_STRIDE;
+        if (coordinatorId != proposerId) {
+            sends.add(sendWhenDurable(durable, coordinatorId, vote));
+        }
+    }
+
+    /**
+     * Answers a fast-mode read with the highest slot this acceptor has accepted an entry for or
+     * compacted, preceded by a snapshot if the reader has not learned every compacted slot.
+     */
+    private void onReadIndex(PaxosMessage message, List<Runnable> sends) {
+        if (message.slot() <= compactedThrough) {
+            sends.add(send(message.nodeId(), snapshotMessage(0)));
+        }
+        int highest = acceptedEntries.isEmpty() ? 0 : acceptedEntries.lastKey();
+        sends.add(send(message.nodeId(), new PaxosMessage(MessageType.LOG_READ_INDEX_REPLY, nodeId, 0,
+                Math.max(highest, compactedThrough), 0, message.value())));
+    }
+
+    /**
+     * Returns the applied state of this node as a LOG_SNAPSHOT message in answer to `ballot`. Only
+     * sent once a compaction has taken a snapshot, so the applier is a StateMachine.
+     */
+    private PaxosMessage snapshotMessage(int ballot) {
+        int[] state = ((StateMachine) applier).snapshot();
+        return new PaxosMessage(MessageType.LOG_SNAPSHOT, nodeId, ballot, appliedThrough, 0, state.length, state);
+    }
+
+    private static int[] entryFields(int slot, int ballot, int[] commands) {
+        int[] fields = new int[2 + commands.length];
+        fields[0] = slot;
+        fields[1] = ballot;
+        System.arraycopy(commands, 0, fields, 2, commands.length);
+        return fields;
+    }
+
+    private void onLease(PaxosMessage message, List<Runnable> sends) {
+        int proposerId = message.nodeId();
+        if (message.ballot() < promisedBallot) {
+            sends.add(send(proposerId, new PaxosMessage(MessageType.LOG_NACK, nodeId, promisedBallot, 0)));
+            return;
+        }
+        boolean raised = message.ballot() > promisedBallot;
+        if (raised && refuseForLease(proposerId, sends)) {
+            return;
+        }
+        promisedBallot = message.ballot();
+        grantLease(promisedBallot);
+        CompletableFuture<Void> durable = raised
+                ? record(WalRecordType.LOG_PROMISED, promisedBallot) : CompletableFuture.completedFuture(null);
+        sends.add(sendWhenDurable(durable, proposerId, new PaxosMessage(MessageType.LOG_LEASE_GRANT, nodeId,
+                message.ballot(), message.value())));
+    }
+
+    /**
+     * Refuses a proposer while another proposer's lease granted by this acceptor is valid. The
+     * NACK carries the remaining lease time in milliseconds.
+     */
+    private boolean refuseForLease(int proposerId, List<Runnable> sends) {
+        long remaining = leaseGrantedUntil - clock.nanoTime();
+        if (leaseGrantedTo == 0 || remaining <= 0 || leaseGrantedTo % BALLOT_STRIDE == proposerId) {
+            return false;
+        }
+        int remainingMillis = (int) TimeUnit.NANOSECONDS.toMillis(remaining) + 1;
+        sends.add(send(proposerId, new PaxosMessage(MessageType.LOG_NACK, nodeId, promisedBallot, remainingMillis)));
+        return true;
+    }
+
+    private void grantLease(int ballot) {
+        if (leaseNanos > 0) {
+            leaseGrantedTo = ballot;
+            leaseGrantedUntil = clock.nanoTime() + leaseNanos;
+        }
+    }
+
+    // ---- Proposer ----
+
+    private void startPhase1(List<Runnable> sends) {
+        int round = Math.max(ballot, highestSeenBallot) / BALLOT_STRIDE + 1;
+        ballot = round * BALLOT_STRIDE + nodeId;
+        role = Role.PREPARING;
+        phase1StartNanos = clock.nanoTime();
+        expectedEntries.clear();
+        receivedEntries.clear();
+        promisedAcceptors.clear();
+        recoveredEntries.clear();
+        recoveredVotes.clear();
+
+        // A restarted proposer must not prepare a ballot again: promises to its earlier prepare may
+        // still be on their way, and they cover only the slots that instance had not decided
+        CompletableFuture<Void> durable = record(WalRecordType.LOG_PREPARED, ballot);
+        PaxosMessage prepare = new PaxosMessage(MessageType.LOG_PREPARE, nodeId, ballot, firstUndecidedSlot(), 0, 0);
+        for (int acceptorId : phase1Targets) {
+            sends.add(sendWhenDurable(durable, acceptorId, prepare));
+        }
+    }
+
+    private void onPromiseEntry(PaxosMessage message, List<Runnable> sends) {
+        if (role != Role.PREPARING || message.ballot() != ballot) {
+            return;
+        }
+        AcceptedEntry reported = new AcceptedEntry(message.acceptedBallot(), batchOf(message), message.value() == FAST_VOTE);
+        AcceptedEntry known = recoveredEntries.get(message.slot());
+        if (known == null || reported.outranks(known)) {
+            recoveredEntries.put(message.slot(), reported);
+            recoveredVotes.remove(message.slot());
+            known = reported;
+        }
+        if (reported.fast && known.fast && reported.ballot == known.ballot) {
+            recoveredVotes.computeIfAbsent(message.slot(), s -> new HashMap<>()).put(message.nodeId(), reported.commands);
+        }
+        receivedEntries.merge(message.nodeId(), 1, Integer::sum);
+        countPromise(message.nodeId(), sends);
+    }
+
+    private void onPromise(PaxosMessage message, List<Runnable> sends) {
+        if (role != Role.PREPARING || message.ballot() != ballot) {
+            return;
+        }
+        expectedEntries.put(message.nodeId(), message.value());
+        countPromise(message.nodeId(), sends);
+    }
+
+    /**
+     * Counts an acceptor's promise once both the promise and all the entries it announced have
+     * arrived, and takes over the log when a quorum has been counted.
+     */
+    private void countPromise(int acceptorId, List<Runnable> sends) {
+        Integer expected = expectedEntries.get(acceptorId);
+        if (expected == null || receivedEntries.getOrDefault(acceptorId, 0) < expected) {
+            return;
+        }
+        promisedAcceptors.add(acceptorId);
+        if (promisedAcceptors.size() >= quorums.minimumSize(QuorumSystem.Phase.ONE)
+                && quorums.isQuorum(QuorumSystem.Phase.ONE, promisedAcceptors)) {
+            takeOverLog(sends);
+        }
+    }
+
+    /**
+     * Completes phase 1: re-proposes every entry reported by the quorum under the new ballot,
+     * fills gaps with no-ops so later slots can be applied, and starts the queued batches. In fast
+     * mode it then opens a fast round for every later slot.
+     *
+     * Recovered slots are re-proposed regardless of the pipeline window, since no later slot can
+     * be applied before they are decided. This node's own batches in an earlier fast round are
+     * settled here too: one that a fast quorum may have chosen keeps its slot.
+     */
+    private void takeOverLog(List<Runnable> sends) {
+        role = Role.LEADING;
+        AsyncLogger.log(LogEvent.LOG_LEADER, nodeId, ballot);
+        if (leaseNanos > 0) {
+            // The promises granted a lease from the moment the prepare was sent
+            if (quorums.isQuorum(QuorumSystem.Phase.TWO, promisedAcceptors)) {
+                extendLease(phase1StartNanos);
+            }
+            long period = leaseNanos / 3;
+            int term = ballot;
+            leaseRenewal = clock.scheduleAtFixedRate(() -> renewLease(term), period);
+        }
+
+        // Proposals left over from an earlier term of this leader are re-proposed under the new ballot
+        Map<Integer, Proposal> previousTerm = new TreeMap<>(inFlight);
+        inFlight.clear();
+
+        int firstUndecided = firstUndecidedSlot();
+        int lastRecovered = firstUndecided - 1;
+        for (int slot : recoveredEntries.keySet()) {
+            lastRecovered = Math.max(lastRecovered, slot);
+        }
+        for (int slot : fastInFlight.keySet()) {
+            lastRecovered = Math.max(lastRecovered, slot);
+        }
+        List<Proposal> displaced = new ArrayList<>();
+        for (int slot = firstUndecided; slot <= lastRecovered; slot++) {
+            if (decided.containsKey(slot)) {
+                continue;
+            }
+            Proposal own = fastInFlight.get(slot);
+            Proposal existing = previousTerm.remove(slot);
+            Proposal proposal = new Proposal(recoveredBatch(slot, own != null ? own.commands : NO_OP), new ArrayList<>());
+            if (existing != null && Arrays.equals(existing.commands, proposal.commands)) {
+                proposal = existing;
+            } else if (existing != null) {
+                // Our earlier batch for this slot lost to one another leader got accepted
+                displaced.add(existing);
+            }
+            if (own != null && Arrays.equals(own.commands, proposal.commands)) {
+                // Our fast batch keeps its slot; any other one waits to learn what was decided
+                fastInFlight.remove(slot).timer.cancel(false);
+                proposal.futures.addAll(own.futures);
+            }
+            startPhase2(slot, proposal, sends);
+        }
+        nextSlot = Math.max(nextSlot, lastRecovered + 1);
+        // A previous leader may have reported any recovered slot as decided
+        readIndex = Math.max(readIndex, lastRecovered);
+
+        // Earlier batches that did not keep their slot go to fresh slots ahead of newer ones; those
+        // nobody waits for, such as re-proposed entries and no-ops, are dropped
+        displaced.addAll(previousTerm.values());
+        displaced.removeIf(proposal -> proposal.futures.isEmpty());
+        for (int i = displaced.size() - 1; i >= 0; i--) {
+            readyBatches.addFirst(displaced.get(i));
+        }
+
+        if (fastPaxos) {
+            openFastBallot = ballot;
+            openFastFrom = lastRecovered + 1;
+            PaxosMessage any = new PaxosMessage(MessageType.LOG_FAST_ANY, nodeId, ballot, openFastFrom, 0, 0);
+            for (int peerId : peerIds) {
+                if (peerId != nodeId) {
+                    sends.add(send(peerId, any));
+                }
+            }
+            int term = ballot;
+            fastCheck = clock.scheduleAtFixedRate(() -> checkFastRound(term), fastTimeoutNanos);
+        }
+        dispatch(sends);
+    }
+
+    /**
+     * Returns the batch a new leader must propose in a slot after phase 1: the batch of the highest
+     * classic entry reported, the batch a fast quorum may have chosen if the highest entries are
+     * fast votes, or `otherwise` if no entry was reported or no fast quorum can have chosen any.
+     */
+    private int[] recoveredBatch(int slot, int[] otherwise) {
+        AcceptedEntry recovered = recoveredEntries.get(slot);
+        if (recovered == null) {
+            return otherwise;
+        }
+        if (!recovered.fast) {
+            return recovered.commands;
+        }
+        return fastChoice(recoveredVotes.get(slot), promisedAcceptors, otherwise);
+    }
+
+    /**
+     * Returns the batch that a fast quorum may have chosen in a round, judging by the round's votes
+     * from the acceptors of a phase-1 quorum, or `otherwise` if no fast quorum can have chosen any.
+     *
+     * A fast quorum chose a batch only if every acceptor it shares with the phase-1 quorum voted for
+     * that batch, and it shares at least |quorum| - n + fastQuorumSize of them. Any phase-1 quorum
+     * and any two fast quorums intersect, so at most one batch has that many votes.
+     *
+     * @param votes  The batch each acceptor voted for in the round; acceptors outside `quorum` are
+     *               ignored, and acceptors in it without a vote count as having voted for no batch.
+     * @param quorum The phase-1 quorum whose votes are known.
+     */
+    private int[] fastChoice(Map<Integer, int[]> votes, Set<Integer> quorum, int[] otherwise) {
+        int needed = quorum.size() - acceptorIds.size() + fastQuorumSize;
+        for (Map.Entry<Integer, int[]> vote : votes.entrySet()) {
+            if (!quorum.contains(vote.getKey())) {
+                continue;
+            }
+            int count = 0;
+            for (Map.Entry<Integer, int[]> other : votes.entrySet()) {
+                if (quorum.contains(other.getKey()) && Arrays.equals(other.getValue(), vote.getValue())) {
+                    count++;
+                }
+            }
+            if (count >= needed) {
+                return vote.getValue();
+            }
+        }
+        return otherwise;
+    }
+
+    /**
+     * Closes the open batch and queues it for phase 2.
+     */
+    private void cutBatch() {
+        if (pendingCount == 0) {
+            return;
+        }
+        readyBatches.add(new Proposal(Arrays.copyOf(pendingCommands, pendingCount), new ArrayList<>(pendingFutures)));
+        pendingCount = 0;
+        pendingFutures.clear();
+        batchesCut++;
+    }
+
+    /**
+     * Closes the batch that was open when its delay timer was armed, unless it has already been
+     * closed because it filled up.
+     */
+    private void flushBatch(long batch) {
+        List<Runnable> sends = new ArrayList<>();
+        lock.lock();
+        try {
+            if (batchesCut == batch) {
+                cutBatch();
+                if (role == Role.LEADING || fastRoundOpen()) {
+                    dispatch(sends);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        runAll(sends);
+    }
+
+    /**
+     * Proposes queued batches if this node is the leader or a fast round is open, and otherwise
+     * runs phase 1 to become the leader, unless phase 1 is already running.
+     */
+    private void resume(List<Runnable> sends) {
+        if (role == Role.LEADING || fastRoundOpen()) {
+            dispatch(sends);
+        } else if (role == Role.FOLLOWER && fastPaxos && highestSeenBallot > ballot) {
+            awaitFastRound();
+        } else if (role == Role.FOLLOWER) {
+            startPhase1(sends);
+        }
+    }
+
+    /**
+     * Gives the coordinator that preempted this node a fast timeout to open its fast round before
+     * running phase 1, so that two proposers do not keep preempting each other's prepares.
+     */
+    private void awaitFastRound() {
+        if (fastFallback != null) {
+            return;
+        }
+        fastFallback = clock.schedule(() -> {
+            List<Runnable> sends = new ArrayList<>();
+            lock.lock();
+            try {
+                fastFallback = null;
+                if (fastRoundOpen()) {
+                    dispatch(sends);
+                } else if (role == Role.FOLLOWER && !readyBatches.isEmpty()) {
+                    startPhase1(sends);
+                }
+            } finally {
+                lock.unlock();
+            }
+            runAll(sends);
+        }, fastTimeoutNanos);
+    }
+
+    /**
+     * Starts phase 2 for queued batches while the pipeline window has room. While a fast round is
+     * open, the batches go straight to the acceptors in slots past every slot this node has heard of.
+     */
+    private void dispatch(List<Runnable> sends) {
+        if (fastRoundOpen()) {
+            while (fastInFlight.size() < pipelineWindow && !readyBatches.isEmpty()) {
+                int slot = Math.max(Math.max(nextSlot, openFastFrom), Math.max(highestSlotSeen + 1, firstUndecidedSlot()));
+                nextSlot = slot + 1;
+                proposeFast(slot, readyBatches.poll(), sends);
+            }
+            return;
+        }
+        while (inFlight.size() < pipelineWindow && !readyBatches.isEmpty()) {
+            startPhase2(nextSlot++, readyBatches.poll(), sends);
+        }
+    }
+
+    private void startPhase2(int slot, Proposal proposal, List<Runnable> sends) {
+        proposal.acceptedBy.clear();
+        proposal.startNanos = clock.nanoTime();
+        inFlight.put(slot, proposal);
+        PaxosMessage accept = new PaxosMessage(MessageType.LOG_ACCEPT, nodeId, ballot, slot, 0,
+                proposal.commands.length, proposal.commands);
+        for (int acceptorId : phase2Targets) {
+            sends.add(send(acceptorId, accept));
+        }
+    }
+
+    private void onAccepted(PaxosMessage message, List<Runnable> sends) {
+        if (role != Role.LEADING || message.ballot() != ballot) {
+            return;
+        }
+        Proposal proposal = inFlight.get(message.slot());
+        if (proposal == null) {
+            return;
+        }
+        proposal.acceptedBy.add(message.nodeId());
+        if (proposal.acceptedBy.size() < quorums.minimumSize(QuorumSystem.Phase.TWO)
+                || !quorums.isQuorum(QuorumSystem.Phase.TWO, proposal.acceptedBy)) {
+            return;
+        }
+
+        inFlight.remove(message.slot());
+        metrics.latency(NodeMetrics.LOG_COMMIT).record(clock.nanoTime() - proposal.startNanos);
+        learn(message.slot(), proposal.commands);
+        for (CompletableFuture<Integer> future : proposal.futures) {
+            future.complete(message.slot());
+        }
+        announce(message.slot(), proposal.commands, sends);
+        dispatch(sends);
+    }
+
+    private void announce(int slot, int[] commands, List<Runnable> sends) {
+        PaxosMessage commit = new PaxosMessage(MessageType.LOG_COMMIT, nodeId, ballot, slot, 0, commands.length, commands);
+        for (int peerId : peerIds) {
+            if (peerId != nodeId) {
+                sends.add(send(peerId, commit));
+            }
+        }
+    }
+
+    // ---- Fast rounds ----
+
+    /**
+     * Returns whether this proposer may send batches straight to the acceptors: it knows of a fast
+     * round and of no higher ballot, and is neither running phase 1 nor leading another ballot.
+     */
+    private boolean fastRoundOpen() {
+        if (!fastPaxos || openFastBallot == 0 || openFastBallot < highestSeenBallot) {
+            return false;
+        }
+        return role == Role.FOLLOWER || (role == Role.LEADING && ballot == openFastBallot);
+    }
+
+    private void proposeFast(int slot, Proposal proposal, List<Runnable> sends) {
+        proposal.startNanos = clock.nanoTime();
+        proposal.ballot = 0;
+        fastInFlight.put(slot, proposal);
+        highestSlotSeen = Math.max(highestSlotSeen, slot);
+        sendFast(slot, proposal, sends);
+        proposal.timer = clock.schedule(() -> retryFast(slot, proposal), fastTimeoutNanos);
+    }
+
+    private void sendFast(int slot, Proposal proposal, List<Runnable> sends) {
+        if (proposal.ballot != openFastBallot) {
+            proposal.ballot = openFastBallot;
+            proposal.acceptedBy.clear();
+        }
+        PaxosMessage accept = new PaxosMessage(MessageType.LOG_FAST_ACCEPT, nodeId, openFastBallot, slot, 0,
+                proposal.commands.length, proposal.commands);
+        for (int acceptorId : fastTargets) {
+            sends.add(send(acceptorId, accept));
+        }
+    }
+
+    /**
+     * Sends a fast batch again after it has waited a timeout without being decided, in the latest
+     * fast round unless that round's coordinator recovers the slot itself. Without an open round,
+     * a proposer that is not running phase 1 takes over the log, which decides the slot too.
+     */
+    private void retryFast(int slot, Proposal proposal) {
+        List<Runnable> sends = new ArrayList<>();
+        lock.lock();
+        try {
+            if (fastInFlight.get(slot) != proposal) {
+                return;
+            }
+            if (fastRoundOpen()) {
+                if (proposal.ballot == openFastBallot || slot >= openFastFrom) {
+                    sendFast(slot, proposal, sends);
+                }
+            } else if (role == Role.FOLLOWER) {
+                startPhase1(sends);
+            }
+            proposal.timer = clock.schedule(() -> retryFast(slot, proposal), fastTimeoutNanos);
+        } finally {
+            lock.unlock();
+        }
+        runAll(sends);
+    }
+
+    /**
+     * Counts an acceptor's vote, both at the batch's proposer and at the round's coordinator. The
+     * proposer learns its batch once a fast quorum has voted for it; the coordinator also decides
+     * slots that collided.
+     */
+    private void onFastAccepted(PaxosMessage message, List<Runnable> sends) {
+        int slot = message.slot();
+        int[] batch = batchOf(message);
+        highestSlotSeen = Math.max(highestSlotSeen, Math.max(slot, message.value()));
+        if (slot <= appliedThrough || decided.containsKey(slot)) {
+            return;
+        }
+        if (role == Role.LEADING && message.ballot() == ballot && slot >= openFastFrom && !inFlight.containsKey(slot)) {
+            countFastVote(slot, message.nodeId(), batch, sends);
+            if (decided.containsKey(slot)) {
+                return;
+            }
+        }
+        Proposal own = fastInFlight.get(slot);
+        if (own != null && own.ballot == message.ballot() && Arrays.equals(own.commands, batch)) {
+            own.acceptedBy.add(message.nodeId());
+            if (own.acceptedBy.size() >= fastQuorumSize) {
+                learn(slot, own.commands);
+            }
+        }
+    }
+
+    private void countFastVote(int slot, int acceptorId, int[] batch, List<Runnable> sends) {
+        FastSlot votes = fastVotes.computeIfAbsent(slot, s -> new FastSlot(clock.nanoTime()));
+        votes.votes.put(acceptorId, batch);
+        int[] leading = votes.mostVoted();
+        int leadingVotes = votes.count(leading);
+        if (leadingVotes >= fastQuorumSize) {
+            learn(slot, leading);
+            announce(slot, leading, sends);
+        } else if (leadingVotes + acceptorIds.size() - votes.votes.size() < fastQuorumSize
+                && quorums.isQuorum(QuorumSystem.Phase.ONE, votes.votes.keySet())) {
+            // No batch can reach a fast quorum any more
+            recoverSlot(slot, votes, sends);
+        }
+    }
+
+    /**
+     * Decides a slot of this coordinator's fast round with a classic phase 2 in the same ballot,
+     * once the votes of a phase-1 quorum are known.
+     */
+    private void recoverSlot(int slot, FastSlot votes, List<Runnable> sends) {
+        fastVotes.remove(slot);
+        int[] batch = fastChoice(votes.votes, votes.votes.keySet(), votes.mostVoted());
+        startPhase2(slot, new Proposal(batch, new ArrayList<>()), sends);
+    }
+
+    /**
+     * Unblocks the slots of this coordinator's fast round that have stalled for a timeout: a slot
+     * with votes from a phase-1 quorum is decided with a classic phase 2, and a slot without gets a
+     * no-op proposed, so that a proposer that failed or whose batch was lost cannot leave a gap that
+     * holds back every later slot. Acceptors that may have missed the round are told of it again.
+     */
+    private void checkFastRound(int term) {
+        List<Runnable> sends = new ArrayList<>();
+        lock.lock();
+        try {
+            if (role != Role.LEADING || ballot != term) {
+                return;
+            }
+            long now = clock.nanoTime();
+            boolean stalled = false;
+            for (int slot = Math.max(firstUndecidedSlot(), openFastFrom); slot <= highestSlotSeen; slot++) {
+                if (decided.containsKey(slot) || inFlight.containsKey(slot)) {
+                    continue;
+                }
+                FastSlot votes = fastVotes.computeIfAbsent(slot, s -> new FastSlot(now));
+                if (now - votes.sinceNanos < fastTimeoutNanos) {
+                    continue;
+                }
+                stalled = true;
+                if (quorums.isQuorum(QuorumSystem.Phase.ONE, votes.votes.keySet())) {
+                    recoverSlot(slot, votes, sends);
+                } else if (!fastInFlight.containsKey(slot)) {
+                    proposeFast(slot, new Proposal(NO_OP, new ArrayList<>()), sends);
+                }
+            }
+            if (stalled) {
+                PaxosMessage any = new PaxosMessage(MessageType.LOG_FAST_ANY, nodeId, ballot, openFastFrom, 0, 0);
+                for (int acceptorId : acceptorIds) {
+                    sends.add(send(acceptorId, any));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        runAll(sends);
+    }
+
+    private void onReadIndexReply(PaxosMessage message) {
+        IndexRead read = indexReads.get(message.value());
+        if (read == null) {
+            return;
+        }
+        read.repliers.add(message.nodeId());
+        read.index = Math.max(read.index, message.slot());
+        if (quorums.isQuorum(QuorumSystem.Phase.ONE, read.repliers)) {
+            indexReads.remove(message.value());
+            read.answer.accept(read.index);
+        }
+    }
+
+    private void onNack(PaxosMessage message, List<Runnable> sends) {
+        highestSeenBallot = Math.max(highestSeenBallot, message.ballot());
+        if (role == Role.PREPARING && message.ballot() == ballot) {
+            // An acceptor recovered a promise for this very ballot, made to this node before it restarted
+            startPhase1(sends);
+            return;
+        }
+        if (role == Role.PREPARING && message.value() > 0 && message.ballot() < ballot) {
+            // The acceptor's lease belongs to another proposer, which still leads: fail our batches so
+            // that clients turn to that leader instead of waiting for the lease to run out
+            stepDown(new IllegalStateException("Node " + nodeId + " was refused: another leader's lease has "
+                    + message.value() + " ms left"), false);
+            return;
+        }
+        if (role == Role.FOLLOWER || message.ballot() <= ballot) {
+            return;
+        }
+
+        // Another proposer holds a higher ballot: step down and fail every batch we were driving,
+        // except in fast mode, where queued batches wait for the new coordinator's fast round
+        stepDown(new IllegalStateException("Node " + nodeId + " was preempted by ballot " + message.ballot()),
+                fastPaxos);
+    }
+
+    /**
+     * Gives up leadership and fails the batches in phase 2. Queued batches are failed too, unless
+     * `keepQueued` is set, in which case they wait for the next leader or fast round.
+     */
+    private void stepDown(IllegalStateException cause, boolean keepQueued) {
+        role = Role.FOLLOWER;
+        leaseHeld = false;
+        if (leaseRenewal != null) {
+            leaseRenewal.cancel(false);
+            leaseRenewal = null;
+        }
+        if (fastCheck != null) {
+            fastCheck.cancel(false);
+            fastCheck = null;
+        }
+        fastVotes.clear();
+        cutBatch();
+        for (Proposal proposal : inFlight.values()) {
+            proposal.fail(cause);
+        }
+        inFlight.clear();
+        if (keepQueued) {
+            return;
+        }
+        for (Proposal proposal : readyBatches) {
+            proposal.fail(cause);
+        }
+        readyBatches.clear();
+    }
+
+    /**
+     * Sends a lease heartbeat to every acceptor, while this node still leads with the given ballot.
+     */
+    private void renewLease(int term) {
+        List<Runnable> sends = new ArrayList<>();
+        lock.lock();
+        try {
+            if (role != Role.LEADING || ballot != term) {
+                return;
+            }
+            int round = ++leaseRound;
+            leaseRounds.put(round, new LeaseRound(clock.nanoTime()));
+            leaseRounds.keySet().removeIf(r -> r < round - 3);
+            PaxosMessage heartbeat = new PaxosMessage(MessageType.LOG_LEASE, nodeId, ballot, round);
+            for (int acceptorId : phase2Targets) {
+                sends.add(send(acceptorId, heartbeat));
+            }
+        } finally {
+            lock.unlock();
+        }
+        runAll(sends);
+    }
+
+    private void onLeaseGrant(PaxosMessage message) {
+        if (role != Role.LEADING || message.ballot() != ballot) {
+            return;
+        }
+        LeaseRound round = leaseRounds.get(message.value());
+        if (round == null) {
+            return;
+        }
+        round.granters.add(message.nodeId());
+        if (quorums.isQuorum(QuorumSystem.Phase.TWO, round.granters)) {
+            extendLease(round.sentNanos);
+            leaseRounds.remove(message.value());
+        }
+    }
+
+    /**
+     * Extends this leader's lease to the grant of a quorum that was asked at `askedNanos`.
+     *
+     * Each acceptor's grant lasts `leaseNanos` on its clock from when it received the request,
+     * which is no earlier than `askedNanos`. With every clock within `maxClockDrift` of real time,
+     * the grant lasts at least leaseNanos / (1 + drift) of real time, which the leader's own clock
+     * measures as no less than leaseNanos * (1 - drift) / (1 + drift).
+     */
+    private void extendLease(long askedNanos) {
+        long until = askedNanos + (long) (leaseNanos * (1 - maxClockDrift) / (1 + maxClockDrift));
+        if (!leaseHeld || until - leaseHeldUntil > 0) {
+            leaseHeldUntil = until;
+        }
+        leaseHeld = true;
+    }
+
+    // ---- Learner ----
+
+    private void learn(int slot, int[] commands) {
+        if (slot <= appliedThrough || decided.containsKey(slot)) {
+            return;
+        }
+        decided.put(slot, commands);
+        readIndex = Math.max(readIndex, slot);
+        highestSlotSeen = Math.max(highestSlotSeen, slot);
+        fastVotes.remove(slot);
+        applyDecided();
+        Proposal own = fastInFlight.remove(slot);
+        if (own != null) {
+            settleFast(slot, own, commands);
+        }
+    }
+
+    private void applyDecided() {
+        while (decided.containsKey(appliedThrough + 1)) {
+            appliedThrough++;
+            for (int command : decided.remove(appliedThrough)) {
+                applier.apply(appliedThrough, command);
+            }
+        }
+        while (!pendingReads.isEmpty() && pendingReads.peek().index <= appliedThrough) {
+            pendingReads.poll().run.run();
+        }
+    }
+
+    /**
+     * Installs an acceptor's snapshot and, if it answers this node's current prepare, runs phase 1
+     * again from the first slot after it.
+     */
+    private void onSnapshot(PaxosMessage message, List<Runnable> sends) {
+        installSnapshot(message.slot(), batchOf(message));
+        if (role == Role.PREPARING && message.ballot() == ballot) {
+            startPhase1(sends);
+        }
+    }
+
+    /**
+     * Replaces the applied state with a snapshot of every slot up to `slot`, unless this node has
+     * applied that far already, and applies the decided slots that follow it. This node's batches in
+     * the covered slots are failed, since whether they were decided there is unknown.
+     */
+    private void installSnapshot(int slot, int[] state) {
+        if (slot <= appliedThrough) {
+            return;
+        }
+        if (!(applier instanceof StateMachine)) {
+            throw new IllegalStateException("Node " + nodeId + " cannot install a snapshot of slot " + slot
+                    + ": its applier is not a MultiPaxos.StateMachine");
+        }
+        ((StateMachine) applier).restore(state);
+        AsyncLogger.info("Node " + nodeId + " installed a snapshot through slot " + slot);
+        appliedThrough = slot;
+        decided.keySet().removeIf(decidedSlot -> decidedSlot <= slot);
+        fastVotes.keySet().removeIf(voted -> voted <= slot);
+        readIndex = Math.max(readIndex, slot);
+        highestSlotSeen = Math.max(highestSlotSeen, slot);
+        nextSlot = Math.max(nextSlot, slot + 1);
+        IllegalStateException unknown = new IllegalStateException("Node " + nodeId
+                + " skipped to a snapshot of slot " + slot + " before learning the outcome of its batch");
+        for (Iterator<Map.Entry<Integer, Proposal>> it = inFlight.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Integer, Proposal> entry = it.next();
+            if (entry.getKey() <= slot) {
+                entry.getValue().fail(unknown);
+                it.remove();
+            }
+        }
+        for (Iterator<Map.Entry<Integer, Proposal>> it = fastInFlight.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Integer, Proposal> entry = it.next();
+            if (entry.getKey() <= slot) {
+                entry.getValue().timer.cancel(false);
+                entry.getValue().fail(unknown);
+                it.remove();
+            }
+        }
+        applyDecided();
+    }
+
+    /**
+     * Completes this node's fast batch for a slot that has been decided, or queues it for a fresh
+     * slot if another batch won the slot. Batches nobody waits for, such as no-ops, are dropped.
+     */
+    private void settleFast(int slot, Proposal proposal, int[] decidedCommands) {
+        proposal.timer.cancel(false);
+        if (Arrays.equals(proposal.commands, decidedCommands)) {
+            metrics.latency(NodeMetrics.LOG_COMMIT).record(clock.nanoTime() - proposal.startNanos);
+            for (CompletableFuture<Integer> future : proposal.futures) {
+                future.complete(slot);
+            }
+        } else if (!proposal.futures.isEmpty()) {
+            readyBatches.addFirst(proposal);
+        }
+    }
+
+    /**
+     * Answers a read once every slot up to `index` has been applied.
+     */
+    private <T> void readAt(int index, Supplier<T> query, CompletableFuture<T> result) {
+        Runnable answer = () -> {
+            try {
+                result.complete(query.get());
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        };
+        if (index <= appliedThrough) {
+            answer.run();
+        } else {
+            pendingReads.add(new PendingRead(index, answer));
+        }
+    }
+
+    private int firstUndecidedSlot() {
+        int slot = appliedThrough + 1;
+        while (decided.containsKey(slot)) {
+            slot++;
+        }
+        return slot;
+    }
+
+    private static int[] batchOf(PaxosMessage message) {
+        return message.commands() == null ? NO_OP : message.commands();
+    }
+
+    private Runnable send(int targetId, PaxosMessage message) {
+        return () -> transport.send(targetId, message);
+    }
+
+    private Runnable sendWhenDurable(CompletableFuture<Void> durable, int targetId, PaxosMessage message) {
+        return () -> durable.thenRun(() -> transport.send(targetId, message));
+    }
+
+    private CompletableFuture<Void> record(WalRecordType type, int... fields) {
+        return wal == null ? CompletableFuture.completedFuture(null) : wal.append(type, fields);
+    }
+
+    private static void runAll(List<Runnable> sends) {
+        for (Runnable send : sends) {
+            send.run();
+        }
+    }
+
+    private static final class AcceptedEntry {
+        final int ballot;
+        final int[] commands;
+        // Accepted as a vote in a fast round rather than from the ballot's leader
+        final boolean fast;
+
+        AcceptedEntry(int ballot, int[] commands) {
+            this(ballot, commands, false);
+        }
+
+        AcceptedEntry(int ballot, int[] commands, boolean fast) {
+            this.ballot = ballot;
+            this.commands = commands;
+            this.fast = fast;
+        }
+
+        /**
+         * Returns whether a new leader must prefer this entry to `other`: it has a higher ballot, or
+         * the same ballot and its leader chose it after the round's fast votes.
+         */
+        boolean outranks(AcceptedEntry other) {
+            return ballot > other.ballot || (ballot == other.ballot && other.fast && !fast);
+        }
+    }
+
+    private static final class LeaseRound {
+        final long sentNanos;
+        final Set<Integer> granters = new HashSet<>();
+
+        LeaseRound(long sentNanos) {
+            this.sentNanos = sentNanos;
+        }
+    }
+
+    /**
+     * The fast votes a coordinator has received for one undecided slot.
+     */
+    private static final class FastSlot {
+        final long sinceNanos;
+        // The batch each acceptor holds, in the order the votes arrived
+        final Map<Integer, int[]> votes = new LinkedHashMap<>();
+
+        FastSlot(long sinceNanos) {
+            this.sinceNanos = sinceNanos;
+        }
+
+        /**
+         * Returns the batch with the most votes, the earliest voted on ties, or a no-op without votes.
+         */
+        int[] mostVoted() {
+            int[] best = NO_OP;
+            int bestCount = 0;
+            for (int[] batch : votes.values()) {
+                int count = count(batch);
+                if (count > bestCount) {
+                    best = batch;
+                    bestCount = count;
+                }
+            }
+            return best;
+        }
+
+        int count(int[] batch) {
+            int count = 0;
+            for (int[] vote : votes.values()) {
+                if (Arrays.equals(vote, batch)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    private static final class IndexRead {
+        final IntConsumer answer;
+        final Set<Integer> repliers = new HashSet<>();
+        int index;
+
+        IndexRead(IntConsumer answer) {
+            this.answer = answer;
+        }
+    }
+
+    private static final class PendingRead implements Comparable<PendingRead> {
+        final int index;
+        final Runnable run;
+
+        PendingRead(int index, Runnable run) {
+            this.index = index;
+            this.run = run;
+        }
+
+        @Override
+        public int compareTo(PendingRead other) {
+            return Integer.compare(index, other.index);
+        }
+    }
+
+    private static final class Proposal {
+        final int[] commands;
+        final List<CompletableFuture<Integer>> futures;
+        final Set<Integer> acceptedBy = new HashSet<>();
+        long startNanos;
+        // In a fast round: the ballot acceptedBy counts votes of, and the timer that sends it again
+        int ballot;
+        ScheduledFuture<?> timer;
+
+        Proposal(int[] commands, List<CompletableFuture<Integer>> futures) {
+            this.commands = commands;
+            this.futures = futures;
+        }
+
+        void fail(Throwable cause) {
+            for (CompletableFuture<Integer> future : futures) {
+                future.completeExceptionally(cause);
+            }
+        }
+    }
+}
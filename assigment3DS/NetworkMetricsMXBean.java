@@ -0,0 +1,20 @@
+package paxos;
+
+/**
+ * The JMX view of the NetworkSimulator, registered as "paxos:type=NetworkSimulator".
+ */
+public interface NetworkMetricsMXBean {
+    long getDeliveriesScheduled();
+
+    long getDeliveriesCompleted();
+
+    long getDeliveriesFailed();
+
+    /** Deliveries waiting for their simulated latency to elapse. */
+    int getPendingDeliveries();
+
+    /** A summary of the simulated latencies applied, in microseconds. */
+    String getSimulatedLatency();
+
+    String snapshot();
+}
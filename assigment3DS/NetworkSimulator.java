@@ -1,63 +1,141 @@
+package paxos;
+
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.*;
 
 public class NetworkSimulator {
     private static final Map<Integer, Integer> nodeLatencies = new ConcurrentHashMap<>();
+    private static final Map<Long, Integer> linkLatencies = new ConcurrentHashMap<>();
     private static final Set<Integer> offlineNodes = Collections.synchronizedSet(new HashSet<>());
     private static final Random random = new Random();
+    private static volatile int jitterMs = 0;
+
+    private static final DelayQueue<DeliveryEvent> deliveries = new DelayQueue<>();
+    private static final AtomicLong deliverySequence = new AtomicLong();
+    private static volatile Thread scheduler;
+
+    private static final Metrics metrics = new Metrics();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName("paxos:type=NetworkSimulator"));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
 
     /**
      * Sets the network latency for a specific node.
-     * 
+     *
      * @param nodeId    The ID of the node for which the latency is being set.
      * @param latencyMs The latency in milliseconds for the node's network.
-     * 
-     * This method stores the latency configuration for the given node.
+     *
+     * This method stores the latency configuration for the given node. It applies to every
+     * message sent to the node unless a link latency is configured for the sender.
      */
     public static void setNodeLatency(int nodeId, int latencyMs) {
         nodeLatencies.put(nodeId, latencyMs);
     }
 
     /**
-     * Marks a specific node as offline and sets its latency to 10 seconds.
-     * 
+     * Sets the network latency for messages travelling from one node to another.
+     *
+     * @param sourceNode The ID of the sending node.
+     * @param targetNode The ID of the receiving node.
+     * @param latencyMs  The latency in milliseconds for this direction of the link.
+     *
+     * A link latency takes precedence over the target node's latency, which allows
+     * asymmetric topologies (e.g. a proposer that is close to some acceptors and far from others).
+     */
+    public static void setLinkLatency(int sourceNode, int targetNode, int latencyMs) {
+        linkLatencies.put(linkKey(sourceNode, targetNode), latencyMs);
+    }
+
+    /**
+     * Sets the maximum random jitter added to every simulated latency.
+     *
+     * @param maxJitterMs The upper bound in milliseconds; each message gets a uniform extra delay
+     *                    between 0 and this value. Zero disables jitter.
+     */
+    public static void setJitter(int maxJitterMs) {
+        jitterMs = maxJitterMs;
+    }
+
+    /**
+     * Marks a specific node as offline and sets its latency to 100 seconds.
+     *
      * @param nodeId The ID of the node to be set offline.
-     * 
+     *
      * This method adds the node to the offline nodes list, making it unavailable for network communication.
-     * Additionally, it sets the latency of the offline node to 10 seconds (10000 milliseconds).
+     * Additionally, it sets the latency of the offline node to 100 seconds (100000 milliseconds), so
+     * messages to it are held by the scheduler well past the end of any test case.
      */
     public static void setNodeOffline(int nodeId) {
         offlineNodes.add(nodeId);
-        nodeLatencies.put(nodeId, 100000);  // Set the latency to 10 seconds (10000 ms) for offline nodes
+        nodeLatencies.put(nodeId, 100000);  // Set the latency to 100 seconds (100000 ms) for offline nodes
+    }
+
+    /**
+     * Brings an offline node back online and clears its node latency.
+     *
+     * @param nodeId The ID of the node to be set online.
+     */
+    public static void setNodeOnline(int nodeId) {
+        offlineNodes.remove(nodeId);
+        nodeLatencies.remove(nodeId);
     }
 
     /**
      * Checks if a specific node is offline.
-     * 
+     *
      * @param nodeId The ID of the node to check.
      * @return       A boolean indicating whether the node is offline (true) or online (false).
-     * 
+     *
      * This method returns whether the node is present in the offline nodes list.
      */
     public static boolean isNodeOffline(int nodeId) {
         return offlineNodes.contains(nodeId);
     }
 
+    /**
+     * Returns the latency that currently applies to a message from one node to another.
+     *
+     * @param sourceNode The ID of the source node.
+     * @param targetNode The ID of the target node.
+     * @return           The configured latency in milliseconds, including a fresh jitter sample.
+     */
+    public static int latencyFor(int sourceNode, int targetNode) {
+        Integer linkLatency = linkLatencies.get(linkKey(sourceNode, targetNode));
+        int latency = linkLatency != null ? linkLatency : nodeLatencies.getOrDefault(targetNode, 0);
+        int jitter = jitterMs;
+        if (jitter > 0) {
+            synchronized (random) {
+                latency += random.nextInt(jitter + 1);
+            }
+        }
+        return latency;
+    }
+
     /**
      * Simulates network communication between two nodes, checking for offline status and applying latency.
-     * 
+     *
      * @param sourceNode The ID of the source node.
      * @param targetNode The ID of the target node.
      * @throws IOException If either node is offline, an IOException is thrown indicating the network failure.
-     * 
-     * This method checks if either node is offline. If not, it simulates a network latency (if configured) 
-     * between the source and target nodes by sleeping the thread for the specified latency period.
+     *
+     * This method simulates a network latency (if configured) between the source and target nodes
+     * by sleeping the calling thread for the specified latency period. Message delivery should use
+     * `deliver` instead, which applies the same latency without blocking the sender.
      */
     public static void simulateNetwork(int sourceNode, int targetNode) throws IOException {
         // Apply latency if configured
-        int latency = nodeLatencies.getOrDefault(targetNode, 0);
+        int latency = latencyFor(sourceNode, targetNode);
         if (latency > 0) {
             try {
                 Thread.sleep(latency);  // Simulate the network delay
@@ -66,4 +144,162 @@ public class NetworkSimulator {
             }
         }
     }
+
+    /**
+     * Schedules a message delivery after the simulated latency between two nodes.
+     *
+     * @param sourceNode The ID of the source node.
+     * @param targetNode The ID of the target node.
+     * @param executor   The executor that runs the delivery once it is due.
+     * @param delivery   The action that actually delivers the message.
+     * @return           A future that completes when the delivery action has run.
+     *
+     * The sender returns immediately. The message becomes a timestamped event in a delay queue,
+     * and a single scheduler thread hands each event to its executor when it is due, so any number
+     * of in-flight messages costs no extra threads. Deliveries without latency run right away
+     * on the executor.
+     */
+    public static CompletableFuture<Void> deliver(int sourceNode, int targetNode, Executor executor, Runnable delivery) {
+        DeliveryEvent event = new DeliveryEvent(executor, delivery, latencyFor(sourceNode, targetNode));
+        metrics.scheduled.increment();
+        metrics.simulatedLatency.record(TimeUnit.MILLISECONDS.toNanos(Math.max(0, event.latencyMs)));
+        if (event.latencyMs <= 0) {
+            event.release();
+        } else {
+            ensureSchedulerStarted();
+            deliveries.put(event);
+        }
+        return event.completion;
+    }
+
+    /**
+     * Returns the number of deliveries currently waiting for their simulated latency to elapse.
+     */
+    public static int pendingDeliveries() {
+        return deliveries.size();
+    }
+
+    /**
+     * Returns the simulator's delivery counters, which are also published over JMX.
+     */
+    public static NetworkMetricsMXBean metrics() {
+        return metrics;
+    }
+
+    private static long linkKey(int sourceNode, int targetNode) {
+        return ((long) sourceNode << 32) | (targetNode & 0xFFFFFFFFL);
+    }
+
+    private static void ensureSchedulerStarted() {
+        if (scheduler != null) {
+            return;
+        }
+        synchronized (deliveries) {
+            if (scheduler == null) {
+                Thread thread = new Thread(NetworkSimulator::runScheduler, "network-simulator");
+                thread.setDaemon(true);
+                thread.start();
+                scheduler = thread;
+            }
+        }
+    }
+
+    private static void runScheduler() {
+        while (true) {
+            try {
+                deliveries.take().release();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * A message in flight, ordered by due time and then by scheduling order.
+     */
+    private static final class DeliveryEvent implements Delayed {
+        private final Executor executor;
+        private final Runnable delivery;
+        private final int latencyMs;
+        private final long dueNanos;
+        private final long sequence = deliverySequence.incrementAndGet();
+        private final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+        DeliveryEvent(Executor executor, Runnable delivery, int latencyMs) {
+            this.executor = executor;
+            this.delivery = delivery;
+            this.latencyMs = latencyMs;
+            this.dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, latencyMs));
+        }
+
+        void release() {
+            try {
+                executor.execute(() -> {
+                    try {
+                        delivery.run();
+                        metrics.completed.increment();
+                        completion.complete(null);
+                    } catch (Throwable t) {
+                        metrics.failed.increment();
+                        completion.completeExceptionally(t);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                metrics.failed.increment();
+                completion.completeExceptionally(e);
+            }
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            DeliveryEvent that = (DeliveryEvent) other;
+            int byDue = Long.compare(dueNanos, that.dueNanos);
+            return byDue != 0 ? byDue : Long.compare(sequence, that.sequence);
+        }
+    }
+
+    private static final class Metrics implements NetworkMetricsMXBean {
+        final LongAdder scheduled = new LongAdder();
+        final LongAdder completed = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LatencyHistogram simulatedLatency = new LatencyHistogram();
+
+        @Override
+        public long getDeliveriesScheduled() {
+            return scheduled.sum();
+        }
+
+        @Override
+        public long getDeliveriesCompleted() {
+            return completed.sum();
+        }
+
+        @Override
+        public long getDeliveriesFailed() {
+            return failed.sum();
+        }
+
+        @Override
+        public int getPendingDeliveries() {
+            return pendingDeliveries();
+        }
+
+        @Override
+        public String getSimulatedLatency() {
+            return simulatedLatency.summary();
+        }
+
+        @Override
+        public String snapshot() {
+            return "NetworkSimulator metrics: scheduled=" + getDeliveriesScheduled()
+                    + " completed=" + getDeliveriesCompleted() + " failed=" + getDeliveriesFailed()
+                    + " pending=" + getPendingDeliveries() + "\n  simulatedLatency: " + getSimulatedLatency();
+        }
+    }
 }
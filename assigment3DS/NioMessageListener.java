@@ -0,0 +1,212 @@
+package paxos;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+public class NioMessageListener {
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    private final int port;
+    private final Consumer<PaxosMessage> messageHandler;
+    private final EventLoop[] eventLoops;
+    private ServerSocketChannel serverChannel;
+    private int nextLoop = 0;
+
+    /**
+     * Constructor for the NioMessageListener class.
+     *
+     * @param port           The port to listen on.
+     * @param messageHandler The callback invoked with each decoded message, on an event-loop thread.
+     * @param eventLoopCount The number of selector threads that share the accepted connections.
+     *
+     * The handler must not block: it is expected to hand the message off (e.g. to an executor)
+     * so the event loop can keep serving every other connection.
+     */
+    public NioMessageListener(int port, Consumer<PaxosMessage> messageHandler, int eventLoopCount) {
+        this.port = port;
+        this.messageHandler = messageHandler;
+        this.eventLoops = new EventLoop[Math.max(1, eventLoopCount)];
+    }
+
+    /**
+     * Binds the server channel and starts the event-loop threads.
+     *
+     * @throws IOException If the port cannot be bound or a selector cannot be opened.
+     *
+     * The first event loop also owns the accept key; accepted connections are distributed
+     * round-robin over all event loops.
+     */
+    public void start() throws IOException {
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop(Selector.open());
+        }
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), TcpTransport.ACCEPT_BACKLOG);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(eventLoops[0].selector, SelectionKey.OP_ACCEPT);
+
+        for (int i = 0; i < eventLoops.length; i++) {
+            Thread thread = new Thread(eventLoops[i], "nio-listener-" + port + "-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops all event loops and closes the server channel and every accepted connection.
+     */
+    public void close() {
+        for (EventLoop loop : eventLoops) {
+            if (loop != null) {
+                loop.running = false;
+                loop.selector.wakeup();
+            }
+        }
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            EventLoop target = eventLoops[nextLoop];
+            nextLoop = (nextLoop + 1) % eventLoops.length;
+            target.register(channel);
+        }
+    }
+
+    /**
+     * A single selector thread. Channels accepted by the first loop are queued here and
+     * registered from the owning thread, since registering from another thread would block
+     * against a concurrent select().
+     */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(SocketChannel channel) {
+            pendingRegistrations.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    registerPending();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.isReadable()) {
+                            read(key);
+                        }
+                    }
+                }
+            } catch (ClosedSelectorException | CancelledKeyException e) {
+                // Listener was closed while selecting
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                closeSelector();
+            }
+        }
+
+        private void registerPending() throws IOException {
+            SocketChannel channel;
+            while ((channel = pendingRegistrations.poll()) != null) {
+                channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(READ_BUFFER_SIZE));
+            }
+        }
+
+        private void read(SelectionKey key) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            ByteBuffer buffer = (ByteBuffer) key.attachment();
+            try {
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    closeChannel(key);
+                    return;
+                }
+                buffer.flip();
+                decodeMessages(buffer);
+                buffer.compact();
+
+                // A single frame larger than the buffer: grow it so the frame can complete
+                if (!buffer.hasRemaining()) {
+                    ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                    buffer.flip();
+                    larger.put(buffer);
+                    key.attach(larger);
+                }
+            } catch (IOException e) {
+                closeChannel(key);
+            }
+        }
+
+        /**
+         * Decodes every complete length-prefixed frame in the buffer, splitting bundles into their
+         * messages, and leaves a trailing partial frame in place for the next read.
+         */
+        private void decodeMessages(ByteBuffer buffer) throws IOException {
+            while (buffer.remaining() >= MessageCodec.FRAME_HEADER_SIZE) {
+                int length = buffer.getInt(buffer.position());
+                MessageCodec.checkFrameLength(length);
+                if (buffer.remaining() < MessageCodec.FRAME_HEADER_SIZE + length) {
+                    return;
+                }
+                buffer.position(buffer.position() + MessageCodec.FRAME_HEADER_SIZE);
+                MessageCodec.decodeFrame(buffer, length, messageHandler);
+            }
+        }
+
+        private void closeChannel(SelectionKey key) {
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch (IOException ignored) {
+                // Connection is already gone
+            }
+        }
+
+        private void closeSelector() {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException ignored) {
+                    // Best effort during shutdown
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package paxos;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import javax.management.*;
+
+/**
+ * Counters, gauges and latency histograms of one PaxosNode.
+ *
+ * Message counters are kept per type in LongAdders and latencies in `LatencyHistogram`s, so
+ * recording never blocks a handler. Every started node registers its metrics as a JMX MXBean.
+ * With the system property "paxos.metrics.interval" set to a number of seconds, a text snapshot
+ * of every node and of the NetworkSimulator is also logged at that interval.
+ */
+public class NodeMetrics implements NodeMetricsMXBean {
+    /** The time from sending a proposal until a quorum of acceptors has promised it. */
+    public static final String TIME_TO_QUORUM = "timeToQuorum";
+    /** The time from declaring leadership until the declaration has reached every peer. */
+    public static final String DECLARE_PROPAGATION = "declarePropagation";
+    /** The time from starting phase 2 for a replicated-log slot until it is decided. */
+    public static final String LOG_COMMIT = "logCommit";
+    private static final String PROMISE_RTT = "promiseRtt.node";
+
+    // Registered metrics in node ID order; several live nodes in one JVM may share an ID
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+    private static final Set<NodeMetrics> REGISTERED = new ConcurrentSkipListSet<>(
+            Comparator.comparingInt((NodeMetrics metrics) -> metrics.nodeId).thenComparingInt(metrics -> metrics.instance));
+    private static ScheduledExecutorService reporter;
+
+    private final int nodeId;
+    private final int instance = INSTANCES.incrementAndGet();
+    private volatile ObjectName registeredName;
+    private final LongAdder[] sent = newCounters();
+    private final LongAdder[] received = newCounters();
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicInteger handlerQueueDepth = new AtomicInteger();
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentSkipListMap<>();
+    private final Map<Integer, LongAdder> roundsPerDecision = new ConcurrentSkipListMap<>();
+    private volatile IntSupplier pendingElections = () -> 0;
+    private volatile IntSupplier replicatedLogInFlight = () -> 0;
+    private volatile Supplier<Map<Integer, Double>> peerSuspicion = Collections::emptyMap;
+    private volatile LongSupplier framesSent = () -> 0;
+
+    /**
+     * Constructor for the NodeMetrics class.
+     *
+     * @param nodeId The ID of the node being measured.
+     */
+    public NodeMetrics(int nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public void messageSent(MessageType type) {
+        sent[type.ordinal()].increment();
+    }
+
+    public void messageReceived(MessageType type) {
+        received[type.ordinal()].increment();
+    }
+
+    public void messageDropped() {
+        dropped.increment();
+    }
+
+    public void handlerQueued() {
+        handlerQueueDepth.incrementAndGet();
+    }
+
+    public void handlerStarted() {
+        handlerQueueDepth.decrementAndGet();
+    }
+
+    /**
+     * Returns the histogram of a phase, creating it on first use.
+     *
+     * @param phase One of the phase names defined by this class.
+     */
+    public LatencyHistogram latency(String phase) {
+        LatencyHistogram histogram = latencies.get(phase);
+        return histogram != null ? histogram : latencies.computeIfAbsent(phase, p -> new LatencyHistogram());
+    }
+
+    /**
+     * Returns the histogram of proposal-to-promise round trips to one acceptor.
+     */
+    public LatencyHistogram promiseRoundTrip(int acceptorId) {
+        return latency(PROMISE_RTT + acceptorId);
+    }
+
+    /**
+     * Counts one won election by the number of proposal rounds it took.
+     */
+    public void roundsPerDecision(int rounds) {
+        roundsPerDecision.computeIfAbsent(rounds, r -> new LongAdder()).increment();
+    }
+
+    /**
+     * Connects the gauges that are read from the node's own state.
+     */
+    public void setGauges(IntSupplier pendingElections, IntSupplier replicatedLogInFlight) {
+        this.pendingElections = pendingElections;
+        this.replicatedLogInFlight = replicatedLogInFlight;
+    }
+
+    /**
+     * Connects the gauge reporting the failure detector's suspicion level of every peer.
+     */
+    public void setPeerSuspicion(Supplier<Map<Integer, Double>> peerSuspicion) {
+        this.peerSuspicion = peerSuspicion;
+    }
+
+    /**
+     * Connects the counter of network frames written by the node's transport.
+     */
+    public void setFramesSent(LongSupplier framesSent) {
+        this.framesSent = framesSent;
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return sum(sent);
+    }
+
+    @Override
+    public long getFramesSent() {
+        return framesSent.getAsLong();
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return sum(received);
+    }
+
+    @Override
+    public long getMessagesDropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public Map<String, Long> getSentByType() {
+        return byType(sent);
+    }
+
+    @Override
+    public Map<String, Long> getReceivedByType() {
+        return byType(received);
+    }
+
+    @Override
+    public int getHandlerQueueDepth() {
+        return handlerQueueDepth.get();
+    }
+
+    @Override
+    public int getPendingElections() {
+        return pendingElections.getAsInt();
+    }
+
+    @Override
+    public int getReplicatedLogInFlight() {
+        return replicatedLogInFlight.getAsInt();
+    }
+
+    @Override
+    public Map<String, String> getLatencies() {
+        Map<String, String> summaries = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            summaries.put(entry.getKey(), entry.getValue().summary());
+        }
+        return summaries;
+    }
+
+    @Override
+    public Map<Integer, Double> getPeerSuspicion() {
+        return peerSuspicion.get();
+    }
+
+    @Override
+    public Map<Integer, Long> getRoundsPerDecision() {
+        Map<Integer, Long> counts = new TreeMap<>();
+        for (Map.Entry<Integer, LongAdder> entry : roundsPerDecision.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public String snapshot() {
+        StringBuilder text = new StringBuilder();
+        text.append("Node ").append(nodeId).append(" metrics: sent=").append(getMessagesSent())
+            .append(" frames=").append(getFramesSent())
+            .append(" received=").append(getMessagesReceived())
+            .append(" dropped=").append(getMessagesDropped())
+            .append(" handlerQueue=").append(getHandlerQueueDepth())
+            .append(" pendingElections=").append(getPendingElections())
+            .append(" logInFlight=").append(getReplicatedLogInFlight());
+        if (!roundsPerDecision.isEmpty()) {
+            text.append(" roundsPerDecision=").append(getRoundsPerDecision());
+        }
+        for (Map.Entry<String, String> entry : getLatencies().entrySet()) {
+            text.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+        return text.toString();
+    }
+
+    /**
+     * Publishes these metrics as a JMX MXBean and includes them in the periodic snapshot. If
+     * another live node in this JVM already holds the node's name, e.g. a second cluster started
+     * next to the first, these metrics are published under the same name with an extra
+     * "instance" key rather than replacing the other node's.
+     */
+    public void register() {
+        REGISTERED.add(this);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = objectName();
+            if (server.isRegistered(name)) {
+                name = new ObjectName(name + ",instance=" + instance);
+            }
+            server.registerMBean(this, name);
+            registeredName = name;
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        startReporter();
+    }
+
+    /**
+     * Removes these metrics from JMX and from the periodic snapshot. Only the name these metrics
+     * were registered under is removed, so another node's metrics are never touched.
+     */
+    public void unregister() {
+        REGISTERED.remove(this);
+        ObjectName name = registeredName;
+        registeredName = null;
+        if (name == null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private ObjectName objectName() throws MalformedObjectNameException {
+        return new ObjectName("paxos:type=Node,id=" + nodeId);
+    }
+
+    private static synchronized void startReporter() {
+        long interval = Long.getLong("paxos.metrics.interval", 0);
+        if (reporter != null || interval <= 0) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            AsyncLogger.info(NetworkSimulator.metrics().snapshot());
+            for (NodeMetrics metrics : REGISTERED) {
+                AsyncLogger.info(metrics.snapshot());
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    private static LongAdder[] newCounters() {
+        LongAdder[] counters = new LongAdder[MessageType.values().length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+    private static long sum(LongAdder[] counters) {
+        long total = 0;
+        for (LongAdder counter : counters) {
+            total += counter.sum();
+        }
+        return total;
+    }
+
+    private static Map<String, Long> byType(LongAdder[] counters) {
+        Map<String, Long> counts = new TreeMap<>();
+        for (MessageType type : MessageType.values()) {
+            counts.put(type.name(), counters[type.ordinal()].sum());
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,41 @@
+package paxos;
+
+import java.util.Map;
+
+/**
+ * The JMX view of one node's instrumentation, registered as "paxos:type=Node,id=<nodeId>".
+ * Latencies are reported as one-line summaries in microseconds.
+ */
+public interface NodeMetricsMXBean {
+    long getMessagesSent();
+
+    /** TCP frames written; messages coalesced into one bundle count once. 0 on the in-memory network. */
+    long getFramesSent();
+
+    long getMessagesReceived();
+
+    long getMessagesDropped();
+
+    Map<String, Long> getSentByType();
+
+    Map<String, Long> getReceivedByType();
+
+    /** Messages received but not yet picked up by a handler thread. */
+    int getHandlerQueueDepth();
+
+    /** Elections this node proposed that are still waiting for a quorum. */
+    int getPendingElections();
+
+    /** Replicated-log slots this node is driving through phase 2. */
+    int getReplicatedLogInFlight();
+
+    Map<String, String> getLatencies();
+
+    /** The phi suspicion level of every peer; empty while failure detection is off. */
+    Map<Integer, Double> getPeerSuspicion();
+
+    /** Won elections, keyed by the number of proposal rounds they took. */
+    Map<Integer, Long> getRoundsPerDecision();
+
+    String snapshot();
+}
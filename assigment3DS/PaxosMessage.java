@@ -0,0 +1,134 @@
+package paxos;
+
+/**
+ * An immutable protocol message: a type, the sending node and the ballot/value pair it refers to.
+ *
+ * In the single-decree protocol the proposal value doubles as the ballot, so most messages
+ * carry the same number in both fields. Replicated-log messages also carry the log slot they
+ * refer to and, when an acceptor reports a previously accepted entry, the ballot it was
+ * accepted in. Replicated-log messages that carry log entries hold the entry's batch of
+ * commands; every other message has no commands. A node hosting several replicated logs tells
+ * them apart by the group ID; the single-decree protocol and the first log use group 0.
+ */
+public final class PaxosMessage {
+    private final MessageType type;
+    private final int groupId;
+    private final int nodeId;
+    private final int ballot;
+    private final int slot;
+    private final int acceptedBallot;
+    private final int value;
+    private final int[] commands;
+
+    public PaxosMessage(MessageType type, int nodeId, int ballot, int value) {
+        this(type, nodeId, ballot, 0, 0, value);
+    }
+
+    public PaxosMessage(MessageType type, int nodeId, int ballot, int slot, int acceptedBallot, int value) {
+        this(type, nodeId, ballot, slot, acceptedBallot, value, null);
+    }
+
+    /**
+     * Creates a message carrying a batch of commands. The array is shared, not copied, and must
+     * not be modified once the message has been created.
+     */
+    public PaxosMessage(MessageType type, int nodeId, int ballot, int slot, int acceptedBallot, int value,
+                        int[] commands) {
+        this(type, 0, nodeId, ballot, slot, acceptedBallot, value, commands);
+    }
+
+    /**
+     * Creates a message for one Paxos group. The commands array is shared, as above.
+     */
+    public PaxosMessage(MessageType type, int groupId, int nodeId, int ballot, int slot, int acceptedBallot, int value,
+                        int[] commands) {
+        this.type = type;
+        this.groupId = groupId;
+        this.nodeId = nodeId;
+        this.ballot = ballot;
+        this.slot = slot;
+        this.acceptedBallot = acceptedBallot;
+        this.value = value;
+        this.commands = commands;
+    }
+
+    /**
+     * Creates a single-decree message whose ballot is the proposal value itself.
+     */
+    public static PaxosMessage of(MessageType type, int nodeId, int value) {
+        return new PaxosMessage(type, nodeId, value, value);
+    }
+
+    public MessageType type() {
+        return type;
+    }
+
+    public int groupId() {
+        return groupId;
+    }
+
+    /**
+     * Returns this message addressed to another Paxos group, or this message itself if it
+     * already belongs to that group.
+     */
+    public PaxosMessage withGroup(int groupId) {
+        if (groupId == this.groupId) {
+            return this;
+        }
+        return new PaxosMessage(type, groupId, nodeId, ballot, slot, acceptedBallot, value, commands);
+    }
+
+    public int nodeId() {
+        return nodeId;
+    }
+
+    public int ballot() {
+        return ballot;
+    }
+
+    public int slot() {
+        return slot;
+    }
+
+    public int acceptedBallot() {
+        return acceptedBallot;
+    }
+
+    public int value() {
+        return value;
+    }
+
+    /**
+     * Returns the batch of commands carried by this message, or null if it carries none.
+     */
+    public int[] commands() {
+        return commands;
+    }
+
+    /**
+     * Returns the text debug form "type:nodeId:value", with the type written as "type@group"
+     * outside group 0, followed by ":ballot" when the ballot
+     * differs from the value, by ":slot:acceptedBallot" for replicated-log messages and by a
+     * comma-separated ":commands" field for messages carrying a batch.
+     */
+    @Override
+    public String toString() {
+        String text = type.textName() + (groupId != 0 ? "@" + groupId : "") + ":" + nodeId + ":" + value;
+        boolean hasCommands = commands != null && commands.length > 0;
+        boolean hasSlot = slot != 0 || acceptedBallot != 0 || hasCommands;
+        if (ballot != value || hasSlot) {
+            text += ":" + ballot;
+        }
+        if (hasSlot) {
+            text += ":" + slot + ":" + acceptedBallot;
+        }
+        if (hasCommands) {
+            StringBuilder batch = new StringBuilder();
+            for (int command : commands) {
+                batch.append(batch.length() == 0 ? ":" : ",").append(command);
+            }
+            text += batch;
+        }
+        return text;
+    }
+}
@@ -1,26 +1,75 @@
-
+package paxos;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 
 public class PaxosNode {
     private final int nodeId;
-    private ServerSocket serverSocket;
-    private final List<InetSocketAddress> peers;
+    private final Transport transport;
+    private final NodeMetrics metrics;
+    private final MultiPaxos replicatedLog;
+    // Every replicated log hosted by this node, indexed by group ID; group 0 is replicatedLog
+    private volatile List<MultiPaxos> groups;
+    private final List<Integer> peerIds; // IDs of every node in the cluster, including this one
     private final Set<Integer> proposerIds; // Set of nodes that are proposers
     private boolean isProposer;
 
-    private final Object proposalLock = new Object();
+    // A ReentrantLock rather than a monitor, so virtual threads waiting on it do not pin their carrier
+    private final ReentrantLock proposalLock = new ReentrantLock();
     private int highestProposalValue = -1;
     private int acceptedProposalValue = -1;
 
-    private static final Map<Integer, Integer> proposalCount = new ConcurrentHashMap<>();
-    private static final Map<Integer, Integer> promiseCount = new ConcurrentHashMap<>();
-    private static final Set<Integer> activeProposers = Collections.synchronizedSet(new HashSet<>());
 
-    private final ExecutorService executor = Executors.newFixedThreadPool(3);
+    // Counts the distinct acceptors that promised each of this proposer's proposal values
+    private QuorumTracker promiseTracker;
+    // Completed with the proposal value once a quorum of promises for it has arrived
+    private final Map<Integer, CompletableFuture<Integer>> quorumFutures = new ConcurrentHashMap<>();
+    // When each pending proposal was sent, for the promise round-trip and time-to-quorum histograms
+    private final Map<Integer, Long> proposalStarts = new ConcurrentHashMap<>();
+    private QuorumSystem quorums;
+    // The election's quorums: its promises elect a leader in one phase, so they must intersect each other
+    private QuorumSystem electionQuorums;
+
+    // Retried elections: rounds time out after the observed RTT, and each retry uses a higher ballot
+    private static final int BALLOT_STRIDE = 1024;
+    private static final int MAX_ROUNDS = Integer.getInteger("paxos.retry.rounds", 8);
+    private final RetryScheduler retries = new RetryScheduler();
+    private final ReentrantLock electionLock = new ReentrantLock();
+    private Election election; // this proposer's latest election
+    private int highestRejectedBallot = -1; // highest ballot reported by acceptors that rejected us
+    private int highestDeclaredBallot = -1; // highest ballot a leader was declared for
+    private int declaredLeaderId = -1; // the node declared leader with that ballot
+
+    // Failure detection: heartbeats are off while heartbeatMillis is 0
+    private static final ScheduledExecutorService HEARTBEAT_TIMER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "heartbeat-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long heartbeatMillis = Long.getLong("paxos.heartbeat.ms", 0);
+    private double suspicionThreshold = Double.parseDouble(System.getProperty("paxos.fd.threshold", "8"));
+    private FailureDetector failureDetector;
+    private ScheduledFuture<?> heartbeats;
+    private int heartbeatSequence = 0;
+    private final Map<Integer, Long> heartbeatsSent = new ConcurrentHashMap<>();
+
+    private ExecutionMode executionMode = ExecutionMode.fromSystemProperty();
+    private ExecutorService executor;
+    private Clock clock = Clock.system(HEARTBEAT_TIMER);
+
+    private DurabilityMode durabilityMode = DurabilityMode.fromSystemProperty();
+    private Path walDirectory = Paths.get(System.getProperty("paxos.wal.dir", "paxos-wal"));
+    private WriteAheadLog wal;
+    private final List<WriteAheadLog> groupWals = new ArrayList<>();
+    // Set by a Simulation: the write-ahead logs live in this map instead of files
+    private Map<Path, ByteBuffer> walMemory;
+    private long walCompactionBytes = 0; // 0 keeps the "paxos.wal.compact.kb" threshold
+    private boolean publishMetrics = true;
 
 
     /**
@@ -32,98 +81,516 @@ public class PaxosNode {
      * 
      * This constructor initializes a PaxosNode with its unique ID, a list of peers,
      * and a set of proposer IDs. It also determines whether this node is a proposer.
+     * Node i is the i-th entry of `peers`; the transport is chosen by the "paxos.transport"
+     * system property and defaults to TCP.
      */
     public PaxosNode(int nodeId, List<InetSocketAddress> peers, Set<Integer> proposerIds) {
+        this(nodeId, new ArrayList<>(TcpTransport.addressBook(peers).keySet()), proposerIds,
+             Transport.fromSystemProperty(peers));
+    }
+
+    /**
+     * Constructor for a PaxosNode on an explicit transport.
+     * 
+     * @param nodeId The unique identifier for this node.
+     * @param peerIds The IDs of every node in the Paxos network, including this one.
+     * @param proposerIds A set of IDs representing nodes that can act as proposers.
+     * @param transport The network this node sends and receives messages on.
+     */
+    public PaxosNode(int nodeId, List<Integer> peerIds, Set<Integer> proposerIds, Transport transport) {
         this.nodeId = nodeId;
-        this.peers = peers;
+        this.peerIds = peerIds;
         this.proposerIds = proposerIds;
+        this.metrics = new NodeMetrics(nodeId);
+        this.transport = new MeteredTransport(transport, metrics);
+        if (transport instanceof TcpTransport) {
+            metrics.setFramesSent(((TcpTransport) transport)::framesWritten);
+        }
         this.isProposer = proposerIds.contains(nodeId);
+        this.replicatedLog = new MultiPaxos(nodeId, peerIds, proposerIds, this.transport);
+        replicatedLog.setMetrics(metrics);
+        this.groups = Collections.singletonList(replicatedLog);
+        metrics.setGauges(quorumFutures::size, this::inFlightSlots);
+
+        setQuorumSystem(QuorumSystem.fromSystemProperty(acceptorIds()));
+        setGroupCount(Integer.getInteger("paxos.groups", 1));
+    }
+
+    /**
+     * Returns the IDs of the acceptors, i.e. every node that is not a proposer.
+     */
+    public List<Integer> acceptorIds() {
+        List<Integer> acceptors = new ArrayList<>();
+        for (int peerId : peerIds) {
+            if (!proposerIds.contains(peerId)) {
+                acceptors.add(peerId);
+            }
+        }
+        return acceptors;
+    }
+
+    /**
+     * Selects which sets of acceptors count as a quorum, for leader election and for the
+     * replicated log. Must be called before `start()`.
+     * 
+     * @param quorums The quorum system over this cluster's acceptors.
+     * 
+     * Defaults to the system configured by the "paxos.quorum" system property.
+     */
+    public void setQuorumSystem(QuorumSystem quorums) {
+        this.quorums = quorums;
+        this.electionQuorums = new ElectionQuorums(quorums);
+        this.promiseTracker = new QuorumTracker(electionQuorums, QuorumSystem.Phase.ONE, Collections.max(peerIds), this::onPromiseQuorum);
+        for (MultiPaxos log : groups) {
+            log.setQuorumSystem(quorums);
+        }
+    }
+
+    /**
+     * Splits this node's replicated state into independent Paxos groups. Must be called before
+     * `start()`, with the same count on every node.
+     * 
+     * @param groupCount The number of groups, at least 1.
+     * 
+     * Each group is a separate Multi-Paxos log with its own ballots, leader and acceptor state;
+     * its messages carry its group ID. All groups share this node's transport, connections and
+     * executor, so adding groups adds no threads or sockets. Keys are assigned to groups by
+     * `groupOf`. Defaults to the "paxos.groups" system property (1).
+     */
+    public void setGroupCount(int groupCount) {
+        if (groupCount < 1) {
+            throw new IllegalArgumentException("A node needs at least one Paxos group, not " + groupCount);
+        }
+        List<MultiPaxos> logs = new ArrayList<>(groups.subList(0, Math.min(groupCount, groups.size())));
+        for (int groupId = logs.size(); groupId < groupCount; groupId++) {
+            MultiPaxos log = new MultiPaxos(nodeId, peerIds, proposerIds, new GroupTransport(transport, groupId));
+            log.setMetrics(metrics);
+            log.setClock(clock);
+            log.setQuorumSystem(quorums);
+            logs.add(log);
+        }
+        groups = Collections.unmodifiableList(logs);
+    }
+
+    /**
+     * Returns the unique identifier of this node.
+     */
+    public int nodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Returns the Multi-Paxos replicated log hosted by this node.
+     * 
+     * Proposers submit commands to it; every node applies the decided commands in slot order.
+     */
+    public MultiPaxos replicatedLog() {
+        return replicatedLog;
+    }
+
+    /**
+     * Returns the number of Paxos groups hosted by this node.
+     */
+    public int groupCount() {
+        return groups.size();
+    }
+
+    /**
+     * Returns the replicated log of one Paxos group; group 0 is `replicatedLog()`.
+     * 
+     * @param groupId The group, from 0 to `groupCount() - 1`.
+     */
+    public MultiPaxos group(int groupId) {
+        return groups.get(groupId);
+    }
+
+    /**
+     * Returns the group that owns a key.
+     * 
+     * @param key The key, e.g. the command or the key a command updates.
+     * 
+     * Keys are hash-partitioned: the key's bits are mixed first, so runs of consecutive keys
+     * spread over all groups instead of filling them in turn.
+     */
+    public int groupOf(int key) {
+        int hash = key;
+        // Finalizer of MurmurHash3
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return Math.floorMod(hash, groups.size());
+    }
+
+    /**
+     * Returns the proposer meant to lead a group: the groups are dealt out to the proposers in
+     * ID order, so every proposer leads its share and groups do not compete for one leader.
+     * 
+     * @param groupId The group.
+     */
+    public int preferredLeader(int groupId) {
+        List<Integer> proposers = new ArrayList<>(new TreeSet<>(proposerIds));
+        return proposers.get(groupId % proposers.size());
+    }
+
+    private int inFlightSlots() {
+        int inFlight = 0;
+        for (MultiPaxos log : groups) {
+            inFlight += log.inFlightSlots();
+        }
+        return inFlight;
+    }
+
+    /**
+     * Returns the counters, gauges and latency histograms of this node.
+     */
+    public NodeMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Selects how this node accepts inbound connections. Must be called before `start()`.
+     * 
+     * @param listenerMode The listener implementation to use.
+     * 
+     * Only applies to the TCP transport. Defaults to the mode configured by the
+     * "paxos.listener" system property.
+     */
+    public void setListenerMode(ListenerMode listenerMode) {
+        Transport network = ((MeteredTransport) transport).delegate();
+        if (network instanceof TcpTransport) {
+            ((TcpTransport) network).setListenerMode(listenerMode);
+        }
+    }
+
+    /**
+     * Makes this node exchange heartbeats with every peer and track how likely each peer is to
+     * have failed. Must be called before `start()`.
+     * 
+     * @param heartbeatMillis The interval between heartbeats, or 0 to disable failure detection.
+     * @param threshold       The phi suspicion level at which a peer is considered failed.
+     * 
+     * Suspected acceptors are left out of proposals while the others can still form a quorum,
+     * and the first proposer that is not suspected replaces a suspected leader. Defaults to the
+     * "paxos.heartbeat.ms" (0) and "paxos.fd.threshold" (8) system properties.
+     */
+    public void setFailureDetection(long heartbeatMillis, double threshold) {
+        this.heartbeatMillis = heartbeatMillis;
+        this.suspicionThreshold = threshold;
     }
 
     /**
-     * Starts the Paxos node by setting up a server socket to listen for incoming messages
+     * Returns the phi-accrual failure detector of this node, or null if it runs without heartbeats.
+     */
+    public FailureDetector failureDetector() {
+        return failureDetector;
+    }
+
+    /**
+     * Selects which threads run this node's handlers and sends. Must be called before `start()`.
+     * 
+     * @param executionMode The execution mode to use.
+     * 
+     * Defaults to the mode configured by the "paxos.execution" system property.
+     */
+    public void setExecutionMode(ExecutionMode executionMode) {
+        this.executionMode = executionMode;
+    }
+
+    /**
+     * Runs this node's handlers on the given executor instead of one created for the execution
+     * mode. Must be called before `start()`; the node shuts the executor down when it stops.
+     * 
+     * @param executor The executor to use, e.g. one of a Simulation's.
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Replaces the system clock behind this node's election timeouts and backoff, heartbeats,
+     * failure detection, batching and leases. Must be called before `start()`.
+     * 
+     * @param clock The clock to use, e.g. a Simulation's virtual clock.
+     * 
+     * Together with `setExecutor`, this lets a Simulation run every node on one thread in
+     * virtual time.
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+        retries.setClock(clock);
+        for (MultiPaxos log : groups) {
+            log.setClock(clock);
+        }
+    }
+
+    /**
+     * Selects whether this node's acceptor state survives a restart. Must be called before `start()`.
+     * 
+     * @param durabilityMode How promises and accepts are recorded before they are answered.
+     * @param walDirectory   The directory holding the write-ahead log; each node uses "node-<id>.wal" in it.
+     * 
+     * Defaults to the mode configured by the "paxos.durability" system property and the directory
+     * configured by "paxos.wal.dir".
+     */
+    public void setDurability(DurabilityMode durabilityMode, Path walDirectory) {
+        this.durabilityMode = durabilityMode;
+        this.walDirectory = walDirectory;
+    }
+
+    /**
+     * Sets the size past which this node compacts a write-ahead log. Must be called before `start()`.
+     * 
+     * @param bytes The threshold in bytes.
+     * 
+     * Defaults to the "paxos.wal.compact.kb" system property.
+     */
+    public void setWalCompactionThreshold(long bytes) {
+        this.walCompactionBytes = bytes;
+    }
+
+    /**
+     * Keeps this node's write-ahead logs in memory rather than in files. Must be called before `start()`.
+     * 
+     * @param memory The contents of the logs by path, which outlive the node, so that a node started
+     *               again with the same map recovers what it recorded. The durability mode still
+     *               decides whether anything is recorded; in memory, MAPPED and FSYNC are the same.
+     * 
+     * Package-private: it only serves Simulation, whose nodes never touch the disk.
+     */
+    void setWalMemory(Map<Path, ByteBuffer> memory) {
+        this.walMemory = memory;
+    }
+
+    /**
+     * Selects whether `start()` registers this node's metrics as a JMX MXBean. Must be called
+     * before `start()`; defaults to true. A Simulation turns it off, since its nodes are started
+     * by the thousand and nobody watches them over JMX.
+     */
+    public void setMetricsPublished(boolean publish) {
+        this.publishMetrics = publish;
+    }
+
+    /**
+     * Starts the Paxos node by starting its transport to listen for incoming messages
      * and determining the node's role (Proposer or Acceptor). 
      * 
-     * @throws IOException If the server socket cannot be bound to the specified port.
+     * @throws IOException If the write-ahead log cannot be opened or the transport cannot bind its endpoint.
      * 
-     * This method initializes the server socket with a port based on the node's ID,
-     * logs the node's role, and starts a separate thread to handle incoming connections.
+     * With durability enabled, the state recorded in the write-ahead log is restored before the
+     * node accepts any message.
      */
     public void start() throws IOException {
-        serverSocket = new ServerSocket(8000 + nodeId);
+        int[] recovered = {0};
+        wal = openWal("node-" + nodeId + ".wal", (type, fields) -> {
+            recover(type, fields);
+            recovered[0]++;
+        });
+        replicatedLog.setWriteAheadLog(wal);
+        if (recovered[0] > 0) {
+            AsyncLogger.info("Node " + nodeId + " recovered " + recovered[0] + " records from " + wal.path());
+        }
+        // The other groups keep a log file each, so their records never mix
+        for (int groupId = 1; groupId < groups.size(); groupId++) {
+            MultiPaxos log = groups.get(groupId);
+            WriteAheadLog groupWal = openWal("node-" + nodeId + "-group-" + groupId + ".wal", log::recover);
+            log.setWriteAheadLog(groupWal);
+            groupWals.add(groupWal);
+        }
+
+        if (executor == null) {
+            executor = executionMode.newExecutor();
+        }
         String role = isProposer ? "PROPOSER" : "ACCEPTOR";
-        System.out.println("Node " + nodeId + " started as " + role + ", listening on port " + (8000 + nodeId));
+        transport.start(nodeId, executor, this::processMessage);
+        if (publishMetrics) {
+            metrics.register();
+        }
+        AsyncLogger.info("Node " + nodeId + " started as " + role + ", listening on " + transport.describe());
+        if (heartbeatMillis > 0) {
+            startHeartbeats();
+        }
+    }
 
-        new Thread(this::listenForMessages).start(); // Start listening for messages
+    /**
+     * Opens one of this node's write-ahead logs, in memory if the node was given a map for them.
+     */
+    private WriteAheadLog openWal(String name, WriteAheadLog.RecordHandler recovery) throws IOException {
+        Path path = walDirectory.resolve(name);
+        WriteAheadLog log = walMemory != null && durabilityMode != DurabilityMode.NONE
+                ? WriteAheadLog.openInMemory(path, walMemory, recovery)
+                : WriteAheadLog.open(path, durabilityMode, recovery);
+        if (walCompactionBytes > 0) {
+            log.setCompactionThreshold(walCompactionBytes);
+        }
+        return log;
+    }
+
+    private void startHeartbeats() {
+        List<Integer> others = new ArrayList<>(peerIds);
+        others.remove(Integer.valueOf(nodeId));
+        failureDetector = new FailureDetector(others, TimeUnit.MILLISECONDS.toNanos(heartbeatMillis), suspicionThreshold);
+        failureDetector.setListener(this::onSuspicionChanged);
+        metrics.setPeerSuspicion(() -> failureDetector.suspicion(clock.nanoTime()));
+        failureDetector.start(clock.nanoTime());
+        heartbeats = clock.scheduleAtFixedRate(this::sendHeartbeats, TimeUnit.MILLISECONDS.toNanos(heartbeatMillis));
     }
 
     /**
-     * Continuously listens for incoming connections on the server socket. 
-     * 
-     * This method accepts client connections in a loop, spawns a new thread for each 
-     * connection, and processes the received message.
-     * 
-     * Handles exceptions to ensure the server keeps running even in the case of errors 
-     * while accepting or processing a message.
+     * Stops the node: closes its transport and shuts down its executor.
      */
-    private void listenForMessages() {
-        try {
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                new Thread(() -> {
-                    try {
-                        BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                        String message = reader.readLine();
-                        if (message != null) {
-                            processMessage(message);
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }).start();
+    public void stop() {
+        if (heartbeats != null) {
+            heartbeats.cancel(false);
+        }
+        metrics.unregister();
+        transport.close();
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (wal != null) {
+            try {
+                wal.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        for (WriteAheadLog groupWal : groupWals) {
+            try {
+                groupWal.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Restores one state change read from the write-ahead log. Records are replayed in the
+     * order they were appended, so later records overwrite earlier ones.
+     */
+    private void recover(WalRecordType type, int[] fields) {
+        switch (type) {
+            case PROMISED:
+                highestProposalValue = fields[0];
+                acceptedProposalValue = fields[1];
+                break;
+            case AGREED:
+                highestProposalValue = fields[0];
+                agreedProposals.add(fields[0]);
+                break;
+            case DECLARED:
+                declaredLeaders.add(fields[0]);
+                break;
+            default:
+                replicatedLog.recover(type, fields);
+                break;
         }
     }
 
     /**
      * Processes incoming messages based on their type and the role of the current node (Proposer or Acceptor).
      * 
-     * @param message The received message, formatted as "type:nodeId:value".
+     * @param message The decoded message.
      * 
      * This method delegates message handling to appropriate handlers (`handlePromise`, `handleAccept`,
-     * `handleProposal`, or `handleLeaderDeclaration`) using an executor for asynchronous processing.
+     * `handleProposal`, `handleLeaderDeclaration`, or the replicated log) using an executor for
+     * asynchronous processing.
      */
-    private void processMessage(String message) {
-        String[] parts = message.split(":");
-
-        executor.submit(() -> {
-            // If this node is a proposer, it only processes promises and accepts
+    private void processMessage(PaxosMessage message) {
+        metrics.handlerQueued();
+        Runnable handler = () -> {
+            metrics.handlerStarted();
+            // Heartbeats are answered by every node, whatever its role
+            if (message.type() == MessageType.HEARTBEAT) {
+                sendMessage(message.nodeId(), PaxosMessage.of(MessageType.HEARTBEAT_ACK, nodeId, message.value()));
+                return;
+            }
+            if (message.type() == MessageType.HEARTBEAT_ACK) {
+                handleHeartbeatAck(message.nodeId(), message.value());
+                return;
+            }
+            // Replicated-log messages are handled by their group's Multi-Paxos log whatever the role
+            if (message.type().isLogMessage()) {
+                List<MultiPaxos> logs = groups;
+                if (message.groupId() >= 0 && message.groupId() < logs.size()) {
+                    logs.get(message.groupId()).handleMessage(message);
+                }
+                return;
+            }
+            // If this node is a proposer, it only processes promises, accepts, rejections and other leaders' declarations
             if (isProposer) {
-                switch (parts[0]) {
-                    case "promise":
-                        handlePromise(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+                switch (message.type()) {
+                    case PROMISE:
+                        handlePromise(message.nodeId(), message.value());
+                        break;
+                    case ACCEPT:
+                        handleAccept(message.nodeId(), message.value());
+                        break;
+                    case REJECT:
+                        handleRejection(message.nodeId(), message.ballot(), message.value());
                         break;
-                    case "accept":
-                        handleAccept(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+                    case DECLARE_LEADER:
+                        noteDeclaredLeader(message.nodeId(), message.value());
+                        break;
+                    default:
                         break;
                 }
             } 
             // If this node is an acceptor, it only processes proposals and leader declarations
             else {
-                switch (parts[0]) {
-                    case "propose":
-                        handleProposal(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+                switch (message.type()) {
+                    case PROPOSE:
+                        handleProposal(message.nodeId(), message.value());
+                        break;
+                    case DECLARE_LEADER:
+                        handleLeaderDeclaration(message.nodeId(), message.value());
                         break;
-                    case "declareLeader":
-                        handleLeaderDeclaration(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+                    default:
                         break;
                 }
             }
+        };
+        executor.submit(() -> {
+            handler.run();
+            compactWals();
         });
     }
 
+    /**
+     * Compacts every write-ahead log of this node that has grown past its threshold. Runs after
+     * a handler, with no lock held, so it can take the election's lock before the log's.
+     */
+    private void compactWals() {
+        if (wal != null && wal.needsCompaction()) {
+            proposalLock.lock();
+            try {
+                replicatedLog.compact(wal, out -> {
+                    // Replaying AGREED also moves highestProposalValue, so PROMISED goes last
+                    synchronized (agreedProposals) {
+                        for (int agreed : agreedProposals) {
+                            out.onRecord(WalRecordType.AGREED, new int[] {agreed});
+                        }
+                    }
+                    synchronized (declaredLeaders) {
+                        for (int declared : declaredLeaders) {
+                            out.onRecord(WalRecordType.DECLARED, new int[] {declared});
+                        }
+                    }
+                    out.onRecord(WalRecordType.PROMISED, new int[] {highestProposalValue, acceptedProposalValue});
+                });
+            } finally {
+                proposalLock.unlock();
+            }
+        }
+        for (int groupId = 1; groupId < groups.size(); groupId++) {
+            WriteAheadLog groupWal = groupWals.get(groupId - 1);
+            if (groupWal.needsCompaction()) {
+                groups.get(groupId).compact(groupWal, out -> { });
+            }
+        }
+    }
+
 
     /**
      * Handles a proposal received by an Acceptor node.
@@ -132,27 +599,35 @@ public class PaxosNode {
      * @param proposalValue The value of the proposal.
      * 
      * This method evaluates the proposal against the highest proposal value seen so far.
-     * If the proposal is acceptable, the Acceptor updates its internal state and sends a
-     * promise back to the proposer.
+     * If the proposal is acceptable, the Acceptor updates its internal state, records it in the
+     * write-ahead log and sends a promise back to the proposer once the record is durable.
      */
     private void handleProposal(int proposerId, int proposalValue) {
         if (!isProposer) {
-            synchronized (proposalLock) {
-                synchronizedOutput(() -> {
-                    System.out.println("ACCEPTOR Node " + nodeId + " received proposal from PROPOSER Node " + 
-                                    proposerId + " with value: " + proposalValue);
-                });
+            CompletableFuture<Void> promised = null;
+            int rejectedBy = -1;
+            proposalLock.lock();
+            try {
+                AsyncLogger.log(LogEvent.PROPOSAL_RECEIVED, nodeId, proposerId, proposalValue);
 
                 if (proposalValue > highestProposalValue) {
                     highestProposalValue = proposalValue;
                     acceptedProposalValue = proposalValue;
-                    synchronizedOutput(() -> {
-                        System.out.println("ACCEPTOR Node " + nodeId + " accepts proposal " + 
-                                        proposalValue + " from PROPOSER Node " + proposerId);
-                    });
-
-                    sendMessage(peers.get(proposerId - 1), "promise:" + nodeId + ":" + proposalValue);
+                    AsyncLogger.log(LogEvent.PROPOSAL_ACCEPTED, nodeId, proposalValue, proposerId);
+                    promised = wal.append(WalRecordType.PROMISED, highestProposalValue, acceptedProposalValue);
+                } else if (proposalValue < highestProposalValue) {
+                    rejectedBy = highestProposalValue;
                 }
+            } finally {
+                proposalLock.unlock();
+            }
+
+            // Reply outside the lock; the simulated latency is applied without blocking this handler
+            if (promised != null) {
+                promised.thenRun(() -> sendMessage(proposerId, PaxosMessage.of(MessageType.PROMISE, nodeId, proposalValue)));
+            } else if (rejectedBy >= 0) {
+                // Tell the proposer which ballot beat it, so it can retry above it without waiting for a timeout
+                sendMessage(proposerId, new PaxosMessage(MessageType.REJECT, nodeId, rejectedBy, proposalValue));
             }
         }
     }
@@ -163,51 +638,76 @@ public class PaxosNode {
      * @param acceptorId The ID of the Acceptor node sending the promise.
      * @param promisedValue The proposal value for which the promise was made.
      * 
-     * This method increments the count of promises received for a specific proposal value.
-     * Once the required majority of promises is reached, the Proposer declares itself as the leader.
+     * This method records the acceptor's promise for the proposal value in this node's quorum
+     * tracker, which counts every acceptor once. When the required majority of promises is reached,
+     * `onPromiseQuorum` runs exactly once and the Proposer declares itself as the leader.
      */
     private void handlePromise(int acceptorId, int promisedValue) {
         if (isProposer) {
-            synchronizedOutput(() -> {
-                System.out.println("PROPOSER Node " + nodeId + " received promise from ACCEPTOR Node " + 
-                                acceptorId + " with value: " + promisedValue);
-            });
-
-            promiseCount.put(promisedValue, promiseCount.getOrDefault(promisedValue, 0) + 1);
-
-            int requiredPromises = (peers.size() - proposerIds.size()) / 2 + 1;
-            
-            if (promiseCount.get(promisedValue) >= requiredPromises) {
-                declareLeader(promisedValue);
+            AsyncLogger.log(LogEvent.PROMISE_RECEIVED, nodeId, acceptorId, promisedValue);
+            Long sentAt = proposalStarts.get(promisedValue);
+            if (sentAt != null) {
+                long roundTrip = clock.nanoTime() - sentAt;
+                metrics.promiseRoundTrip(acceptorId).record(roundTrip);
+                retries.recordRtt(acceptorId, roundTrip);
             }
+            promiseTracker.record(promisedValue, acceptorId);
         }
     }
 
+    /**
+     * Called once when a proposal value has been promised by a quorum of acceptors.
+     * 
+     * @param proposalValue The proposal value that reached the quorum.
+     */
+    private void onPromiseQuorum(int proposalValue) {
+        Long sentAt = proposalStarts.get(proposalValue);
+        if (sentAt != null) {
+            metrics.latency(NodeMetrics.TIME_TO_QUORUM).record(clock.nanoTime() - sentAt);
+        }
+        proposalStarts.keySet().removeIf(value -> value < proposalValue);
+        CompletableFuture<Integer> quorum = quorumFutures.remove(proposalValue);
+        if (quorum != null) {
+            quorum.complete(proposalValue);
+        }
+        // Lower proposals of this node can no longer win and are dropped by the tracker
+        quorumFutures.keySet().removeIf(value -> value < proposalValue);
+        declareLeader(proposalValue);
+    }
+
     /**
      * Declares the current node as the leader for a specific proposal value.
      * 
      * @param proposalValue The proposal value for which leadership is being declared.
+     * @return              A future that completes once the declaration has been sent to every peer.
      * 
-     * This method ensures thread-safe declaration of leadership using a synchronized block. 
+     * This method ensures thread-safe declaration of leadership using the proposal lock. 
      * If this proposal value has not already been declared as having a leader, it adds the proposal
-     * value to the `declaredLeaders` set and sends a "declareLeader" message to all peers.
+     * value to the `declaredLeaders` set, records it in the write-ahead log and broadcasts a
+     * "declareLeader" message to all peers once the record is durable. Promises arriving after
+     * the quorum do not trigger another broadcast.
      */
     private final Set<Integer> declaredLeaders = Collections.synchronizedSet(new HashSet<>()); // Track declared leaders
 
-    private void declareLeader(int proposalValue) {
-        synchronized (proposalLock) { // Synchronize to avoid multiple threads entering this block
-            synchronizedOutput(() -> {
-                if (!declaredLeaders.contains(proposalValue)) {
-                    System.out.println("Node " + nodeId + " is declaring itself as the leader for proposal value " + proposalValue);
-                    declaredLeaders.add(proposalValue); // Mark this proposal value as having declared a leader
-                }
-            });
-
-            // Send leadership declaration to peers
-            for (InetSocketAddress peer : peers) {
-                sendMessage(peer, "declareLeader:" + nodeId + ":" + proposalValue);
+    private CompletableFuture<Void> declareLeader(int proposalValue) {
+        CompletableFuture<Void> declared = null;
+        proposalLock.lock(); // Lock to avoid multiple threads entering this block
+        try {
+            if (declaredLeaders.add(proposalValue)) { // Mark this proposal value as having declared a leader
+                AsyncLogger.log(LogEvent.DECLARING_LEADER, nodeId, proposalValue);
+                declared = wal.append(WalRecordType.DECLARED, proposalValue);
             }
+        } finally {
+            proposalLock.unlock();
         }
+
+        if (declared == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        // Send leadership declaration to peers
+        long declaredAt = clock.nanoTime();
+        return declared.thenCompose(ignored -> broadcast(peerIds, PaxosMessage.of(MessageType.DECLARE_LEADER, nodeId, proposalValue)))
+                .whenComplete((ignored, failure) -> metrics.latency(NodeMetrics.DECLARE_PROPAGATION).record(clock.nanoTime() - declaredAt));
     }
 
     /**
@@ -217,16 +717,25 @@ public class PaxosNode {
      * @param proposalValue The proposal value being accepted.
      * 
      * Acceptors will update their `highestProposalValue` and `acceptedProposalValue` 
-     * if the received proposal value is higher. Sends a "promise" message back to the proposer.
+     * if the received proposal value is higher. Sends a "promise" message back to the proposer
+     * once the new state is durable.
      */
     private void handleAccept(int proposerId, int proposalValue) {
         if (!isProposer) {  // Only acceptors will handle the accept message
-            synchronized (proposalLock) {
+            CompletableFuture<Void> promised = null;
+            proposalLock.lock();
+            try {
                 if (proposalValue > highestProposalValue) {
                     highestProposalValue = proposalValue;
                     acceptedProposalValue = proposalValue;
-                    sendMessage(peers.get(proposerId - 1), "promise:" + nodeId + ":" + proposalValue);
+                    promised = wal.append(WalRecordType.PROMISED, highestProposalValue, acceptedProposalValue);
                 }
+            } finally {
+                proposalLock.unlock();
+            }
+
+            if (promised != null) {
+                promised.thenRun(() -> sendMessage(proposerId, PaxosMessage.of(MessageType.PROMISE, nodeId, proposalValue)));
             }
         }
     }
@@ -235,25 +744,226 @@ public class PaxosNode {
      * Proposes leadership for a given proposal value.
      * 
      * @param proposalValue The value for which leadership is proposed.
+     * @return              A future that completes with the ballot this node was elected with: the
+     *                      proposal value itself, or a higher ballot if the election needed more
+     *                      than one round. It fails if another leader is declared for this value
+     *                      or a higher one, if every round fails, or if this node proposes again.
      * 
      * Proposers will send a "propose" message to all acceptors, asking them to consider 
-     * the proposal value. The method ensures thread safety while sending the proposal.
+     * the proposal value. The proposal is sent to every acceptor concurrently, so the time to
+     * quorum is set by the quorum-th fastest acceptor rather than by the sum of peer latencies.
+     * 
+     * A round that does not reach its quorum within the timeout computed by `RetryScheduler`, or
+     * that enough acceptors reject, is retried after a randomized backoff with a ballot above every
+     * ballot seen so far, up to "paxos.retry.rounds" rounds (default 8).
      */
-    public void proposeLeadership(int proposalValue) {
-        if (isProposer) {  // Only proposers can propose leadership
-            synchronized (proposalLock) {
-                synchronizedOutput(() -> {
-                    System.out.println("PROPOSER Node " + nodeId + " is proposing leadership for value " + proposalValue);
-                });
-                // Send the proposal to the acceptors
-                for (InetSocketAddress peer : peers) {
-                    int peerId = peer.getPort() - 8000;
-                    if (!proposerIds.contains(peerId)) {
-                        sendMessage(peer, "propose:" + nodeId + ":" + proposalValue);
-                    }
+    public CompletableFuture<Integer> proposeLeadership(int proposalValue) {
+        if (!isProposer) {  // Only proposers can propose leadership
+            return new CompletableFuture<>();
+        }
+
+        AsyncLogger.log(LogEvent.PROPOSING, nodeId, proposalValue);
+
+        Election started = new Election(proposalValue);
+        Election previous;
+        electionLock.lock();
+        try {
+            previous = election;
+            election = started;
+            startRound(started, proposalValue);
+        } finally {
+            electionLock.unlock();
+        }
+        if (previous != null) {
+            previous.fail(new CancellationException("Node " + nodeId + " proposed " + proposalValue + " instead"));
+        }
+        return started.decided;
+    }
+
+    /**
+     * Sends one round of an election. Called with `electionLock` held.
+     */
+    private void startRound(Election current, int ballot) {
+        current.ballot = ballot;
+        current.rejections.clear();
+
+        // Send the proposal to the acceptors, leaving out those suspected to have failed
+        List<Integer> acceptors = liveAcceptors();
+        current.targets = acceptors.size();
+        // A higher proposal replaces every lower one still waiting for promises; earlier rounds keep
+        // their start times so that late promises still teach the retry scheduler the real RTT
+        promiseTracker.supersede(ballot);
+        quorumFutures.keySet().removeIf(value -> value < ballot);
+        CompletableFuture<Integer> quorum = quorumFuture(ballot);
+        proposalStarts.put(ballot, clock.nanoTime());
+        quorum.thenAccept(elected -> onElected(current, elected));
+
+        int round = current.round;
+        long timeout = retries.timeoutNanos(acceptors, electionQuorums.minimumSize(QuorumSystem.Phase.ONE), round);
+        current.timeout = retries.schedule(() -> retry(current, ballot, false), timeout);
+        broadcast(acceptors, PaxosMessage.of(MessageType.PROPOSE, nodeId, ballot));
+    }
+
+    private void onElected(Election current, int ballot) {
+        electionLock.lock();
+        try {
+            if (current.timeout != null) {
+                current.timeout.cancel(false);
+            }
+            if (ballot > highestDeclaredBallot) {
+                highestDeclaredBallot = ballot;
+                declaredLeaderId = nodeId;
+            }
+        } finally {
+            electionLock.unlock();
+        }
+        if (current.decided.complete(ballot)) {
+            metrics.roundsPerDecision(current.round);
+        }
+    }
+
+    /**
+     * Handles an acceptor's rejection of one of this proposer's ballots.
+     * 
+     * @param acceptorId      The ID of the rejecting acceptor.
+     * @param promisedBallot  The higher ballot the acceptor has promised.
+     * @param rejectedBallot  The ballot it rejected.
+     * 
+     * Once so many acceptors have rejected the current round that it can no longer reach a
+     * quorum, the round is retried without waiting for its timeout.
+     */
+    private void handleRejection(int acceptorId, int promisedBallot, int rejectedBallot) {
+        AsyncLogger.log(LogEvent.PROPOSAL_REJECTED, acceptorId, rejectedBallot, promisedBallot);
+        Long sentAt = proposalStarts.get(rejectedBallot);
+        if (sentAt != null) {
+            retries.recordRtt(acceptorId, clock.nanoTime() - sentAt);
+        }
+        boolean hopeless;
+        Election current;
+        electionLock.lock();
+        try {
+            highestRejectedBallot = Math.max(highestRejectedBallot, promisedBallot);
+            current = election;
+            if (current == null || current.ballot != rejectedBallot) {
+                return;
+            }
+            current.rejections.add(acceptorId);
+            hopeless = current.targets - current.rejections.size() < electionQuorums.minimumSize(QuorumSystem.Phase.ONE);
+        } finally {
+            electionLock.unlock();
+        }
+        if (hopeless) {
+            retry(current, rejectedBallot, true);
+        }
+    }
+
+    /**
+     * Remembers a leader declared by another proposer. This proposer's election fails if its
+     * value is not above the declared ballot, since a leader has been chosen in its place.
+     */
+    private void noteDeclaredLeader(int leaderId, int ballot) {
+        Election lost = null;
+        electionLock.lock();
+        try {
+            if (ballot > highestDeclaredBallot) {
+                highestDeclaredBallot = ballot;
+                declaredLeaderId = leaderId;
+            }
+            if (election != null && election.value <= ballot) {
+                lost = election;
+            }
+        } finally {
+            electionLock.unlock();
+        }
+        if (lost != null && !lost.decided.isDone()) {
+            lost.fail(new IllegalStateException("A leader was already declared for proposal " + ballot));
+        }
+    }
+
+    /**
+     * Gives up on a failed round and schedules the next one after a randomized backoff.
+     * 
+     * A round that acceptors rejected lost to a higher ballot whose proposer is probably about
+     * to be declared leader, so the backoff then also covers one round timeout to give that
+     * declaration time to arrive before this proposer competes again.
+     */
+    private void retry(Election current, int failedBallot, boolean rejected) {
+        Throwable failure = null;
+        electionLock.lock();
+        try {
+            if (election != current || current.ballot != failedBallot || current.retryPending || current.decided.isDone()) {
+                return;
+            }
+            current.timeout.cancel(false);
+            if (highestDeclaredBallot >= current.value) {
+                failure = new IllegalStateException("A leader was already declared for proposal " + highestDeclaredBallot);
+            } else if (current.round >= MAX_ROUNDS) {
+                failure = new TimeoutException("No quorum for proposal " + current.value + " after " + current.round + " rounds");
+            } else {
+                current.round++;
+                current.retryPending = true;
+                long delay = retries.backoffNanos(current.round);
+                if (rejected) {
+                    delay += retries.timeoutNanos(liveAcceptors(), electionQuorums.minimumSize(QuorumSystem.Phase.ONE), 1);
                 }
+                retries.schedule(() -> startRetry(current), delay);
             }
+        } finally {
+            electionLock.unlock();
         }
+        if (failure != null) {
+            current.fail(failure);
+        }
+    }
+
+    private void startRetry(Election current) {
+        electionLock.lock();
+        try {
+            current.retryPending = false;
+            if (election != current || current.decided.isDone()) {
+                return;
+            }
+            if (highestDeclaredBallot >= current.value) {
+                current.fail(new IllegalStateException("A leader was already declared for proposal " + highestDeclaredBallot));
+                return;
+            }
+            // A ballot above everything seen, unique to this proposer
+            int highest = Math.max(current.ballot, Math.max(highestRejectedBallot, highestDeclaredBallot));
+            int ballot = (highest / BALLOT_STRIDE + 1) * BALLOT_STRIDE + nodeId;
+            AsyncLogger.log(LogEvent.ELECTION_RETRY, nodeId, ballot, current.round);
+            startRound(current, ballot);
+        } finally {
+            electionLock.unlock();
+        }
+    }
+
+    /**
+     * One election of this proposer, from its first round until it is decided or given up.
+     */
+    private static final class Election {
+        final int value;
+        final CompletableFuture<Integer> decided = new CompletableFuture<>();
+        final Set<Integer> rejections = new HashSet<>();
+        int ballot;
+        int targets; // acceptors the current round was sent to
+        int round = 1;
+        boolean retryPending;
+        ScheduledFuture<?> timeout;
+
+        Election(int value) {
+            this.value = value;
+        }
+
+        void fail(Throwable cause) {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            decided.completeExceptionally(cause);
+        }
+    }
+
+    private CompletableFuture<Integer> quorumFuture(int proposalValue) {
+        return quorumFutures.computeIfAbsent(proposalValue, value -> new CompletableFuture<>());
     }
 
 
@@ -265,72 +975,217 @@ public class PaxosNode {
      * 
      * The method ensures that a leader declaration is only agreed upon if the proposal value 
      * is higher than or equal to this node's current highest proposal value. Updates agreement 
-     * state and prints whether the node agrees or disagrees.
+     * state under `proposalLock` and logs whether the node agrees or disagrees.
      */
     private final Set<Integer> agreedProposals = Collections.synchronizedSet(new HashSet<>()); // Track agreed proposals
     private void handleLeaderDeclaration(int leaderId, int leaderValue) {
-        synchronizedOutput(() -> {
+        proposalLock.lock();
+        try {
             if (!agreedProposals.contains(leaderValue)) {
                 if (leaderValue >= highestProposalValue) {
-                    System.out.println("Node " + nodeId + " agrees with leader declaration: Node " + leaderId + " is the leader.");
+                    AsyncLogger.log(LogEvent.DECLARATION_AGREED, nodeId, leaderId);
                     highestProposalValue = leaderValue;  // Update the highest proposal value
                     agreedProposals.add(leaderValue); // Mark this proposal value as agreed
+                    wal.append(WalRecordType.AGREED, leaderValue);
                 } else {
-                    System.out.println("Node " + nodeId + " disagrees with leader declaration: Node " + leaderId + " is not the leader.");
+                    AsyncLogger.log(LogEvent.DECLARATION_REJECTED, nodeId, leaderId);
                 }
             }
-        });
+        } finally {
+            proposalLock.unlock();
+        }
     }
 
 
     /**
-     * Sends a message to a target node via its address.
+     * Returns the acceptors that are not suspected to have failed, or every acceptor if those
+     * could not form a phase-1 quorum, in which case the failure detector may well be wrong.
+     */
+    private List<Integer> liveAcceptors() {
+        List<Integer> acceptors = acceptorIds();
+        if (failureDetector == null || failureDetector.suspected().isEmpty()) {
+            return acceptors;
+        }
+        List<Integer> live = new ArrayList<>(acceptors);
+        live.removeAll(failureDetector.suspected());
+        return electionQuorums.isQuorum(QuorumSystem.Phase.ONE, new HashSet<>(live)) ? live : acceptors;
+    }
+
+    /**
+     * Sends one heartbeat to every peer, re-evaluates which peers are suspected and, on a
+     * proposer, replaces a suspected leader. Runs every `heartbeatMillis` on the heartbeat timer.
+     */
+    private void sendHeartbeats() {
+        long now = clock.nanoTime();
+        int sequence = ++heartbeatSequence;
+        heartbeatsSent.put(sequence, now);
+        heartbeatsSent.remove(sequence - 64);
+        PaxosMessage heartbeat = PaxosMessage.of(MessageType.HEARTBEAT, nodeId, sequence);
+        for (int peerId : peerIds) {
+            if (peerId != nodeId) {
+                sendMessage(peerId, heartbeat);
+            }
+        }
+        failureDetector.evaluate(now);
+        if (isProposer) {
+            replaceSuspectedLeader();
+        }
+    }
+
+    /**
+     * Handles a peer's answer to one of this node's heartbeats.
      * 
-     * @param targetAddress The address of the target node.
-     * @param message       The message to be sent.
+     * @param peerId   The ID of the answering peer.
+     * @param sequence The sequence number of the heartbeat it answers.
      * 
-     * Simulates network latency using `NetworkSimulator`, establishes a socket connection 
-     * to the target node, and sends the message. Ensures proper handling of exceptions 
-     * during communication.
+     * The arrival feeds the failure detector, and the round trip feeds the election timeouts.
      */
-    private void sendMessage(InetSocketAddress targetAddress, String message) {
-        try {
-            // Simulate network latency for the target node
-            int targetNodeId = targetAddress.getPort() - 8000;
-            NetworkSimulator.simulateNetwork(this.nodeId, targetNodeId);
+    private void handleHeartbeatAck(int peerId, int sequence) {
+        if (failureDetector == null) {
+            return;
+        }
+        long now = clock.nanoTime();
+        failureDetector.heartbeat(peerId, now);
+        Long sentAt = heartbeatsSent.get(sequence);
+        if (sentAt != null) {
+            retries.recordRtt(peerId, now - sentAt);
+        }
+    }
 
-            Socket clientSocket = new Socket(targetAddress.getHostName(), targetAddress.getPort());
-            try {
-                PrintWriter socketWriter = new PrintWriter(clientSocket.getOutputStream(), true);
-                socketWriter.println(message);
-            } catch (Throwable connectionError) {
-                try {
-                    clientSocket.close();
-                } catch (Throwable closeError) {
-                    connectionError.addSuppressed(closeError);
+    private void onSuspicionChanged(int peerId, boolean suspected) {
+        AsyncLogger.log(suspected ? LogEvent.PEER_SUSPECTED : LogEvent.PEER_TRUSTED, nodeId, peerId);
+        for (MultiPaxos log : groups) {
+            log.setSuspectedPeers(failureDetector.suspected());
+        }
+    }
+
+    /**
+     * Starts a new election, and takes over each replicated log, when their leader is suspected
+     * to have failed. Only the lowest-numbered proposer that is not suspected does so, so the
+     * surviving proposers do not compete with each other.
+     */
+    private void replaceSuspectedLeader() {
+        for (int proposerId : new TreeSet<>(proposerIds)) {
+            if (proposerId == nodeId) {
+                break;
+            }
+            if (!failureDetector.isSuspected(proposerId)) {
+                return;
+            }
+        }
+
+        for (MultiPaxos log : groups) {
+            int logLeader = log.leaderId();
+            if (logLeader > 0 && logLeader != nodeId && failureDetector.isSuspected(logLeader)) {
+                log.becomeLeader();
+            }
+        }
+
+        int suspectedLeader = -1;
+        int ballot = -1;
+        electionLock.lock();
+        try {
+            boolean idle = election == null || election.decided.isDone();
+            if (idle && declaredLeaderId > 0 && declaredLeaderId != nodeId && failureDetector.isSuspected(declaredLeaderId)) {
+                suspectedLeader = declaredLeaderId;
+                int highest = Math.max(highestDeclaredBallot, highestRejectedBallot);
+                if (election != null) {
+                    highest = Math.max(highest, election.ballot);
                 }
-                throw connectionError;
+                ballot = (highest / BALLOT_STRIDE + 1) * BALLOT_STRIDE + nodeId;
             }
-            clientSocket.close();
-        } catch (IOException communicationError) {
-            communicationError.printStackTrace();
+        } finally {
+            electionLock.unlock();
+        }
+        if (ballot > 0) {
+            AsyncLogger.log(LogEvent.LEADER_SUSPECTED, nodeId, suspectedLeader);
+            proposeLeadership(ballot);
         }
     }
 
-    
     /**
-     * Executes a given action within a synchronized block for standard output.
+     * Sends a message to every target concurrently.
      * 
-     * @param action The action to be executed.
+     * @param targetIds The IDs of the target nodes.
+     * @param message   The message to be sent.
+     * @return          A future that completes once the message has been handed to every target.
      * 
-     * Ensures that output to the console is thread-safe by synchronizing access 
-     * to the `System.out` object.
+     * Each send is scheduled independently by the transport, so a slow or unreachable target
+     * delays only its own delivery. Callers must not hold `proposalLock` while waiting on the
+     * returned future.
      */
-    private void synchronizedOutput(Runnable action) {
-        synchronized (System.out) {
-            action.run();
+    private CompletableFuture<Void> broadcast(List<Integer> targetIds, PaxosMessage message) {
+        CompletableFuture<?>[] sends = new CompletableFuture<?>[targetIds.size()];
+        for (int i = 0; i < sends.length; i++) {
+            sends[i] = sendMessage(targetIds.get(i), message);
         }
+        return CompletableFuture.allOf(sends);
+    }
+
+    /**
+     * Sends a message to a target node.
+     * 
+     * @param targetNodeId The ID of the target node.
+     * @param message      The message to be sent.
+     * @return             A future that completes once the message has been handed to the target.
+     * 
+     * The transport applies the simulated latency to the target and returns immediately.
+     */
+    private CompletableFuture<Void> sendMessage(int targetNodeId, PaxosMessage message) {
+        return transport.send(targetNodeId, message);
     }
 
-    
+    /**
+     * The quorums of the single-decree election. A quorum of promises elects a leader without a
+     * second phase, so two election quorums must share an acceptor: a set of acceptors counts only
+     * if it is a quorum in both phases of the configured system. With majority quorums this changes
+     * nothing; with flexible or grid quorums the election needs the larger of the two quorums.
+     */
+    private static final class ElectionQuorums implements QuorumSystem {
+        private final QuorumSystem quorums;
+
+        ElectionQuorums(QuorumSystem quorums) {
+            this.quorums = quorums;
+        }
+
+        @Override
+        public boolean isQuorum(Phase phase, Set<Integer> voters) {
+            return quorums.isQuorum(Phase.ONE, voters) && quorums.isQuorum(Phase.TWO, voters);
+        }
+
+        @Override
+        public int minimumSize(Phase phase) {
+            return Math.max(quorums.minimumSize(Phase.ONE), quorums.minimumSize(Phase.TWO));
+        }
+
+        @Override
+        public String describe() {
+            return quorums.describe() + ", both phases for elections";
+        }
+    }
+
+    /**
+     * The view of this node's transport used by one Paxos group: it stamps the group ID on every
+     * message the group sends. Only sending goes through it; the node owns the underlying
+     * transport and routes received messages to the group.
+     */
+    private static final class GroupTransport implements MultiPaxos.Sender {
+        private final Transport network;
+        private final int groupId;
+
+        GroupTransport(Transport network, int groupId) {
+            this.network = network;
+            this.groupId = groupId;
+        }
+
+        @Override
+        public CompletableFuture<Void> send(int targetNodeId, PaxosMessage message) {
+            return network.send(targetNodeId, message.withGroup(groupId));
+        }
+
+        @Override
+        public String describe() {
+            return network.describe() + " (group " + groupId + ")";
+        }
+    }
 }
@@ -0,0 +1,313 @@
+package paxos;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The outbound side of the TCP transport: one long-lived connection per peer, with a coalescing
+ * stage in front of each.
+ *
+ * Messages for a peer are queued on its connection and written by whichever thread flushes the
+ * queue first, so messages that pile up while a write is in progress leave together in one
+ * bundle frame (see `MessageCodec`) and one write. With a coalescing window configured
+ * ("paxos.coalesce.us", default 0), a message that finds the queue empty also waits up to that
+ * many microseconds for others to join it. A queue holding "paxos.coalesce.bytes" (default
+ * 16384) is flushed at once, and no bundle grows beyond that budget.
+ */
+public class PeerConnectionManager {
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    private static final long INITIAL_BACKOFF_MS = 50;
+    private static final long MAX_BACKOFF_MS = 2000;
+    private static final int ENCODE_BUFFER_SIZE = 512;
+
+    private static final ScheduledExecutorService COALESCE_TIMER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "message-coalescer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<InetSocketAddress, PeerConnection> connections = new ConcurrentHashMap<>();
+    private final WireFormat wireFormat;
+    private final long coalesceWindowMicros;
+    private final int coalesceBytes;
+    private volatile Executor flushExecutor = Runnable::run;
+    private final LongAdder framesWritten = new LongAdder();
+    private final LongAdder messagesWritten = new LongAdder();
+
+    /**
+     * Constructor for the PeerConnectionManager class, coalescing as configured by the
+     * "paxos.coalesce.us" and "paxos.coalesce.bytes" system properties.
+     *
+     * @param wireFormat The format used to encode every outgoing frame.
+     */
+    public PeerConnectionManager(WireFormat wireFormat) {
+        this(wireFormat, Long.getLong("paxos.coalesce.us", 0), Integer.getInteger("paxos.coalesce.bytes", 16384));
+    }
+
+    /**
+     * Constructor for the PeerConnectionManager class.
+     *
+     * @param wireFormat           The format used to encode every outgoing frame.
+     * @param coalesceWindowMicros How long a message may wait for others to share its frame; 0
+     *                             writes at once, bundling only what queued up during earlier writes.
+     * @param coalesceBytes        The largest bundle, in encoded bytes.
+     */
+    public PeerConnectionManager(WireFormat wireFormat, long coalesceWindowMicros, int coalesceBytes) {
+        this.wireFormat = wireFormat;
+        this.coalesceWindowMicros = coalesceWindowMicros;
+        this.coalesceBytes = Math.max(1, Math.min(coalesceBytes, MessageCodec.MAX_FRAME_SIZE / 2));
+    }
+
+    /**
+     * Selects the executor that writes queues whose coalescing window has run out. Defaults to
+     * the coalescing timer thread itself.
+     */
+    public void setFlushExecutor(Executor flushExecutor) {
+        this.flushExecutor = flushExecutor;
+    }
+
+    /**
+     * Sends a message to the target peer over a long-lived connection.
+     *
+     * @param targetAddress The address of the target node.
+     * @param message       The message to be sent.
+     * @return              A future that completes once the frame carrying the message has been
+     *                      written, or fails with the IOException that prevented it, e.g. when
+     *                      the peer cannot be reached or is still inside its reconnect backoff window.
+     *
+     * The connection to each peer is opened lazily on the first send and then reused by every
+     * subsequent send, so a message costs at most one write instead of a TCP handshake and teardown.
+     */
+    public CompletableFuture<Void> send(InetSocketAddress targetAddress, PaxosMessage message) {
+        return connections.computeIfAbsent(targetAddress, PeerConnection::new).send(message);
+    }
+
+    /**
+     * Returns the number of frames written so far; a bundle counts as one frame.
+     */
+    public long framesWritten() {
+        return framesWritten.sum();
+    }
+
+    /**
+     * Returns the number of messages written so far, whether alone or in bundles.
+     */
+    public long messagesWritten() {
+        return messagesWritten.sum();
+    }
+
+    /**
+     * Closes every open peer connection.
+     *
+     * Connections are reopened lazily if the manager is used again afterwards.
+     */
+    public void closeAll() {
+        for (PeerConnection connection : connections.values()) {
+            connection.close();
+        }
+    }
+
+    /**
+     * A message waiting in a connection's queue, with the future completed once it is written.
+     */
+    private static final class Pending {
+        final PaxosMessage message;
+        final int frameSize;
+        final CompletableFuture<Void> written = new CompletableFuture<>();
+
+        Pending(PaxosMessage message, int frameSize) {
+            this.message = message;
+            this.frameSize = frameSize;
+        }
+    }
+
+    /**
+     * A single long-lived connection to one peer. Writes are serialized on the connection so
+     * frames from concurrent senders never interleave on the wire. The locks are ReentrantLocks
+     * because socket writes happen while holding one and virtual threads must not pin on them.
+     */
+    private final class PeerConnection {
+        private final InetSocketAddress address;
+        private final ReentrantLock lock = new ReentrantLock(); // guards the socket and the encode buffer
+        private final ReentrantLock queueLock = new ReentrantLock(); // guards the queue only, never held while writing
+        private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+        private int queuedBytes = 0;
+        private boolean flushScheduled = false;
+        private ByteBuffer encodeBuffer = ByteBuffer.allocate(ENCODE_BUFFER_SIZE);
+        private Socket socket;
+        private OutputStream writer;
+        private long backoffMs = 0;
+        private long nextAttemptAt = 0;
+
+        PeerConnection(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        CompletableFuture<Void> send(PaxosMessage message) {
+            Pending pending = new Pending(message, MessageCodec.maxFrameSize(message, wireFormat));
+            boolean flushNow;
+            queueLock.lock();
+            try {
+                queue.add(pending);
+                queuedBytes += pending.frameSize;
+                flushNow = coalesceWindowMicros <= 0 || queuedBytes >= coalesceBytes;
+                if (!flushNow && !flushScheduled) {
+                    flushScheduled = true;
+                    COALESCE_TIMER.schedule(() -> flushExecutor.execute(this::flush), coalesceWindowMicros, TimeUnit.MICROSECONDS);
+                }
+            } finally {
+                queueLock.unlock();
+            }
+            if (flushNow) {
+                flush();
+            }
+            return pending.written;
+        }
+
+        /**
+         * Writes every queued message. Messages queued by other threads while this one waited
+         * for the connection are written along with its own, as few frames as the budget allows.
+         */
+        void flush() {
+            lock.lock();
+            try {
+                List<Pending> batch;
+                while (!(batch = takeBatch()).isEmpty()) {
+                    try {
+                        writeBatch(batch);
+                    } catch (IOException writeError) {
+                        for (Pending pending : batch) {
+                            pending.written.completeExceptionally(writeError);
+                        }
+                        continue;
+                    }
+                    framesWritten.increment();
+                    messagesWritten.add(batch.size());
+                    for (Pending pending : batch) {
+                        pending.written.complete(null);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Removes the messages of the next frame from the queue: at least one, and more while
+         * they fit the byte budget.
+         */
+        private List<Pending> takeBatch() {
+            queueLock.lock();
+            try {
+                List<Pending> batch = new ArrayList<>();
+                int bytes = MessageCodec.FRAME_HEADER_SIZE + MessageCodec.BUNDLE_HEADER_SIZE;
+                while (!queue.isEmpty() && (batch.isEmpty() || bytes + queue.peek().frameSize <= coalesceBytes)) {
+                    Pending pending = queue.poll();
+                    queuedBytes -= pending.frameSize;
+                    bytes += pending.frameSize;
+                    batch.add(pending);
+                }
+                if (queue.isEmpty()) {
+                    flushScheduled = false;
+                }
+                return batch;
+            } finally {
+                queueLock.unlock();
+            }
+        }
+
+        private void writeBatch(List<Pending> batch) throws IOException {
+            // The frame is encoded once into the connection's own buffer and written from there
+            int frameSize = MessageCodec.FRAME_HEADER_SIZE + MessageCodec.BUNDLE_HEADER_SIZE;
+            for (Pending pending : batch) {
+                frameSize += pending.frameSize;
+            }
+            if (frameSize > encodeBuffer.capacity()) {
+                encodeBuffer = ByteBuffer.allocate(Integer.highestOneBit(frameSize - 1) << 1);
+            }
+            encodeBuffer.clear();
+            if (batch.size() == 1) {
+                MessageCodec.encode(batch.get(0).message, wireFormat, encodeBuffer);
+            } else {
+                encodeBuffer.position(MessageCodec.FRAME_HEADER_SIZE + MessageCodec.BUNDLE_HEADER_SIZE);
+                for (Pending pending : batch) {
+                    MessageCodec.encode(pending.message, wireFormat, encodeBuffer);
+                }
+                MessageCodec.finishBundle(encodeBuffer, 0, batch.size());
+            }
+
+            boolean reused = writer != null;
+            try {
+                write();
+            } catch (IOException writeError) {
+                close();
+                // A reused connection may have been closed by the peer since the last send,
+                // so reconnect once before reporting the failure
+                if (!reused) {
+                    throw writeError;
+                }
+                write();
+            }
+        }
+
+        private void write() throws IOException {
+            ensureConnected();
+            writer.write(encodeBuffer.array(), 0, encodeBuffer.position());
+            writer.flush();
+        }
+
+        private void ensureConnected() throws IOException {
+            if (writer != null) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            if (now < nextAttemptAt) {
+                throw new ConnectException("Peer " + address + " unreachable, retrying in " + (nextAttemptAt - now) + " ms");
+            }
+
+            Socket newSocket = new Socket();
+            try {
+                newSocket.setTcpNoDelay(true);
+                newSocket.setKeepAlive(true);
+                newSocket.connect(new InetSocketAddress(address.getHostName(), address.getPort()), CONNECT_TIMEOUT_MS);
+                writer = new BufferedOutputStream(newSocket.getOutputStream(), ENCODE_BUFFER_SIZE);
+                socket = newSocket;
+                backoffMs = 0;
+                nextAttemptAt = 0;
+            } catch (IOException connectError) {
+                try {
+                    newSocket.close();
+                } catch (IOException closeError) {
+                    connectError.addSuppressed(closeError);
+                }
+                // Back off exponentially so a dead peer is not hammered with connect() calls
+                backoffMs = backoffMs == 0 ? INITIAL_BACKOFF_MS : Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+                nextAttemptAt = System.currentTimeMillis() + backoffMs;
+                throw connectError;
+            }
+        }
+
+        void close() {
+            lock.lock();
+            try {
+                if (socket != null) {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                        // Nothing left to release
+                    }
+                }
+                socket = null;
+                writer = null;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package paxos;
+
+import java.util.*;
+
+/**
+ * Decides which sets of acceptors form a quorum in each phase of Paxos.
+ *
+ * Paxos is safe as long as every phase-1 quorum intersects every phase-2 quorum; phase-1
+ * quorums need not intersect each other, nor phase-2 quorums each other. Implementations trade
+ * a larger phase 1 (run once per leader) for a smaller phase 2 (run for every decision).
+ *
+ *     majority        more than half of the acceptors in both phases (the default)
+ *     flexible:q2     any q2 acceptors in phase 2 and any n - q2 + 1 in phase 1
+ *     flexible:q1:q2  explicit sizes; q1 + q2 must exceed the number of acceptors
+ *     grid:rows       acceptors laid out row by row in `rows` rows: a complete row is a phase-2
+ *                     quorum, and one acceptor from every row is a phase-1 quorum
+ *
+ * The system can be chosen with the "paxos.quorum" system property (e.g. -Dpaxos.quorum=grid:3)
+ * or the "quorum" key of a cluster configuration file.
+ */
+public interface QuorumSystem {
+    enum Phase { ONE, TWO }
+
+    /**
+     * Returns whether the voters form a quorum for the phase. Voters that are not acceptors of
+     * this system are ignored.
+     */
+    boolean isQuorum(Phase phase, Set<Integer> voters);
+
+    /**
+     * Returns the size of the smallest quorum of the phase; no smaller set of voters needs to be
+     * checked with `isQuorum`.
+     */
+    int minimumSize(Phase phase);
+
+    /**
+     * Returns a short description, e.g. "grid 3x3", used in startup logs.
+     */
+    String describe();
+
+    /**
+     * Builds a quorum system from its textual form (see the class comment).
+     *
+     * @param spec        The quorum system, e.g. "majority", "flexible:2" or "grid:3".
+     * @param acceptorIds The acceptors the quorums are drawn from.
+     * @throws IllegalArgumentException If the spec is unknown or its quorums would not intersect.
+     */
+    static QuorumSystem parse(String spec, List<Integer> acceptorIds) {
+        String[] parts = spec.trim().toLowerCase().split(":");
+        switch (parts[0]) {
+            case "majority":
+                return new MajorityQuorums(acceptorIds);
+            case "flexible":
+                if (parts.length == 2) {
+                    int phase2 = Integer.parseInt(parts[1]);
+                    return new FlexibleQuorums(acceptorIds, acceptorIds.size() - phase2 + 1, phase2);
+                }
+                if (parts.length == 3) {
+                    return new FlexibleQuorums(acceptorIds, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+                }
+                break;
+            case "grid":
+                if (parts.length == 2) {
+                    return new GridQuorums(acceptorIds, Integer.parseInt(parts[1]));
+                }
+                break;
+            default:
+                break;
+        }
+        throw new IllegalArgumentException("Unknown quorum system " + spec);
+    }
+
+    /**
+     * Creates the quorum system selected by the "paxos.quorum" system property.
+     *
+     * @param acceptorIds The acceptors the quorums are drawn from.
+     * @return            The configured system, or majority quorums if the property is not set.
+     */
+    static QuorumSystem fromSystemProperty(List<Integer> acceptorIds) {
+        return parse(System.getProperty("paxos.quorum", "majority"), acceptorIds);
+    }
+}
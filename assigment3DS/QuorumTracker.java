@@ -0,0 +1,146 @@
+package paxos;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Counts the votes (promises) each ballot of one proposer has received and reports every ballot
+ * that reaches a quorum exactly once.
+ *
+ * Each ballot has a tally holding a bitset of the voters seen so far and a counter, both updated
+ * with compare-and-set, so concurrent handlers never lose a vote and a voter that answers twice is
+ * only counted once. Whether the voters form a quorum is decided by a `QuorumSystem`, consulted
+ * only once a tally has reached the system's smallest quorum size. Once a ballot reaches its quorum it is decided: its tally and the tallies of
+ * every lower ballot are dropped, and later votes for them are ignored. `supersede` drops lower
+ * ballots without deciding one, e.g. when the proposer moves on to a higher ballot.
+ */
+public class QuorumTracker {
+    /**
+     * Receives each ballot that reached a quorum, on the thread that recorded the deciding vote.
+     */
+    public interface QuorumListener {
+        void onQuorum(int ballot);
+    }
+
+    private final QuorumSystem quorums;
+    private final QuorumSystem.Phase phase;
+    private final int minimumVotes;
+    private final int bitsetWords;
+    private final QuorumListener listener;
+    // Sorted by ballot, so evicting everything below the floor only touches the evicted entries
+    private final ConcurrentNavigableMap<Integer, Tally> tallies = new ConcurrentSkipListMap<>();
+    // Votes for ballots below this floor are ignored; it only ever rises
+    private final AtomicInteger floor = new AtomicInteger(Integer.MIN_VALUE);
+
+    /**
+     * Constructor for the QuorumTracker class.
+     *
+     * @param quorums    The quorum system deciding which voters form a quorum.
+     * @param phase      The Paxos phase whose quorums are counted.
+     * @param maxVoterId The highest voter ID that can vote; IDs must not be negative.
+     * @param listener   Notified once for every ballot that reaches the quorum.
+     */
+    public QuorumTracker(QuorumSystem quorums, QuorumSystem.Phase phase, int maxVoterId, QuorumListener listener) {
+        this.quorums = quorums;
+        this.phase = phase;
+        this.minimumVotes = quorums.minimumSize(phase);
+        this.bitsetWords = (maxVoterId >>> 6) + 1;
+        this.listener = listener;
+    }
+
+    /**
+     * Records a vote.
+     *
+     * @param ballot  The ballot voted for.
+     * @param voterId The ID of the voting node.
+     * @return        True if this vote completed the quorum for the ballot; the listener has then
+     *                already been notified.
+     */
+    public boolean record(int ballot, int voterId) {
+        if (ballot < floor.get()) {
+            return false;
+        }
+        Tally tally = tallies.computeIfAbsent(ballot, b -> new Tally(bitsetWords));
+        if (ballot < floor.get()) {
+            // The ballot was decided or superseded while the tally was being looked up
+            tallies.remove(ballot, tally);
+            return false;
+        }
+        if (!tally.add(voterId) || tally.count.get() < minimumVotes
+                || !quorums.isQuorum(phase, tally.voters()) || !tally.decided.compareAndSet(false, true)) {
+            return false;
+        }
+
+        raiseFloor(ballot + 1);
+        listener.onQuorum(ballot);
+        return true;
+    }
+
+    /**
+     * Forgets every ballot below the given one; votes for them are ignored from now on.
+     *
+     * @param ballot The lowest ballot still tracked.
+     */
+    public void supersede(int ballot) {
+        raiseFloor(ballot);
+    }
+
+    /**
+     * Returns the number of ballots currently being counted.
+     */
+    public int trackedBallots() {
+        return tallies.size();
+    }
+
+    private void raiseFloor(int ballot) {
+        int newFloor = floor.accumulateAndGet(ballot, Math::max);
+        tallies.headMap(newFloor).clear();
+    }
+
+    /**
+     * The votes of one ballot.
+     */
+    private static final class Tally {
+        final AtomicLongArray voters;
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicBoolean decided = new AtomicBoolean();
+
+        Tally(int words) {
+            voters = new AtomicLongArray(words);
+        }
+
+        /**
+         * Sets the voter's bit and counts it, unless it was already set.
+         */
+        boolean add(int voterId) {
+            int word = voterId >>> 6;
+            long bit = 1L << voterId;
+            long current;
+            do {
+                current = voters.get(word);
+                if ((current & bit) != 0) {
+                    return false;
+                }
+            } while (!voters.compareAndSet(word, current, current | bit));
+            count.incrementAndGet();
+            return true;
+        }
+
+        /**
+         * Returns the voters seen so far.
+         */
+        Set<Integer> voters() {
+            Set<Integer> seen = new HashSet<>();
+            for (int word = 0; word < voters.length(); word++) {
+                long bits = voters.get(word);
+                while (bits != 0) {
+                    seen.add(word * 64 + Long.numberOfTrailingZeros(bits));
+                    bits &= bits - 1;
+                }
+            }
+            return seen;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package paxos;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Decides when a proposer gives up on an election round and when it tries again.
+ *
+ * Round timeouts follow the round-trip times observed to each acceptor. Every acceptor has a
+ * smoothed RTT and RTT variation, updated as in TCP (RFC 6298), and a retransmission timeout of
+ * srtt + 4 * rttvar. A round can complete once the fastest quorum has answered, so its timeout is
+ * the quorum-th smallest acceptor timeout. Until an acceptor has been sampled, its timeout is
+ * `INITIAL_TIMEOUT`. The timeout doubles with every further round of the same election.
+ *
+ * Before a new round starts, the proposer waits a random delay between zero and an exponentially
+ * growing bound ("full jitter"), so proposers that failed together do not collide again.
+ */
+public class RetryScheduler {
+    private static final long INITIAL_TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+    private static final long MIN_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long MAX_TIMEOUT = TimeUnit.SECONDS.toNanos(60);
+    private static final long BACKOFF_BASE = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final long MAX_BACKOFF = TimeUnit.SECONDS.toNanos(2);
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "election-retry-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<Integer, RttEstimate> estimates = new ConcurrentHashMap<>();
+    private volatile Clock clock = Clock.system(TIMER);
+
+    /**
+     * Replaces the system clock, whose timers run on the shared "election-retry-timer" thread,
+     * e.g. with a Simulation's virtual clock.
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Records one measured round trip to a peer.
+     *
+     * @param peerId The peer that answered.
+     * @param nanos  The time from sending the request until the answer arrived.
+     */
+    public void recordRtt(int peerId, long nanos) {
+        estimates.computeIfAbsent(peerId, id -> new RttEstimate()).update(Math.max(0, nanos));
+    }
+
+    /**
+     * Returns how long a round may wait for its quorum.
+     *
+     * @param acceptorIds The acceptors the round was sent to.
+     * @param quorumSize  The number of answers the round needs.
+     * @param round       The round of the election, starting at 1.
+     */
+    public long timeoutNanos(List<Integer> acceptorIds, int quorumSize, int round) {
+        long[] timeouts = new long[acceptorIds.size()];
+        for (int i = 0; i < timeouts.length; i++) {
+            RttEstimate estimate = estimates.get(acceptorIds.get(i));
+            timeouts[i] = estimate == null ? INITIAL_TIMEOUT : estimate.timeoutNanos();
+        }
+        Arrays.sort(timeouts);
+        long timeout = timeouts[Math.min(Math.max(quorumSize, 1), timeouts.length) - 1];
+        timeout <<= Math.min(round - 1, 16);
+        return Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, timeout));
+    }
+
+    /**
+     * Returns a random delay before starting the given round, between zero and
+     * BACKOFF_BASE * 2^(round - 2), capped at MAX_BACKOFF.
+     *
+     * @param round The round about to start, at least 2.
+     */
+    public long backoffNanos(int round) {
+        long bound = Math.min(MAX_BACKOFF, BACKOFF_BASE << Math.min(Math.max(round - 2, 0), 16));
+        return clock.randomLong(bound + 1);
+    }
+
+    /**
+     * Runs a task after a delay on this scheduler's clock.
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delayNanos) {
+        return clock.schedule(task, delayNanos);
+    }
+
+    /**
+     * The smoothed round-trip time to one peer.
+     */
+    private static final class RttEstimate {
+        private long smoothedRtt = -1;
+        private long rttVariation;
+
+        synchronized void update(long rtt) {
+            if (smoothedRtt < 0) {
+                smoothedRtt = rtt;
+                rttVariation = rtt / 2;
+            } else {
+                rttVariation = (3 * rttVariation + Math.abs(smoothedRtt - rtt)) / 4;
+                smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+            }
+        }
+
+        synchronized long timeoutNanos() {
+            return smoothedRtt + 4 * rttVariation;
+        }
+    }
+}
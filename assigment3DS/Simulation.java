@@ -0,0 +1,432 @@
+package paxos;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * A deterministic discrete-event simulation of a cluster of PaxosNode instances.
+ *
+ * Every node runs on the caller's thread. Message deliveries, handler tasks and timers are
+ * events in one priority queue, ordered by virtual time and then by the order they were
+ * scheduled. Running an event advances the virtual clock to its time, so latency is modelled
+ * without sleeping and a simulated second costs only the handlers it runs. Jitter, message loss
+ * and the nodes' election backoff all draw from one random generator seeded by the caller, so
+ * the same seed and the same scenario replay exactly the same run; `fingerprint()` summarises
+ * every delivery to check that.
+ *
+ * The network model mirrors NetworkSimulator's: a latency per node or per directed link, a
+ * uniform jitter, and offline nodes, which neither send nor receive. Unlike NetworkSimulator
+ * it belongs to one simulation, so any number of scenarios can run one after another or at once
+ * on different threads.
+ *
+ * Nodes keep their write-ahead logs in memory owned by the simulation, where a restarted node
+ * finds them again, and do not register their metrics with JMX.
+ */
+public class Simulation {
+    private final Random random;
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private long now;
+    private long sequence;
+
+    private final Map<Integer, Consumer<PaxosMessage>> inboxes = new HashMap<>();
+    private final Map<Integer, Integer> nodeLatencies = new HashMap<>();
+    private final Map<Long, Integer> linkLatencies = new HashMap<>();
+    private final Set<Integer> offlineNodes = new HashSet<>();
+    private int jitterMs;
+    private double lossRate;
+
+    private final Map<Path, ByteBuffer> walMemory = new HashMap<>();
+    private final Clock clock = new VirtualClock();
+    private final List<Throwable> failures = new ArrayList<>();
+    private Consumer<String> trace;
+    private long eventsRun;
+    private long messagesDelivered;
+    private long fingerprint = 17;
+
+    /**
+     * Constructor for the Simulation class.
+     *
+     * @param seed The seed of every random choice made during the run.
+     */
+    public Simulation(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Returns the virtual clock, for nodes and for scenario code that needs random numbers.
+     */
+    public Clock clock() {
+        return clock;
+    }
+
+    /**
+     * Creates a transport on the simulated network; it registers its node on `start`.
+     */
+    public Transport newTransport() {
+        return new SimulatedTransport();
+    }
+
+    /**
+     * Creates an executor that runs each task at once, as part of the event that submitted it
+     * (for a node, the delivery of a message). Tasks submitted after the executor was shut down
+     * are dropped.
+     */
+    public ExecutorService newExecutor() {
+        return new SimulatedExecutor();
+    }
+
+    /**
+     * Creates and starts one node per ID on this simulation's network, clock and executors.
+     *
+     * @param nodeIds     The IDs of every node.
+     * @param proposerIds The IDs of the proposers.
+     * @param configure   Called for every node before it starts.
+     * @return            The started nodes, in the order of `nodeIds`.
+     */
+    public List<PaxosNode> launch(List<Integer> nodeIds, Set<Integer> proposerIds, Consumer<PaxosNode> configure) {
+        List<PaxosNode> nodes = new ArrayList<>();
+        for (int nodeId : nodeIds) {
+            nodes.add(start(nodeId, nodeIds, proposerIds, configure));
+        }
+        return nodes;
+    }
+
+    /**
+     * Crashes a node and starts a fresh instance with the same ID in its place. Nothing the old
+     * instance sends afterwards, e.g. from a timer, reaches the network, and the new instance
+     * knows only what its write-ahead log recorded, if `configure` enabled durability.
+     *
+     * @param node        The node to restart.
+     * @param nodeIds     The IDs of every node.
+     * @param proposerIds The IDs of the proposers.
+     * @param configure   Called for the new instance before it starts.
+     * @return            The new instance.
+     */
+    public PaxosNode restart(PaxosNode node, List<Integer> nodeIds, Set<Integer> proposerIds, Consumer<PaxosNode> configure) {
+        node.stop();
+        return start(node.nodeId(), nodeIds, proposerIds, configure);
+    }
+
+    private PaxosNode start(int nodeId, List<Integer> nodeIds, Set<Integer> proposerIds, Consumer<PaxosNode> configure) {
+        PaxosNode node = new PaxosNode(nodeId, nodeIds, proposerIds, newTransport());
+        node.setClock(clock);
+        node.setExecutor(newExecutor());
+        node.setDurability(DurabilityMode.NONE, Paths.get("paxos-wal"));
+        node.setWalMemory(walMemory);
+        node.setMetricsPublished(false);
+        configure.accept(node);
+        try {
+            node.start();
+        } catch (IOException e) {
+            throw new IllegalStateException("Simulated node " + nodeId + " failed to start", e);
+        }
+        return node;
+    }
+
+    public void setNodeLatency(int nodeId, int latencyMs) {
+        nodeLatencies.put(nodeId, latencyMs);
+    }
+
+    public void setLinkLatency(int sourceNode, int targetNode, int latencyMs) {
+        linkLatencies.put(((long) sourceNode << 32) | (targetNode & 0xFFFFFFFFL), latencyMs);
+    }
+
+    public void setJitter(int maxJitterMs) {
+        jitterMs = maxJitterMs;
+    }
+
+    /**
+     * Makes every message independently lost with the given probability.
+     */
+    public void setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+    }
+
+    /**
+     * Takes a node off the network: messages to or from it are dropped, including those already
+     * in flight when they arrive.
+     */
+    public void setNodeOffline(int nodeId) {
+        offlineNodes.add(nodeId);
+    }
+
+    public void setNodeOnline(int nodeId) {
+        offlineNodes.remove(nodeId);
+    }
+
+    /**
+     * Receives a line for every delivered message and every handler failure, e.g. to print the
+     * trace of a replayed run.
+     */
+    public void setTrace(Consumer<String> trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Runs an action at a virtual time, e.g. a client request or a network change.
+     *
+     * @param atMillis The virtual time in milliseconds since the start of the simulation.
+     * @param action   The action, run on the simulation's thread.
+     */
+    public void at(long atMillis, Runnable action) {
+        enqueue(new Event(action, TimeUnit.MILLISECONDS.toNanos(atMillis), 0));
+    }
+
+    /**
+     * Runs events until the virtual clock reaches `untilMillis` or no event is left, then
+     * leaves the clock at that time.
+     */
+    public void runUntil(long untilMillis) {
+        runUntil(() -> false, untilMillis);
+    }
+
+    /**
+     * Runs events until the condition holds, the virtual clock reaches `untilMillis` or no
+     * event is left. The condition is checked after every event.
+     *
+     * @return Whether the condition holds.
+     */
+    public boolean runUntil(BooleanSupplier done, long untilMillis) {
+        long until = TimeUnit.MILLISECONDS.toNanos(untilMillis);
+        while (!done.getAsBoolean()) {
+            Event next = events.peek();
+            if (next == null || next.time > until) {
+                now = Math.max(now, until);
+                return false;
+            }
+            events.poll();
+            now = next.time;
+            eventsRun++;
+            next.run();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the virtual time in milliseconds.
+     */
+    public double nowMillis() {
+        return now / 1e6;
+    }
+
+    public long eventsRun() {
+        return eventsRun;
+    }
+
+    public long messagesDelivered() {
+        return messagesDelivered;
+    }
+
+    /**
+     * Returns a hash of every delivery so far (time, endpoints and message fields). Two runs of
+     * the same scenario and seed have the same fingerprint.
+     */
+    public long fingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Returns the exceptions thrown by handlers and timers. The nodes' executors would have
+     * swallowed them, so a correct run has none.
+     */
+    public List<Throwable> failures() {
+        return failures;
+    }
+
+    private void enqueue(Event event) {
+        event.sequence = sequence++;
+        events.add(event);
+    }
+
+    private int latencyFor(int sourceNode, int targetNode) {
+        Integer linkLatency = linkLatencies.get(((long) sourceNode << 32) | (targetNode & 0xFFFFFFFFL));
+        int latency = linkLatency != null ? linkLatency : nodeLatencies.getOrDefault(targetNode, 0);
+        return jitterMs > 0 ? latency + random.nextInt(jitterMs + 1) : latency;
+    }
+
+    private void failed(Throwable failure) {
+        failures.add(failure);
+        if (trace != null) {
+            trace.accept(String.format("%10.3f ms  handler failed: %s", nowMillis(), failure));
+        }
+    }
+
+    /**
+     * A timed task. Periodic events are rescheduled after each run until they are cancelled.
+     */
+    private final class Event extends FutureTask<Void> implements ScheduledFuture<Void> {
+        private long time;
+        private long sequence;
+        private final long period;
+
+        Event(Runnable task, long time, long period) {
+            super(task, null);
+            this.time = time;
+            this.period = period;
+        }
+
+        @Override
+        public void run() {
+            if (period == 0) {
+                super.run();
+            } else if (runAndReset()) {
+                time += period;
+                enqueue(this);
+            }
+        }
+
+        @Override
+        protected void setException(Throwable failure) {
+            failed(failure);
+            super.setException(failure);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - now, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            Event that = (Event) other;
+            int byTime = Long.compare(time, that.time);
+            return byTime != 0 ? byTime : Long.compare(sequence, that.sequence);
+        }
+    }
+
+    private final class VirtualClock implements Clock {
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable task, long delayNanos) {
+            Event event = new Event(task, now + Math.max(0, delayNanos), 0);
+            enqueue(event);
+            return event;
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long periodNanos) {
+            Event event = new Event(task, now + periodNanos, Math.max(1, periodNanos));
+            enqueue(event);
+            return event;
+        }
+
+        @Override
+        public long randomLong(long bound) {
+            return (long) (random.nextDouble() * bound);
+        }
+    }
+
+    private final class SimulatedExecutor extends AbstractExecutorService {
+        private boolean shutdown;
+
+        @Override
+        public void execute(Runnable task) {
+            if (!shutdown) {
+                task.run();
+            }
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Runnable task, T value) {
+            return new FutureTask<T>(task, value) {
+                @Override
+                protected void setException(Throwable failure) {
+                    failed(failure);
+                    super.setException(failure);
+                }
+            };
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown = true;
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return shutdown;
+        }
+    }
+
+    private final class SimulatedTransport implements Transport {
+        private int nodeId;
+        private Consumer<PaxosMessage> inbound;
+        private boolean closed;
+
+        @Override
+        public void start(int nodeId, Executor executor, Consumer<PaxosMessage> inbound) {
+            this.nodeId = nodeId;
+            this.inbound = inbound;
+            if (inboxes.putIfAbsent(nodeId, inbound) != null) {
+                throw new IllegalStateException("Node " + nodeId + " is already registered on the simulated network");
+            }
+        }
+
+        @Override
+        public CompletableFuture<Void> send(int targetNodeId, PaxosMessage message) {
+            int sourceNodeId = nodeId;
+            if (!closed && !offlineNodes.contains(sourceNodeId) && inboxes.containsKey(sourceNodeId)
+                    && (lossRate == 0 || random.nextDouble() >= lossRate)) {
+                long latency = TimeUnit.MILLISECONDS.toNanos(Math.max(0, latencyFor(sourceNodeId, targetNodeId)));
+                enqueue(new Event(() -> deliver(sourceNodeId, targetNodeId, message), now + latency, 0));
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+
+        private void deliver(int sourceNodeId, int targetNodeId, PaxosMessage message) {
+            Consumer<PaxosMessage> inbox = inboxes.get(targetNodeId);
+            if (inbox == null || offlineNodes.contains(targetNodeId) || offlineNodes.contains(sourceNodeId)) {
+                return;
+            }
+            messagesDelivered++;
+            fingerprint = fingerprint * 31 + now;
+            fingerprint = fingerprint * 31 + (sourceNodeId * 1024L + targetNodeId);
+            fingerprint = fingerprint * 31 + message.type().code();
+            fingerprint = fingerprint * 31 + message.groupId();
+            fingerprint = fingerprint * 31 + message.ballot();
+            fingerprint = fingerprint * 31 + message.slot();
+            fingerprint = fingerprint * 31 + message.value();
+            if (trace != null) {
+                trace.accept(String.format("%10.3f ms  %d -> %d  %s", nowMillis(), sourceNodeId, targetNodeId, message));
+            }
+            inbox.accept(message);
+        }
+
+        @Override
+        public String describe() {
+            return "the simulated network";
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            inboxes.remove(nodeId, inbound);
+        }
+    }
+}
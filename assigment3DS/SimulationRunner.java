@@ -0,0 +1,471 @@
+package paxos;
+
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Runs seeded random scenarios in a Simulation and checks the replicated log's safety in each.
+ *
+ * Run with: java paxos.SimulationRunner [options]
+ *
+ *     --seeds n     number of scenarios to run (default 1000)
+ *     --from s      first seed (default 1); scenario i uses seed s + i
+ *     --seed s      replays one scenario, printing every delivered message with its virtual time
+ *
+ * Each seed determines a cluster of 3 to 7 acceptors and 1 to 3 proposers, per-node and per-link
+ * latencies, jitter, message loss, failure detection, batching and pipelining, Fast Paxos rounds,
+ * majority, flexible or grid quorums, leader leases, nodes that go offline for a while, and
+ * nodes that crash and restart from their write-ahead logs, one at a time or all at once. The logs
+ * are kept in memory; in half of the scenarios that use them they are compacted every few hundred
+ * bytes, so acceptors replace applied entries with snapshots and restarted proposers, which lose
+ * the log they learned, catch up from them. Every proposer competes in one or two elections,
+ * possibly for the same proposal values as the others, and reads the log at random times. It also
+ * either submits commands at random times or drives a KeyValueStore, writing a few keys of its own
+ * one value after another and reading any key. After 600 virtual milliseconds the network heals
+ * and the run continues until 1 virtual second has passed. Every run is then checked for:
+ *
+ *     agreement        no two nodes applied different commands in the same slot
+ *     integrity        every applied command was submitted, and no node applied a command twice
+ *     durability       a command acknowledged as decided in a slot is in that slot on every node
+ *                      that applied it
+ *     linearizability  a read saw every slot acknowledged before it was issued, and a get saw
+ *                      the key's last acknowledged put or a later one
+ *     election safety  no two proposers were elected with the same ballot
+ *     state agreement  nodes that applied the same slots, or installed a snapshot of them, hold
+ *                      the same state
+ *     no crashes       no handler or timer threw an exception
+ *
+ * A restarted node applies as a new node, so a command it applies again is not a repeat.
+ * Integrity and state agreement are not checked for key-value commands, whose words repeat
+ * across commands and whose state is the store's.
+ *
+ * A failing seed is run a second time to confirm that it replays with the same fingerprint; its
+ * `--seed` command line is printed. The exit status is 1 if any scenario failed.
+ *
+ * The summary line reports the measured rate. It depends on the machine, on how many messages the
+ * seeds exchange and on how long the JIT has been warming up: a scenario runs about 2600 events,
+ * and on a single core a sweep runs about 50 scenarios per second over 300 seeds, 100 over 1000
+ * seeds and 250 over 10000, far from thousands.
+ */
+public class SimulationRunner {
+    private static final long FAULT_MILLIS = 600;
+    private static final long HEALED_MILLIS = 1000;
+
+    /** The outcome of one scenario. */
+    private static final class Result {
+        String scenario;
+        String violation;
+        long fingerprint;
+        long events;
+        long messages;
+        int commandsApplied;
+    }
+
+    public static void main(String[] args) {
+        long from = 1;
+        int seeds = 1000;
+        Long replay = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--seeds": seeds = Integer.parseInt(args[++i]); break;
+                case "--from": from = Long.parseLong(args[++i]); break;
+                case "--seed": replay = Long.parseLong(args[++i]); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        AsyncLogger.setLevel(LogLevel.OFF);
+
+        if (replay != null) {
+            Result result = run(replay, System.out::println);
+            System.out.println("Seed " + replay + ": " + result.scenario);
+            System.out.println(result.events + " events, " + result.messages + " messages, "
+                    + result.commandsApplied + " commands applied, fingerprint " + Long.toHexString(result.fingerprint));
+            System.out.println(result.violation == null ? "SAFE" : "VIOLATION: " + result.violation);
+            System.exit(result.violation == null ? 0 : 1);
+        }
+
+        int failed = 0;
+        long events = 0;
+        long messages = 0;
+        long start = System.nanoTime();
+        for (long seed = from; seed < from + seeds; seed++) {
+            Result result = run(seed, null);
+            events += result.events;
+            messages += result.messages;
+            if (result.violation != null) {
+                failed++;
+                Result again = run(seed, null);
+                System.out.println("Seed " + seed + " VIOLATION: " + result.violation);
+                System.out.println("  scenario: " + result.scenario);
+                System.out.println("  " + (again.fingerprint == result.fingerprint ? "replays identically" : "DOES NOT REPLAY")
+                        + "; rerun with: java paxos.SimulationRunner --seed " + seed);
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        boolean deterministic = run(from, null).fingerprint == run(from, null).fingerprint;
+        System.out.printf("%d scenarios (%.1f virtual seconds each) in %.2f s: %.0f scenarios/s, %d events, %d messages, %d failed%n",
+                seeds, HEALED_MILLIS / 1000.0, seconds, seeds / seconds, events, messages, failed);
+        System.out.println("Seed " + from + (deterministic ? " replays identically" : " DOES NOT REPLAY identically"));
+        System.exit(failed == 0 && deterministic ? 0 : 1);
+    }
+
+    /**
+     * Builds the scenario of a seed, runs it and checks the outcome.
+     *
+     * @param seed  The seed of the scenario and of the simulation.
+     * @param trace Receives the message trace, or null.
+     */
+    private static Result run(long seed, Consumer<String> trace) {
+        Random scenario = new Random(seed);
+        Simulation simulation = new Simulation(seed);
+        simulation.setTrace(trace);
+        StringBuilder description = new StringBuilder();
+
+        int proposers = 1 + scenario.nextInt(3);
+        int acceptors = 3 + scenario.nextInt(5);
+        List<Integer> nodeIds = new ArrayList<>();
+        Set<Integer> proposerIds = new TreeSet<>();
+        for (int id = 1; id <= proposers + acceptors; id++) {
+            nodeIds.add(id);
+            if (id <= proposers) {
+                proposerIds.add(id);
+            }
+        }
+        description.append(acceptors).append(" acceptors, ").append(proposers).append(" proposers");
+
+        for (int id : nodeIds) {
+            simulation.setNodeLatency(id, scenario.nextInt(20));
+        }
+        int slowLinks = scenario.nextInt(4);
+        for (int i = 0; i < slowLinks; i++) {
+            int source = 1 + scenario.nextInt(nodeIds.size());
+            int target = 1 + scenario.nextInt(nodeIds.size());
+            int latency = scenario.nextInt(200);
+            simulation.setLinkLatency(source, target, latency);
+            description.append(", link ").append(source).append("->").append(target).append(' ').append(latency).append(" ms");
+        }
+        int jitter = scenario.nextInt(10);
+        simulation.setJitter(jitter);
+        double loss = scenario.nextInt(3) == 0 ? scenario.nextDouble() * 0.05 : 0;
+        simulation.setLossRate(loss);
+        long heartbeatMillis = scenario.nextInt(3) == 0 ? 10 + scenario.nextInt(40) : 0;
+        int batchSize = 1 + scenario.nextInt(8);
+        long batchDelayMicros = scenario.nextBoolean() ? scenario.nextInt(500) : 0;
+        int pipelineWindow = 1 + scenario.nextInt(16);
+        description.append(String.format(", jitter %d ms, loss %.3f, heartbeats %d ms, batches of %d within %d us, window %d",
+                jitter, loss, heartbeatMillis, batchSize, batchDelayMicros, pipelineWindow));
+        boolean fastPaxos = scenario.nextBoolean();
+        long fastTimeoutMillis = 10 + scenario.nextInt(60);
+        if (fastPaxos) {
+            description.append(", fast rounds with ").append(fastTimeoutMillis).append(" ms timeout");
+        }
+        int quorumKind = scenario.nextInt(3);
+        String quorumSpec = quorumKind == 0 ? "majority"
+                : quorumKind == 1 ? "flexible:" + (1 + scenario.nextInt(acceptors))
+                : "grid:" + (2 + scenario.nextInt(acceptors - 1));
+        description.append(", ").append(quorumSpec).append(" quorums");
+        long leaseMillis = scenario.nextInt(3) == 0 ? 20 + scenario.nextInt(80) : 0;
+        if (leaseMillis > 0) {
+            description.append(", ").append(leaseMillis).append(" ms leases");
+        }
+        boolean keyValue = scenario.nextInt(4) == 0;
+        if (keyValue) {
+            description.append(", key-value store");
+        }
+        boolean durable = scenario.nextInt(4) == 0;
+        long compactionBytes = durable && scenario.nextBoolean() ? 256 + scenario.nextInt(1024) : 0;
+        if (compactionBytes > 0) {
+            description.append(", logs compacted past ").append(compactionBytes).append(" bytes");
+        }
+
+        // Each incarnation of a node applies under its own name: "3", then "3'" once restarted
+        Map<String, Recorder> applied = new TreeMap<>();
+        Map<Integer, KeyValueStore> stores = new HashMap<>();
+        Consumer<PaxosNode> configure = node -> {
+            String name = String.valueOf(node.nodeId());
+            while (applied.containsKey(name)) {
+                name += "'";
+            }
+            MultiPaxos.Applier next = (slot, command) -> { };
+            if (keyValue) {
+                stores.put(node.nodeId(), new KeyValueStore(node));
+                next = node.replicatedLog().applier();
+            }
+            Recorder recorder = new Recorder(node.replicatedLog(), next);
+            applied.put(name, recorder);
+            node.replicatedLog().setApplier(recorder);
+            node.setQuorumSystem(QuorumSystem.parse(quorumSpec, node.acceptorIds()));
+            node.replicatedLog().setBatching(batchSize, batchDelayMicros);
+            node.replicatedLog().setPipelineWindow(pipelineWindow);
+            node.replicatedLog().setFastPaxos(fastPaxos, fastTimeoutMillis);
+            node.replicatedLog().setLeases(leaseMillis, 0.01);
+            node.setFailureDetection(heartbeatMillis, 8);
+            if (durable) {
+                node.setDurability(DurabilityMode.MAPPED, Paths.get("simulation"));
+                node.setWalCompactionThreshold(compactionBytes);
+            }
+        };
+        List<PaxosNode> nodes = new ArrayList<>(simulation.launch(nodeIds, proposerIds, configure));
+
+        int outages = scenario.nextInt(3);
+        for (int i = 0; i < outages; i++) {
+            int nodeId = 1 + scenario.nextInt(nodeIds.size());
+            long down = scenario.nextInt(300);
+            long up = down + 20 + scenario.nextInt(250);
+            simulation.at(down, () -> simulation.setNodeOffline(nodeId));
+            simulation.at(up, () -> simulation.setNodeOnline(nodeId));
+            description.append(", node ").append(nodeId).append(" offline ").append(down).append('-').append(up).append(" ms");
+        }
+
+        int restarts = durable ? 1 + scenario.nextInt(3) : 0;
+        for (int i = 0; i < restarts; i++) {
+            int index = scenario.nextInt(nodeIds.size() + 1);
+            long at = scenario.nextInt(500);
+            if (index == nodeIds.size()) {
+                simulation.at(at, () -> {
+                    for (int j = 0; j < nodes.size(); j++) {
+                        nodes.set(j, simulation.restart(nodes.get(j), nodeIds, proposerIds, configure));
+                    }
+                });
+                description.append(", every node restarted at ").append(at).append(" ms");
+            } else {
+                simulation.at(at, () -> nodes.set(index, simulation.restart(nodes.get(index), nodeIds, proposerIds, configure)));
+                description.append(", node ").append(index + 1).append(" restarted at ").append(at).append(" ms");
+            }
+        }
+
+        // Election: proposal values may be shared, so that two proposers compete for the same ballot
+        boolean sharedValues = proposers > 1 && scenario.nextInt(3) == 0;
+        if (sharedValues) {
+            description.append(", shared proposal values");
+        }
+        Map<Integer, Set<Integer>> elected = new TreeMap<>();
+        // Requests go to whichever instance of the node is running at the time
+        for (int proposerId : proposerIds) {
+            int elections = 1 + scenario.nextInt(2);
+            for (int round = 1; round <= elections; round++) {
+                int value = 100 * round + (sharedValues ? 0 : proposerId);
+                simulation.at(scenario.nextInt(400), () -> nodes.get(proposerId - 1).proposeLeadership(value)
+                        .thenAccept(ballot -> elected.computeIfAbsent(ballot, b -> new TreeSet<>()).add(proposerId)));
+            }
+        }
+
+        Set<Integer> submitted = keyValue ? null : new HashSet<>();
+        Map<Integer, Integer> acknowledged = new HashMap<>();
+        int[] highestAcknowledged = {0};
+        List<String> violations = new ArrayList<>();
+        if (keyValue) {
+            submitKeyValueWorkload(simulation, scenario, proposerIds, stores, violations);
+        } else {
+            for (int proposerId : proposerIds) {
+                int commands = 5 + scenario.nextInt(26);
+                for (int i = 0; i < commands; i++) {
+                    int command = proposerId * 1000000 + i;
+                    submitted.add(command);
+                    simulation.at(scenario.nextInt(400), () -> nodes.get(proposerId - 1).replicatedLog().submit(command).thenAccept(slot -> {
+                        acknowledged.put(command, slot);
+                        highestAcknowledged[0] = Math.max(highestAcknowledged[0], slot);
+                    }));
+                }
+            }
+        }
+        for (int proposerId : proposerIds) {
+            int reads = scenario.nextInt(6);
+            for (int i = 0; i < reads; i++) {
+                long at = scenario.nextInt((int) HEALED_MILLIS - 100);
+                simulation.at(at, () -> {
+                    int mustSee = highestAcknowledged[0];
+                    MultiPaxos log = nodes.get(proposerId - 1).replicatedLog();
+                    log.read(log::appliedThrough).thenAccept(seen -> {
+                        if (seen < mustSee) {
+                            violations.add("linearizability: a read at node " + proposerId + " issued at " + at
+                                    + " ms saw slots up to " + seen + ", but slot " + mustSee + " was acknowledged before");
+                        }
+                    });
+                });
+            }
+        }
+
+        simulation.runUntil(FAULT_MILLIS);
+        for (int id : nodeIds) {
+            simulation.setNodeOnline(id);
+        }
+        simulation.setLossRate(0);
+        simulation.runUntil(HEALED_MILLIS);
+        for (PaxosNode node : nodes) {
+            node.stop();
+        }
+
+        Result result = new Result();
+        result.scenario = description.toString();
+        result.fingerprint = simulation.fingerprint();
+        result.events = simulation.eventsRun();
+        result.messages = simulation.messagesDelivered();
+        result.violation = check(applied, submitted, acknowledged, elected, violations, simulation.failures());
+        for (Recorder recorder : applied.values()) {
+            result.commandsApplied += recorder.commands;
+        }
+        return result;
+    }
+
+    /**
+     * Schedules a key-value workload: every proposer writes a few keys of its own, each with the
+     * values 1, 2, 3... where a put is sent once the previous one was acknowledged, and gets random
+     * keys at random times. A get must return the key's last value acknowledged before it was
+     * issued, or a later one. A key whose put failed is not written again, since that put may
+     * still be applied after any later one. Requests go to the store of the proposer's running
+     * instance at the time they are sent.
+     */
+    private static void submitKeyValueWorkload(Simulation simulation, Random scenario, Set<Integer> proposerIds,
+                                               Map<Integer, KeyValueStore> stores, List<String> violations) {
+        List<String> keys = new ArrayList<>();
+        Map<String, Integer> acknowledged = new HashMap<>();
+        Map<String, Integer> sent = new HashMap<>();
+        for (int proposerId : proposerIds) {
+            int ownKeys = 1 + scenario.nextInt(3);
+            for (int i = 0; i < ownKeys; i++) {
+                String key = "key-" + proposerId + "-" + i;
+                keys.add(key);
+                int values = 2 + scenario.nextInt(8);
+                simulation.at(scenario.nextInt(300), () -> put(stores, proposerId, key, 1, values, sent, acknowledged));
+            }
+        }
+        for (int proposerId : proposerIds) {
+            int gets = scenario.nextInt(10);
+            for (int i = 0; i < gets; i++) {
+                String key = keys.get(scenario.nextInt(keys.size()));
+                long at = scenario.nextInt((int) HEALED_MILLIS - 100);
+                simulation.at(at, () -> {
+                    int mustSee = acknowledged.getOrDefault(key, 0);
+                    stores.get(proposerId).get(key).thenAccept(value -> {
+                        int seen = value == null ? 0 : Integer.parseInt(value);
+                        if (seen < mustSee || seen > sent.getOrDefault(key, 0)) {
+                            violations.add("linearizability: a get of " + key + " at node " + proposerId + " issued at "
+                                    + at + " ms returned " + value + ", but value " + mustSee + " was acknowledged before");
+                        }
+                    });
+                });
+            }
+        }
+    }
+
+    private static void put(Map<Integer, KeyValueStore> stores, int proposerId, String key, int value, int last,
+                            Map<String, Integer> sent, Map<String, Integer> acknowledged) {
+        sent.put(key, value);
+        stores.get(proposerId).put(key, String.valueOf(value)).thenRun(() -> {
+            acknowledged.put(key, value);
+            if (value < last) {
+                put(stores, proposerId, key, value + 1, last, sent, acknowledged);
+            }
+        });
+    }
+
+    /**
+     * Records the commands one node instance applies, slot by slot, in front of the node's own
+     * applier. It is a state machine, so compactions replace applied entries with snapshots in
+     * every scenario: the state is the key-value store's if the node runs one, and otherwise a
+     * digest of every command applied in slot order, which a snapshot carries to other nodes.
+     */
+    private static final class Recorder implements MultiPaxos.StateMachine {
+        final MultiPaxos log;
+        final MultiPaxos.Applier next;
+        final Map<Integer, List<Integer>> slots = new TreeMap<>();
+        int commands;
+        int digest = 17;
+
+        Recorder(MultiPaxos log, MultiPaxos.Applier next) {
+            this.log = log;
+            this.next = next;
+        }
+
+        @Override
+        public void apply(int slot, int command) {
+            slots.computeIfAbsent(slot, s -> new ArrayList<>()).add(command);
+            commands++;
+            digest = digest * 31 + command;
+            next.apply(slot, command);
+        }
+
+        @Override
+        public int[] snapshot() {
+            return next instanceof MultiPaxos.StateMachine ? ((MultiPaxos.StateMachine) next).snapshot() : new int[] {digest};
+        }
+
+        @Override
+        public void restore(int[] snapshot) {
+            if (next instanceof MultiPaxos.StateMachine) {
+                ((MultiPaxos.StateMachine) next).restore(snapshot);
+            } else {
+                digest = snapshot[0];
+            }
+        }
+    }
+
+    /**
+     * Returns a description of the first safety property the run violated, or null.
+     *
+     * @param submitted The commands submitted to the log, or null if the commands were key-value
+     *                  writes, whose integrity is not checked.
+     */
+    private static String check(Map<String, Recorder> applied, Set<Integer> submitted,
+                                Map<Integer, Integer> acknowledged, Map<Integer, Set<Integer>> elected,
+                                List<String> violations, List<Throwable> failures) {
+        if (!failures.isEmpty()) {
+            return "a handler threw " + failures.get(0);
+        }
+        if (!violations.isEmpty()) {
+            return violations.get(0);
+        }
+        for (Map.Entry<Integer, Set<Integer>> ballot : elected.entrySet()) {
+            if (ballot.getValue().size() > 1) {
+                return "election safety: nodes " + ballot.getValue() + " were all elected with ballot " + ballot.getKey();
+            }
+        }
+        Map<Integer, List<Integer>> chosen = new HashMap<>();
+        Map<Integer, String> chosenBy = new HashMap<>();
+        Map<Integer, Integer> digests = new HashMap<>();
+        Map<Integer, String> digestBy = new HashMap<>();
+        for (Map.Entry<String, Recorder> node : applied.entrySet()) {
+            Recorder recorder = node.getValue();
+            if (submitted != null) {
+                Integer previous = digests.putIfAbsent(recorder.log.appliedThrough(), recorder.digest);
+                if (previous == null) {
+                    digestBy.put(recorder.log.appliedThrough(), node.getKey());
+                } else if (previous != recorder.digest) {
+                    return "state agreement: nodes " + digestBy.get(recorder.log.appliedThrough()) + " and " + node.getKey()
+                            + " applied slots up to " + recorder.log.appliedThrough() + " but hold different states";
+                }
+            }
+            Set<Integer> seen = new HashSet<>();
+            for (Map.Entry<Integer, List<Integer>> slot : recorder.slots.entrySet()) {
+                List<Integer> previous = chosen.putIfAbsent(slot.getKey(), slot.getValue());
+                if (previous == null) {
+                    chosenBy.put(slot.getKey(), node.getKey());
+                } else if (!previous.equals(slot.getValue())) {
+                    return "agreement: node " + chosenBy.get(slot.getKey()) + " applied " + previous + " in slot "
+                            + slot.getKey() + " but node " + node.getKey() + " applied " + slot.getValue();
+                }
+                if (submitted == null) {
+                    continue;
+                }
+                for (int command : slot.getValue()) {
+                    if (!submitted.contains(command)) {
+                        return "integrity: node " + node.getKey() + " applied unknown command " + command;
+                    }
+                    if (!seen.add(command)) {
+                        return "integrity: node " + node.getKey() + " applied command " + command + " twice";
+                    }
+                }
+            }
+        }
+        for (Map.Entry<Integer, Integer> ack : acknowledged.entrySet()) {
+            List<Integer> commands = chosen.get(ack.getValue());
+            if (commands != null && !commands.contains(ack.getKey())) {
+                return "durability: command " + ack.getKey() + " was acknowledged in slot " + ack.getValue()
+                        + ", which holds " + commands;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,36 @@
+package paxos;
+
+import java.util.Arrays;
+
+/**
+ * Reads the settings that nodes take from system properties.
+ */
+final class SystemProperties {
+    private SystemProperties() {
+    }
+
+    /**
+     * Resolves an enum setting, ignoring case and surrounding whitespace.
+     *
+     * @param key      The name of the system property.
+     * @param type     The enum the property selects a constant of.
+     * @param fallback The constant to use if the property is not set or empty.
+     * @return The configured constant, or the fallback.
+     * @throws IllegalArgumentException If the property names no constant of the enum.
+     */
+    static <E extends Enum<E>> E fromProperty(String key, Class<E> type, E fallback) {
+        String configured = System.getProperty(key);
+        if (configured == null || configured.isBlank()) {
+            return fallback;
+        }
+
+        String name = configured.trim().toUpperCase();
+        for (E constant : type.getEnumConstants()) {
+            if (constant.name().equals(name)) {
+                return constant;
+            }
+        }
+        throw new IllegalArgumentException("Unknown value \"" + configured + "\" for system property " + key
+                + ", expected one of " + Arrays.toString(type.getEnumConstants()).toLowerCase());
+    }
+}
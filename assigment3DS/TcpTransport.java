@@ -0,0 +1,213 @@
+package paxos;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * The TCP transport: inbound frames arrive on a listening socket of the local node, and
+ * outbound frames travel over pooled peer connections.
+ */
+public class TcpTransport implements Transport {
+    private static final int READ_BUFFER_SIZE = 4096;
+    // Room for every peer of a large cluster to connect at once; the JDK default is 50
+    static final int ACCEPT_BACKLOG = 1024;
+
+    private final Map<Integer, InetSocketAddress> addresses;
+    private final PeerConnectionManager connections;
+    private ListenerMode listenerMode = ListenerMode.fromSystemProperty();
+
+    private int nodeId;
+    private Executor executor;
+    private Consumer<PaxosMessage> inbound;
+    private ServerSocket serverSocket;
+    private final Set<Socket> acceptedSockets = ConcurrentHashMap.newKeySet();
+    private NioMessageListener nioListener;
+
+    /**
+     * Constructor for the TcpTransport class.
+     *
+     * @param addresses The address of every node, keyed by node ID. The local node listens on
+     *                  the port of its own entry.
+     */
+    public TcpTransport(Map<Integer, InetSocketAddress> addresses) {
+        this.addresses = addresses;
+        this.connections = new PeerConnectionManager(WireFormat.fromSystemProperty());
+    }
+
+    /**
+     * Builds the address book for a list of peers, where node i listens on the i-th address.
+     *
+     * @param peers The addresses of all nodes, ordered by node ID starting at 1.
+     * @return      An unmodifiable map from node ID to address.
+     */
+    public static Map<Integer, InetSocketAddress> addressBook(List<InetSocketAddress> peers) {
+        Map<Integer, InetSocketAddress> addresses = new LinkedHashMap<>();
+        for (int i = 0; i < peers.size(); i++) {
+            addresses.put(i + 1, peers.get(i));
+        }
+        return Collections.unmodifiableMap(addresses);
+    }
+
+    /**
+     * Selects how this transport accepts inbound connections. Must be called before `start()`.
+     *
+     * @param listenerMode The listener implementation to use.
+     *
+     * Defaults to the mode configured by the "paxos.listener" system property.
+     */
+    public void setListenerMode(ListenerMode listenerMode) {
+        this.listenerMode = listenerMode;
+    }
+
+    /**
+     * Binds the local node's port and starts either a separate thread to handle incoming
+     * connections or the NIO event loop, depending on the configured listener mode.
+     *
+     * @throws IOException If the server socket cannot be bound to the node's port.
+     */
+    @Override
+    public void start(int nodeId, Executor executor, Consumer<PaxosMessage> inbound) throws IOException {
+        this.nodeId = nodeId;
+        this.executor = executor;
+        this.inbound = inbound;
+        connections.setFlushExecutor(executor);
+
+        int port = localAddress().getPort();
+        if (listenerMode == ListenerMode.NIO) {
+            nioListener = new NioMessageListener(port, inbound, 1);
+            nioListener.start();
+        } else {
+            serverSocket = new ServerSocket(port, ACCEPT_BACKLOG);
+            new Thread(this::listenForMessages).start(); // Start listening for messages
+        }
+    }
+
+    /**
+     * Sends a message to a target node over its pooled connection.
+     *
+     * Schedules the send after the simulated latency to the target using `NetworkSimulator`
+     * and returns immediately; the message is then queued on the connection and written on the
+     * executor, possibly bundled with other messages for the same peer. Communication errors
+     * are logged on one line and fail the future, so they are counted as dropped messages; the protocol
+     * itself treats a lost message like a slow one. A target missing from the address book fails
+     * the future with an IllegalArgumentException without scheduling anything.
+     */
+    @Override
+    public CompletableFuture<Void> send(int targetNodeId, PaxosMessage message) {
+        InetSocketAddress targetAddress = addresses.get(targetNodeId);
+        if (targetAddress == null) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Unknown node " + targetNodeId));
+        }
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        NetworkSimulator.deliver(nodeId, targetNodeId, executor, () ->
+            connections.send(targetAddress, message).whenComplete((ignored, communicationError) -> {
+                if (communicationError == null) {
+                    written.complete(null);
+                    return;
+                }
+                // One line per failed send: an unreachable peer is expected, and the failure detector tracks it
+                AsyncLogger.info("Node " + nodeId + " could not send " + message.type().textName() + " to node "
+                        + targetNodeId + ": " + communicationError.getMessage());
+                written.completeExceptionally(communicationError);
+            })
+        ).whenComplete((ignored, failure) -> {
+            if (failure != null) {
+                written.completeExceptionally(failure);
+            }
+        });
+        return written;
+    }
+
+    /**
+     * Returns the number of frames this transport has written; a bundle of messages counts once.
+     */
+    public long framesWritten() {
+        return connections.framesWritten();
+    }
+
+    @Override
+    public String describe() {
+        return "port " + localAddress().getPort() + " (" + listenerMode + ")";
+    }
+
+    @Override
+    public void close() {
+        connections.closeAll();
+        if (nioListener != null) {
+            nioListener.close();
+        }
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            // Drop inbound connections too, so peers reconnect to whichever node binds this port next
+            for (Socket socket : acceptedSockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private InetSocketAddress localAddress() {
+        InetSocketAddress local = addresses.get(nodeId);
+        if (local == null) {
+            throw new IllegalStateException("No address configured for node " + nodeId);
+        }
+        return local;
+    }
+
+    /**
+     * Continuously listens for incoming connections on the server socket.
+     *
+     * This method accepts client connections in a loop, spawns a new thread for each
+     * connection, and processes every message received on it until the peer closes it.
+     * Peers keep their connections open, so one reader thread serves many messages.
+     *
+     * Handles exceptions to ensure the server keeps running even in the case of errors
+     * while accepting or processing a message.
+     */
+    private void listenForMessages() {
+        try {
+            while (true) {
+                Socket clientSocket = serverSocket.accept();
+                acceptedSockets.add(clientSocket);
+                new Thread(() -> {
+                    try (Socket connection = clientSocket) {
+                        DataInputStream reader = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+                        ByteBuffer frame = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                        while (true) {
+                            int length = reader.readInt();
+                            MessageCodec.checkFrameLength(length);
+                            if (length > frame.capacity()) {
+                                frame = ByteBuffer.allocate(length);
+                            }
+                            frame.clear();
+                            reader.readFully(frame.array(), 0, length);
+                            frame.limit(length);
+                            MessageCodec.decodeFrame(frame, length, inbound);
+                        }
+                    } catch (EOFException | SocketException e) {
+                        // Peer closed the connection, or close() dropped it
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    } finally {
+                        acceptedSockets.remove(clientSocket);
+                    }
+                }).start();
+            }
+        } catch (SocketException e) {
+            // Server socket closed by close()
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
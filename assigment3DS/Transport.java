@@ -0,0 +1,64 @@
+package paxos;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * The network used by a PaxosNode to exchange messages with its peers.
+ *
+ * Implementations apply the latency and offline rules of `NetworkSimulator` to every send.
+ * Peers are addressed by node ID; how an ID maps to an endpoint is up to the implementation.
+ * A transport is also the sender of the node's replicated log.
+ */
+public interface Transport extends MultiPaxos.Sender {
+
+    /**
+     * Starts receiving messages for a node.
+     *
+     * @param nodeId   The ID of the local node.
+     * @param executor The node's executor, used for deliveries that need a thread.
+     * @param inbound  The callback invoked for every received message. It may be called from
+     *                 transport threads and must not block.
+     * @throws IOException If the transport cannot bind its endpoint.
+     */
+    void start(int nodeId, Executor executor, Consumer<PaxosMessage> inbound) throws IOException;
+
+    /**
+     * Sends a message to another node.
+     *
+     * @param targetNodeId The ID of the target node.
+     * @param message      The message to be sent.
+     * @return             A future that completes once the message has been handed to the target.
+     */
+    @Override
+    CompletableFuture<Void> send(int targetNodeId, PaxosMessage message);
+
+    /**
+     * Returns a human-readable description of the local endpoint, used in startup logs.
+     */
+    @Override
+    String describe();
+
+    /**
+     * Stops receiving messages and releases all connections.
+     */
+    void close();
+
+    /**
+     * Creates the transport selected by the "paxos.transport" system property.
+     *
+     * @param peers The addresses of all nodes, where node i listens on the i-th address.
+     * @return      A TcpTransport by default, or a transport on the shared in-memory network
+     *              when the property is "memory".
+     */
+    static Transport fromSystemProperty(List<InetSocketAddress> peers) {
+        String configured = System.getProperty("paxos.transport", "tcp").trim();
+        if (configured.equalsIgnoreCase("memory")) {
+            return InMemoryNetwork.shared().newTransport();
+        }
+        return new TcpTransport(TcpTransport.addressBook(peers));
+    }
+}
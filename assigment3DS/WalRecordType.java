@@ -0,0 +1,41 @@
+package paxos;
+
+/**
+ * The kinds of acceptor state change recorded in a node's write-ahead log, with the one-byte
+ * codes used on disk.
+ */
+public enum WalRecordType {
+    PROMISED(1),          // highestProposalValue, acceptedProposalValue
+    AGREED(2),            // leader value an acceptor agreed to
+    DECLARED(3),          // proposal value a proposer declared itself leader for
+    LOG_PROMISED(4),      // replicated-log ballot promised
+    LOG_ACCEPTED(5),      // replicated-log slot, ballot, commands...
+    LOG_FAST_ACCEPTED(6), // replicated-log slot, fast-round ballot, commands...
+    LOG_SNAPSHOT(7),      // replicated-log slot through which entries were dropped, applied state...
+    LOG_PREPARED(8);      // replicated-log ballot this node's proposer sent prepares for
+
+    private final byte code;
+
+    WalRecordType(int code) {
+        this.code = (byte) code;
+    }
+
+    public byte code() {
+        return code;
+    }
+
+    /**
+     * Resolves a record type from its on-disk code.
+     *
+     * @param code The code read from the log.
+     * @return     The matching type, or null if the code is unknown.
+     */
+    public static WalRecordType fromCode(byte code) {
+        for (WalRecordType type : values()) {
+            if (type.code == code) {
+                return type;
+            }
+        }
+        return null;
+    }
+}
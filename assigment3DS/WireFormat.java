@@ -0,0 +1,24 @@
+package paxos;
+
+/**
+ * Selects how outgoing messages are encoded.
+ *
+ * BINARY is the compact versioned format written by MessageCodec. TEXT keeps the original
+ * human-readable "type:nodeId:value" form for debugging. Receivers decode both, so nodes using
+ * different formats can talk to each other. The default can be chosen with the system property
+ * "paxos.wire" (e.g. -Dpaxos.wire=text).
+ */
+public enum WireFormat {
+    BINARY,
+    TEXT;
+
+    /**
+     * Resolves the wire format configured through the "paxos.wire" system property.
+     *
+     * @return The configured format, or BINARY if the property is not set.
+     * @throws IllegalArgumentException If the property names no format.
+     */
+    public static WireFormat fromSystemProperty() {
+        return SystemProperties.fromProperty("paxos.wire", WireFormat.class, BINARY);
+    }
+}
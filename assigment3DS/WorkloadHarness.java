@@ -0,0 +1,351 @@
+package paxos;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Drives a configured cluster with a generated workload and records how long each request takes
+ * to be decided.
+ *
+ * Run with: java paxos.WorkloadHarness [cluster.properties] [options]
+ *
+ *     --workload log|election|kv
+ *                               submit commands to the replicated log (default), run one
+ *                               leader election per request with a fresh proposal value, or
+ *                               get and put the keys of a KeyValueStore
+ *     --keys n                  kv: number of distinct keys, all written before the run (default 1000)
+ *     --read-ratio f            kv: fraction of requests that are gets rather than puts (default 0.9)
+ *     --mode closed|open        closed: --clients clients each wait for their previous request;
+ *                               open: requests are issued at --rate per second whatever the
+ *                               cluster's progress (default closed)
+ *     --requests n              total number of requests (default 1000)
+ *     --clients n               concurrent clients in closed mode (default 4)
+ *     --rate n                  requests per second in open mode (default 500)
+ *     --proposers n             nodes 1 to n are the proposers (default: the config file's set)
+ *     --timeout ms              a request not decided within this time counts as failed (default 10000)
+ *     --event ms:action:args    changes the simulated network at a time after the workload
+ *                               starts; actions are latency:node:ms, link:from:to:ms,
+ *                               jitter:ms, offline:node and online:node. May be repeated.
+ *     --csv file                writes one line per request
+ *     --json file               writes the summary as JSON
+ *
+ * Requests are spread round-robin over the proposers. With several Paxos groups (groups= in the
+ * cluster file), a log or kv request goes instead to the group that owns its command or key, at
+ * the proposer that leads that group. Open-mode latencies are measured from the time each
+ * request was due rather than when it was sent, so a stalled cluster is not hidden by requests
+ * queueing up in the generator. The run ends once every request has been decided or has timed
+ * out, so runs of different builds see identical load.
+ */
+public class WorkloadHarness {
+    private enum Workload { LOG, ELECTION, KV }
+
+    private enum Mode { CLOSED, OPEN }
+
+    /** The outcome of one request. */
+    private static final class Request {
+        final int id;
+        volatile int proposerId;
+        volatile boolean read;
+        final long dueNanos;
+        volatile long latencyNanos = -1;
+        volatile String outcome = "pending";
+
+        Request(int id, int proposerId, long dueNanos) {
+            this.id = id;
+            this.proposerId = proposerId;
+            this.dueNanos = dueNanos;
+        }
+    }
+
+    private Workload workload = Workload.LOG;
+    private Mode mode = Mode.CLOSED;
+    private int requestCount = 1000;
+    private int clients = 4;
+    private int rate = 500;
+    private int proposers = 0;
+    private long timeoutMillis = 10000;
+    private int keyCount = 1000;
+    private double readRatio = 0.9;
+    private final List<String> events = new ArrayList<>();
+    private String csv;
+    private String json;
+
+    private List<PaxosNode> nodes;
+    private List<PaxosNode> proposerNodes;
+    private final List<KeyValueStore> stores = new ArrayList<>();
+    private final AtomicInteger nextValue = new AtomicInteger(1);
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final LatencyHistogram getLatencies = new LatencyHistogram();
+    private final LatencyHistogram putLatencies = new LatencyHistogram();
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "workload");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static void main(String[] args) throws Exception {
+        WorkloadHarness harness = new WorkloadHarness();
+        ClusterConfig config = harness.parse(args);
+        harness.run(config);
+        System.exit(0);
+    }
+
+    private ClusterConfig parse(String[] args) throws IOException {
+        ClusterConfig config = ClusterConfig.ofSize(9);
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--workload": workload = Workload.valueOf(args[++i].toUpperCase()); break;
+                case "--mode": mode = Mode.valueOf(args[++i].toUpperCase()); break;
+                case "--requests": requestCount = Integer.parseInt(args[++i]); break;
+                case "--clients": clients = Integer.parseInt(args[++i]); break;
+                case "--rate": rate = Integer.parseInt(args[++i]); break;
+                case "--proposers": proposers = Integer.parseInt(args[++i]); break;
+                case "--timeout": timeoutMillis = Long.parseLong(args[++i]); break;
+                case "--keys": keyCount = Integer.parseInt(args[++i]); break;
+                case "--read-ratio": readRatio = Double.parseDouble(args[++i]); break;
+                case "--event": events.add(args[++i]); break;
+                case "--csv": csv = args[++i]; break;
+                case "--json": json = args[++i]; break;
+                default:
+                    if (args[i].startsWith("--")) {
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                    }
+                    config = ClusterConfig.load(Paths.get(args[i]));
+                    break;
+            }
+        }
+        if (proposers > 0) {
+            Set<Integer> proposerIds = new TreeSet<>();
+            for (int id = 1; id <= proposers; id++) {
+                proposerIds.add(id);
+            }
+            config = config.withProposers(proposerIds);
+        }
+        return config;
+    }
+
+    private void run(ClusterConfig config) throws Exception {
+        nodes = ClusterLauncher.launch(config, node -> {
+            if (workload == Workload.KV) {
+                stores.add(new KeyValueStore(node));
+            }
+        });
+        proposerNodes = new ArrayList<>();
+        for (int proposerId : config.proposerIds()) {
+            proposerNodes.add(nodes.get(proposerId - 1));
+        }
+        if (workload == Workload.KV) {
+            preload();
+        }
+        AsyncLogger.info("Workload: " + requestCount + " " + workload + " requests, " + mode + " loop"
+                + (mode == Mode.OPEN ? " at " + rate + "/s" : " with " + clients + " clients") + ", on " + config);
+
+        List<Request> requests = new ArrayList<>();
+        long start = System.nanoTime();
+        for (String event : events) {
+            scheduleEvent(event);
+        }
+        CountDownLatch finished = new CountDownLatch(requestCount);
+        if (mode == Mode.OPEN) {
+            long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+            for (int i = 0; i < requestCount; i++) {
+                Request request = new Request(i, proposerNodes.get(i % proposerNodes.size()).nodeId(), start + i * interval);
+                requests.add(request);
+                scheduler.schedule(() -> issue(request, finished::countDown),
+                        request.dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+        } else {
+            AtomicInteger nextRequest = new AtomicInteger();
+            Request[] issued = new Request[requestCount];
+            for (int client = 0; client < Math.min(clients, requestCount); client++) {
+                nextClosed(nextRequest, issued, finished);
+            }
+            finished.await();
+            requests.addAll(Arrays.asList(issued));
+        }
+        finished.await();
+        long elapsed = System.nanoTime() - start;
+
+        report(requests, elapsed);
+        for (PaxosNode node : nodes) {
+            node.stop();
+        }
+    }
+
+    /**
+     * Writes every key once, so that gets find a value.
+     */
+    private void preload() throws Exception {
+        List<CompletableFuture<String>> writes = new ArrayList<>();
+        for (int key = 0; key < keyCount; key++) {
+            writes.add(storeFor("key-" + key, proposerNodes.get(key % proposerNodes.size()).nodeId())
+                    .put("key-" + key, "initial-" + key));
+        }
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).get(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the store to send a key's requests to: the one on the leader of the key's group
+     * when there are several groups, otherwise the one on the given proposer.
+     */
+    private KeyValueStore storeFor(String key, int proposerId) {
+        if (nodes.get(0).groupCount() > 1) {
+            proposerId = nodes.get(0).preferredLeader(stores.get(0).groupOf(key));
+        }
+        return stores.get(proposerId - 1);
+    }
+
+    private void nextClosed(AtomicInteger nextRequest, Request[] issued, CountDownLatch finished) {
+        int id = nextRequest.getAndIncrement();
+        if (id >= issued.length) {
+            return;
+        }
+        Request request = new Request(id, proposerNodes.get(id % proposerNodes.size()).nodeId(), System.nanoTime());
+        issued[id] = request;
+        issue(request, () -> {
+            finished.countDown();
+            nextClosed(nextRequest, issued, finished);
+        });
+    }
+
+    /**
+     * Sends one request to its proposer and records its outcome when it is decided, fails or
+     * times out.
+     */
+    private void issue(Request request, Runnable done) {
+        int value = nextValue.getAndIncrement();
+        CompletableFuture<?> decided;
+        if (workload == Workload.KV) {
+            String key = "key-" + ThreadLocalRandom.current().nextInt(keyCount);
+            KeyValueStore store = storeFor(key, request.proposerId);
+            request.proposerId = nodes.get(stores.indexOf(store)).nodeId();
+            request.read = ThreadLocalRandom.current().nextDouble() < readRatio;
+            decided = request.read ? store.get(key) : store.put(key, "value-" + value);
+        } else if (workload == Workload.LOG) {
+            int group = nodes.get(0).groupOf(value);
+            if (nodes.get(0).groupCount() > 1) {
+                request.proposerId = nodes.get(0).preferredLeader(group);
+            }
+            decided = nodes.get(request.proposerId - 1).group(group).submit(value);
+        } else {
+            decided = nodes.get(request.proposerId - 1).proposeLeadership(value);
+        }
+        // Continue on the harness's threads: nodes complete futures while holding their locks, and
+        // the next request may go to another node
+        decided.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).whenCompleteAsync((result, error) -> {
+            if (error == null) {
+                request.latencyNanos = System.nanoTime() - request.dueNanos;
+                request.outcome = "decided";
+                latencies.record(request.latencyNanos);
+                if (workload == Workload.KV) {
+                    (request.read ? getLatencies : putLatencies).record(request.latencyNanos);
+                }
+            } else {
+                request.outcome = error instanceof TimeoutException || error.getCause() instanceof TimeoutException
+                        ? "timeout" : "failed";
+            }
+            done.run();
+        }, scheduler);
+    }
+
+    private void scheduleEvent(String event) {
+        String[] parts = event.split(":");
+        long at = Long.parseLong(parts[0]);
+        Runnable action;
+        switch (parts[1]) {
+            case "latency":
+                action = () -> NetworkSimulator.setNodeLatency(Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+                break;
+            case "link":
+                action = () -> NetworkSimulator.setLinkLatency(Integer.parseInt(parts[2]), Integer.parseInt(parts[3]),
+                        Integer.parseInt(parts[4]));
+                break;
+            case "jitter":
+                action = () -> NetworkSimulator.setJitter(Integer.parseInt(parts[2]));
+                break;
+            case "offline":
+                action = () -> NetworkSimulator.setNodeOffline(Integer.parseInt(parts[2]));
+                break;
+            case "online":
+                action = () -> NetworkSimulator.setNodeOnline(Integer.parseInt(parts[2]));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown event action " + parts[1]);
+        }
+        scheduler.schedule(() -> {
+            AsyncLogger.info("Workload event at " + at + " ms: " + event);
+            action.run();
+        }, at, TimeUnit.MILLISECONDS);
+    }
+
+    private void report(List<Request> requests, long elapsedNanos) throws IOException {
+        long decided = requests.stream().filter(r -> r.outcome.equals("decided")).count();
+        long timedOut = requests.stream().filter(r -> r.outcome.equals("timeout")).count();
+        long failed = requests.size() - decided - timedOut;
+        double seconds = elapsedNanos / 1e9;
+
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("workload", workload.name().toLowerCase());
+        summary.put("mode", mode.name().toLowerCase());
+        summary.put("nodes", nodes.size());
+        summary.put("proposers", proposerNodes.size());
+        summary.put("groups", nodes.get(0).groupCount());
+        summary.put("requests", requests.size());
+        summary.put("decided", decided);
+        summary.put("failed", failed);
+        summary.put("timedOut", timedOut);
+        summary.put("durationSeconds", seconds);
+        summary.put("throughputPerSecond", decided / seconds);
+        summary.put("meanMicros", latencies.meanNanos() / 1000);
+        for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999}) {
+            summary.put("p" + String.valueOf(quantile * 100).replace(".0", "").replace(".", "") + "Micros",
+                    latencies.percentileNanos(quantile) / 1000.0);
+        }
+        summary.put("maxMicros", latencies.maxNanos() / 1000.0);
+        if (workload == Workload.KV) {
+            long hits = 0;
+            long misses = 0;
+            for (KeyValueStore store : stores) {
+                hits += store.cacheHits();
+                misses += store.cacheMisses();
+            }
+            summary.put("getsPerSecond", getLatencies.count() / seconds);
+            summary.put("getP99Micros", getLatencies.percentileNanos(0.99) / 1000.0);
+            summary.put("putsPerSecond", putLatencies.count() / seconds);
+            summary.put("putP99Micros", putLatencies.percentileNanos(0.99) / 1000.0);
+            summary.put("cacheHitRatio", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+        }
+
+        if (csv != null) {
+            try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(csv)))) {
+                out.println("request,proposer,outcome,latency_us");
+                for (Request request : requests) {
+                    out.printf("%d,%d,%s,%s%n", request.id, request.proposerId, request.outcome,
+                            request.latencyNanos < 0 ? "" : String.format("%.1f", request.latencyNanos / 1000.0));
+                }
+            }
+        }
+        if (json != null) {
+            StringBuilder text = new StringBuilder("{");
+            summary.forEach((key, value) -> {
+                text.append(text.length() > 1 ? ", " : "").append('"').append(key).append("\": ");
+                text.append(value instanceof String ? "\"" + value + "\"" : value.toString());
+            });
+            Files.write(Paths.get(json), Collections.singletonList(text.append('}').toString()));
+        }
+
+        AsyncLogger.info(String.format("Workload finished in %.2f s: %d decided, %d failed, %d timed out, %.1f decisions/s",
+                seconds, decided, failed, timedOut, decided / seconds));
+        AsyncLogger.info("Decision latency: " + latencies.summary() + String.format(" p90=%.1fus p999=%.1fus",
+                latencies.percentileNanos(0.9) / 1000.0, latencies.percentileNanos(0.999) / 1000.0));
+        if (workload == Workload.KV) {
+            AsyncLogger.info(String.format("Gets: %.1f/s, %s", summary.get("getsPerSecond"), getLatencies.summary()));
+            AsyncLogger.info(String.format("Puts: %.1f/s, %s", summary.get("putsPerSecond"), putLatencies.summary()));
+            AsyncLogger.info(String.format("Read cache hit ratio: %.3f", summary.get("cacheHitRatio")));
+        }
+        AsyncLogger.flush();
+    }
+}
@@ -0,0 +1,502 @@
+package paxos;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.*;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of acceptor state changes, memory-mapped from one file per node.
+ *
+ * Each record is
+ *
+ *     length (4 bytes) | type (1 byte) | fields (4 bytes each) | CRC32 of type and fields
+ *
+ * where the length counts every byte after itself, and the record is followed by a zero length
+ * that marks the end of the log. On open, the records are replayed in order up to the end marker
+ * or the first torn or corrupt record, and new records are appended from there.
+ *
+ * `append` returns a future that completes once the record is as durable as the configured
+ * `DurabilityMode` requires; callers send their reply only then. In FSYNC mode a single flusher
+ * thread forces the mapped pages to disk, and every record appended while it is forcing is
+ * covered by its next force, so concurrent promises share the cost of one fsync.
+ *
+ * Once the log has grown past "paxos.wal.compact.kb" (default 65536), `needsCompaction` tells its
+ * owner to `compact` it: the owner writes a snapshot of the state the records add up to, which
+ * replaces the whole log with a single rename, so a crash leaves either the old log or the snapshot.
+ * If the log still cannot take a record, `append` fails its future instead of throwing.
+ *
+ * A log opened with `openInMemory` keeps its records in a heap buffer rather than a file, with
+ * the guarantees of MAPPED mode; a Simulation uses it so that its nodes never touch the disk.
+ */
+public class WriteAheadLog implements Closeable {
+    private static final int INITIAL_CAPACITY = 1 << 20;
+    private static final int INITIAL_MEMORY_CAPACITY = 1 << 16;
+    private static final int LENGTH_SIZE = 4;
+    private static final int RECORD_OVERHEAD = 1 + 4; // type and checksum
+    private static final long COMPACT_BYTES = Long.getLong("paxos.wal.compact.kb", 65536) * 1024;
+
+    /**
+     * Receives the records found in the log when it is opened, in append order.
+     */
+    public interface RecordHandler {
+        void onRecord(WalRecordType type, int[] fields);
+    }
+
+    /**
+     * Writes the records that rebuild an owner's current state, for `compact`.
+     */
+    public interface SnapshotWriter {
+        void write(RecordHandler out);
+    }
+
+    private final Path path;
+    private final DurabilityMode mode;
+    private FileChannel channel;
+    // The contents of every in-memory log by path, or null for a log kept in a file
+    private final Map<Path, ByteBuffer> memory;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushNeeded = lock.newCondition();
+    private final CRC32 checksum = new CRC32();
+    private final List<CompletableFuture<Void>> awaitingForce = new ArrayList<>();
+    private ByteBuffer buffer;
+    private int writePosition = 0;
+    private int forcedPosition = 0;
+    private long forces = 0;
+    private long compactBytes = COMPACT_BYTES;
+    private long compactAt = COMPACT_BYTES;
+    private long compactions = 0;
+    // Bumped by every compaction, so that a force of the replaced file does not move forcedPosition
+    private long generation = 0;
+    private boolean closed = false;
+    private Thread flusher;
+
+    private WriteAheadLog(Path path, DurabilityMode mode, FileChannel channel, Map<Path, ByteBuffer> memory) {
+        this.path = path;
+        this.mode = mode;
+        this.channel = channel;
+        this.memory = memory;
+    }
+
+    /**
+     * Opens the log for a node and replays the records it already holds.
+     *
+     * @param path     The log file; it and its parent directories are created if missing.
+     * @param mode     How durable an appended record must be before its future completes. With
+     *                 NONE no file is opened and every append completes immediately.
+     * @param recovery Receives every record found in the log before this method returns.
+     * @return         The opened log, positioned after the last valid record.
+     * @throws IOException If the file cannot be created or mapped.
+     */
+    public static WriteAheadLog open(Path path, DurabilityMode mode, RecordHandler recovery) throws IOException {
+        if (mode == DurabilityMode.NONE) {
+            return new WriteAheadLog(path, mode, null, null);
+        }
+
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        WriteAheadLog log = new WriteAheadLog(path, mode, channel, null);
+        log.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_CAPACITY, channel.size()));
+        log.replay(recovery);
+
+        if (mode == DurabilityMode.FSYNC) {
+            log.flusher = new Thread(log::runFlusher, "wal-flusher-" + path.getFileName());
+            log.flusher.setDaemon(true);
+            log.flusher.start();
+        }
+        return log;
+    }
+
+    /**
+     * Opens a log kept in memory and replays the records it already holds. It behaves like a
+     * MAPPED log whose file is the entry for `path` in `memory`: the records outlive the log, so
+     * a log opened again under the same path after a restart recovers them.
+     *
+     * @param path     The name of the log, used as the key in `memory`.
+     * @param memory   The contents of the in-memory logs by path; entries are created and replaced
+     *                 as the log grows or is compacted.
+     * @param recovery Receives every record found in the log before this method returns.
+     * @return         The opened log, positioned after the last valid record.
+     */
+    public static WriteAheadLog openInMemory(Path path, Map<Path, ByteBuffer> memory, RecordHandler recovery) {
+        WriteAheadLog log = new WriteAheadLog(path, DurabilityMode.MAPPED, null, memory);
+        log.buffer = memory.computeIfAbsent(path, name -> ByteBuffer.allocate(INITIAL_MEMORY_CAPACITY));
+        log.replay(recovery);
+        return log;
+    }
+
+    /**
+     * Sets the size past which `needsCompaction` asks for a compaction.
+     *
+     * @param bytes The threshold in bytes.
+     *
+     * Defaults to the "paxos.wal.compact.kb" system property.
+     */
+    public void setCompactionThreshold(long bytes) {
+        lock.lock();
+        try {
+            compactBytes = Math.max(1, bytes);
+            compactAt = compactBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends one record.
+     *
+     * @param type   The kind of state change.
+     * @param fields The values of the record.
+     * @return       A future that completes once the record is durable; callers must not send
+     *               the reply that depends on the record before then. It fails with an
+     *               IOException if the log is full and cannot be extended, or is closed because
+     *               its node stopped, in which case the reply is never sent, as if the request
+     *               had been lost.
+     */
+    public CompletableFuture<Void> append(WalRecordType type, int... fields) {
+        if (mode == DurabilityMode.NONE) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        int length = RECORD_OVERHEAD + 4 * fields.length;
+        lock.lock();
+        try {
+            if (closed) {
+                return CompletableFuture.failedFuture(new IOException("Write-ahead log " + path + " is closed"));
+            }
+            try {
+                ensureCapacity((long) writePosition + LENGTH_SIZE + length + LENGTH_SIZE);
+            } catch (IOException e) {
+                AsyncLogger.info("Write-ahead log " + path + " rejected a record: " + e.getMessage());
+                return CompletableFuture.failedFuture(e);
+            }
+            writePosition = put(buffer, writePosition, type, fields);
+
+            if (mode == DurabilityMode.MAPPED) {
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> durable = new CompletableFuture<>();
+            awaitingForce.add(durable);
+            flushNeeded.signal();
+            return durable;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many times the log has been forced to disk; with group commit this is
+     * usually far less than the number of records appended in FSYNC mode.
+     */
+    public long forces() {
+        lock.lock();
+        try {
+            return forces;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many times the log has been compacted.
+     */
+    public long compactions() {
+        lock.lock();
+        try {
+            return compactions;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns whether the log has grown past its compaction threshold.
+     */
+    public boolean needsCompaction() {
+        if (mode == DurabilityMode.NONE) {
+            return false;
+        }
+        lock.lock();
+        try {
+            return !closed && writePosition >= compactAt;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the log with a snapshot of its owner's state. The caller must hold every lock
+     * under which records are appended, so that the snapshot covers every record appended so far;
+     * appends that were waiting for a force complete once the snapshot is durable.
+     *
+     * The snapshot is written to a sibling file, made durable as the log's mode requires and then
+     * renamed over the log, so a crash at any point leaves a complete log behind. If the snapshot
+     * is still large, the next compaction waits until the log has doubled again.
+     *
+     * @param snapshot Writes the records that rebuild the current state.
+     * @throws IOException If the snapshot cannot be written; the log is then left unchanged.
+     */
+    public void compact(SnapshotWriter snapshot) throws IOException {
+        if (mode == DurabilityMode.NONE) {
+            return;
+        }
+        List<WalRecordType> types = new ArrayList<>();
+        List<int[]> records = new ArrayList<>();
+        long size = LENGTH_SIZE;
+        snapshot.write((type, fields) -> {
+            types.add(type);
+            records.add(fields.clone());
+        });
+        for (int[] fields : records) {
+            size += LENGTH_SIZE + RECORD_OVERHEAD + 4L * fields.length;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Snapshot of " + path + " does not fit in one log");
+        }
+
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            if (memory != null) {
+                ByteBuffer next = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE, Math.max(INITIAL_MEMORY_CAPACITY, 2 * size)));
+                int position = 0;
+                for (int i = 0; i < records.size(); i++) {
+                    position = put(next, position, types.get(i), records.get(i));
+                }
+                memory.put(path, next);
+                replaced(next, position);
+                return;
+            }
+            Path next = path.resolveSibling(path.getFileName() + ".compact");
+            Files.deleteIfExists(next);
+            FileChannel nextChannel = FileChannel.open(next,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer nextBuffer;
+            int position = 0;
+            try {
+                nextBuffer = nextChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(Integer.MAX_VALUE, Math.max(INITIAL_CAPACITY, 2 * size)));
+                for (int i = 0; i < records.size(); i++) {
+                    position = put(nextBuffer, position, types.get(i), records.get(i));
+                }
+                if (mode == DurabilityMode.FSYNC) {
+                    nextBuffer.force();
+                    nextChannel.force(true);
+                }
+                Files.move(next, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException | RuntimeException e) {
+                nextChannel.close();
+                Files.deleteIfExists(next);
+                throw e;
+            }
+
+            channel.close();
+            channel = nextChannel;
+            replaced(nextBuffer, position);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Switches to the buffer a compaction has written, which ends at `position`. Called with the lock held.
+     */
+    private void replaced(ByteBuffer next, int position) {
+        buffer = next;
+        writePosition = position;
+        forcedPosition = position;
+        generation++;
+        compactions++;
+        compactAt = Math.max(compactBytes, 2L * position);
+        for (CompletableFuture<Void> durable : awaitingForce) {
+            durable.complete(null);
+        }
+        awaitingForce.clear();
+    }
+
+    /**
+     * Returns the file backing this log.
+     */
+    public Path path() {
+        return path;
+    }
+
+    /**
+     * Completes every outstanding append, forces the log and closes its file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mode == DurabilityMode.NONE) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            flushNeeded.signal();
+            if (memory != null) {
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (flusher != null) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        ((MappedByteBuffer) buffer).force();
+        channel.close();
+    }
+
+    private void replay(RecordHandler recovery) {
+        int position = 0;
+        while (position + LENGTH_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            int fieldBytes = length - RECORD_OVERHEAD;
+            if (length < RECORD_OVERHEAD || fieldBytes % 4 != 0
+                    || position + LENGTH_SIZE + length > buffer.capacity()) {
+                break;
+            }
+            int body = position + LENGTH_SIZE;
+            if (checksumOf(body, 1 + fieldBytes) != buffer.getInt(body + 1 + fieldBytes)) {
+                break; // Torn or corrupt record: everything from here on is discarded
+            }
+            WalRecordType type = WalRecordType.fromCode(buffer.get(body));
+            if (type == null) {
+                break;
+            }
+            int[] fields = new int[fieldBytes / 4];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = buffer.getInt(body + 1 + 4 * i);
+            }
+            recovery.onRecord(type, fields);
+            position = body + length;
+        }
+        writePosition = position;
+        forcedPosition = position;
+    }
+
+    /**
+     * Writes one record at `start` followed by the end marker, and returns where the record ends.
+     */
+    private int put(ByteBuffer target, int start, WalRecordType type, int[] fields) {
+        int length = RECORD_OVERHEAD + 4 * fields.length;
+        target.position(start + LENGTH_SIZE);
+        target.put(type.code());
+        for (int field : fields) {
+            target.putInt(field);
+        }
+        target.putInt(checksumOf(target, start + LENGTH_SIZE, 1 + 4 * fields.length));
+        target.putInt(0); // end marker, overwritten by the next record
+        // The length goes in last, so a record torn by a crash is never mistaken for a complete one
+        target.putInt(start, length);
+        return start + LENGTH_SIZE + length;
+    }
+
+    private int checksumOf(int offset, int length) {
+        return checksumOf(buffer, offset, length);
+    }
+
+    private int checksumOf(ByteBuffer source, int offset, int length) {
+        ByteBuffer region = source.duplicate();
+        region.limit(offset + length).position(offset);
+        checksum.reset();
+        checksum.update(region);
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * Remaps the file with at least the requested capacity. Called with the lock held.
+     *
+     * @throws IOException If the file cannot be remapped or would exceed the 2 GiB a mapping can hold.
+     */
+    private void ensureCapacity(long required) throws IOException {
+        if (required <= buffer.capacity()) {
+            return;
+        }
+        long capacity = buffer.capacity();
+        while (capacity < required) {
+            capacity *= 2;
+        }
+        capacity = Math.min(capacity, Integer.MAX_VALUE);
+        if (capacity < required) {
+            throw new IOException("Write-ahead log " + path + " is full");
+        }
+        if (memory != null) {
+            ByteBuffer grown = ByteBuffer.allocate((int) capacity);
+            grown.put(buffer.duplicate().clear());
+            memory.put(path, grown);
+            buffer = grown;
+            return;
+        }
+        // Everything written through the old mapping must reach disk before records move to the new one
+        ((MappedByteBuffer) buffer).force();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        if (mode == DurabilityMode.FSYNC) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Forces everything appended so far and then completes the appends it covered, until the
+     * log is closed and no append is left waiting.
+     */
+    private void runFlusher() {
+        List<CompletableFuture<Void>> group = new ArrayList<>();
+        while (true) {
+            MappedByteBuffer target;
+            int from;
+            int to;
+            long forcing;
+            lock.lock();
+            try {
+                while (awaitingForce.isEmpty() && !closed) {
+                    flushNeeded.awaitUninterruptibly();
+                }
+                if (awaitingForce.isEmpty()) {
+                    return;
+                }
+                group.addAll(awaitingForce);
+                awaitingForce.clear();
+                target = (MappedByteBuffer) buffer;
+                from = forcedPosition;
+                to = writePosition;
+                forcing = generation;
+            } finally {
+                lock.unlock();
+            }
+
+            // Appends arriving during the force wait for the next one, forming the next group
+            target.force(from, to - from);
+
+            lock.lock();
+            try {
+                if (forcing == generation) {
+                    forcedPosition = to;
+                }
+                forces++;
+            } finally {
+                lock.unlock();
+            }
+            for (CompletableFuture<Void> durable : group) {
+                durable.complete(null);
+            }
+            group.clear();
+        }
+    }
+}
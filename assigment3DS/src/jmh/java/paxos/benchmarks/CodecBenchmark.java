@@ -0,0 +1,51 @@
+package paxos.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import paxos.MessageCodec;
+import paxos.MessageType;
+import paxos.PaxosMessage;
+import paxos.WireFormat;
+
+/**
+ * Encode and decode cost of a message in each wire format, as a send and the receiving listener
+ * pay it for every message: a promise, and an accept carrying a batch of 64 commands. Run with
+ * `-prof gc` to also see the bytes allocated per round trip.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class CodecBenchmark {
+    @Param({"BINARY", "TEXT"})
+    public WireFormat format;
+
+    @Param({"promise", "batch64"})
+    public String message;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.MAX_FRAME_SIZE);
+    private PaxosMessage sent;
+
+    @Setup
+    public void setUp() {
+        sent = message.equals("batch64")
+                ? new PaxosMessage(MessageType.LOG_ACCEPT, 1, 1025, 9, 0, 64, new int[64])
+                : PaxosMessage.of(MessageType.PROMISE, 7, 40);
+    }
+
+    /**
+     * Encodes the message into a reused frame buffer and decodes it again.
+     */
+    @Benchmark
+    public int roundTrip() throws IOException {
+        buffer.clear();
+        MessageCodec.encode(sent, format, buffer);
+        buffer.flip();
+        int length = buffer.getInt();
+        return MessageCodec.decode(buffer, length).value();
+    }
+}
@@ -0,0 +1,72 @@
+package paxos.benchmarks;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import paxos.AsyncLogger;
+import paxos.InMemoryNetwork;
+import paxos.LogLevel;
+import paxos.PaxosNode;
+import paxos.TcpTransport;
+import paxos.Transport;
+
+/**
+ * End-to-end latency of a single-decree election: proposal, promises from four acceptors and the
+ * quorum, run one after another over the in-process network or over loopback TCP, with node
+ * logging off or at DEBUG level. With logging on, the log goes to a temporary file so that the
+ * figures do not depend on the terminal.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class ElectionBenchmark {
+    private static final List<Integer> NODE_IDS = Arrays.asList(1, 2, 3, 4, 5);
+
+    @Param({"memory", "tcp"})
+    public String transport;
+
+    @Param({"OFF", "DEBUG"})
+    public LogLevel logging;
+
+    private final List<PaxosNode> nodes = new ArrayList<>();
+    private int nextValue = 1;
+
+    @Setup
+    public void setUp() throws IOException {
+        if (logging != LogLevel.OFF) {
+            File logFile = File.createTempFile("election-benchmark", ".log");
+            logFile.deleteOnExit();
+            AsyncLogger.setOutput(new PrintStream(new BufferedOutputStream(new FileOutputStream(logFile)), false));
+        }
+        AsyncLogger.setLevel(logging);
+        InMemoryNetwork network = new InMemoryNetwork();
+        Map<Integer, InetSocketAddress> addresses = new HashMap<>();
+        for (int nodeId : NODE_IDS) {
+            addresses.put(nodeId, new InetSocketAddress("localhost", 9100 + nodeId));
+        }
+        for (int nodeId : NODE_IDS) {
+            Transport nodeTransport = transport.equals("tcp") ? new TcpTransport(addresses) : network.newTransport();
+            PaxosNode node = new PaxosNode(nodeId, NODE_IDS, Collections.singleton(1), nodeTransport);
+            node.start();
+            nodes.add(node);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (PaxosNode node : nodes) {
+            node.stop();
+        }
+        AsyncLogger.flush();
+    }
+
+    @Benchmark
+    public int elect() throws Exception {
+        return nodes.get(0).proposeLeadership(nextValue++).get(10, TimeUnit.SECONDS);
+    }
+}
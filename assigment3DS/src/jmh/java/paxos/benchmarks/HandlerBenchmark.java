@@ -0,0 +1,182 @@
+package paxos.benchmarks;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.Consumer;
+import org.openjdk.jmh.annotations.*;
+import paxos.MessageType;
+import paxos.PaxosMessage;
+import paxos.PaxosNode;
+import paxos.Transport;
+
+/**
+ * Throughput of the acceptor's proposal handler and the proposer's promise handler, called by one
+ * thread and by four threads contending for the same node.
+ *
+ * Each operation hands one message to the node through its transport's receive callback, and the
+ * node runs the handler on the calling thread. The acceptor gets proposals with ever higher
+ * values, so every call takes the proposal lock and sends a promise. The proposer gets promises
+ * from eight acceptors, so every fifth promise of a value completes its quorum and declares a
+ * leader. Replies go nowhere.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class HandlerBenchmark {
+    private static final int ACCEPTORS = 8;
+
+    /** An acceptor, node 2, of a cluster whose only proposer is node 1. */
+    @State(Scope.Benchmark)
+    public static class Acceptor {
+        final AtomicInteger nextValue = new AtomicInteger();
+        final DiscardTransport transport = new DiscardTransport();
+        PaxosNode node;
+
+        @Setup
+        public void setUp() throws IOException {
+            node = new PaxosNode(2, Arrays.asList(1, 2), Collections.singleton(1), transport);
+            node.setExecutor(new CallerRunsExecutor());
+            node.start();
+        }
+
+        @TearDown
+        public void tearDown() {
+            node.stop();
+        }
+    }
+
+    /** The proposer, node 1, of a cluster with eight acceptors. */
+    @State(Scope.Benchmark)
+    public static class Proposer {
+        final AtomicLong nextPromise = new AtomicLong();
+        final DiscardTransport transport = new DiscardTransport();
+        PaxosNode node;
+
+        @Setup
+        public void setUp() throws IOException {
+            List<Integer> nodeIds = new ArrayList<>();
+            for (int id = 1; id <= ACCEPTORS + 1; id++) {
+                nodeIds.add(id);
+            }
+            node = new PaxosNode(1, nodeIds, Collections.singleton(1), transport);
+            node.setExecutor(new CallerRunsExecutor());
+            node.start();
+        }
+
+        @TearDown
+        public void tearDown() {
+            node.stop();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int handleProposal(Acceptor acceptor) {
+        return propose(acceptor);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int handleProposalFourThreads(Acceptor acceptor) {
+        return propose(acceptor);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long handlePromise(Proposer proposer) {
+        return promise(proposer);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long handlePromiseFourThreads(Proposer proposer) {
+        return promise(proposer);
+    }
+
+    private static int propose(Acceptor acceptor) {
+        int value = acceptor.nextValue.incrementAndGet();
+        acceptor.transport.receive(PaxosMessage.of(MessageType.PROPOSE, 1, value));
+        return value;
+    }
+
+    private static long promise(Proposer proposer) {
+        long promise = proposer.nextPromise.getAndIncrement();
+        int acceptorId = (int) (promise % ACCEPTORS) + 2;
+        proposer.transport.receive(PaxosMessage.of(MessageType.PROMISE, acceptorId, (int) (promise / ACCEPTORS) + 1));
+        return promise;
+    }
+
+    /**
+     * A transport that accepts every message and delivers none, and lets the benchmark hand
+     * messages to the node it was started for.
+     */
+    static final class DiscardTransport implements Transport {
+        private volatile Consumer<PaxosMessage> inbound;
+
+        void receive(PaxosMessage message) {
+            inbound.accept(message);
+        }
+
+        @Override
+        public void start(int nodeId, Executor executor, Consumer<PaxosMessage> inbound) {
+            this.inbound = inbound;
+        }
+
+        @Override
+        public CompletableFuture<Void> send(int targetNodeId, PaxosMessage message) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public String describe() {
+            return "nowhere";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Runs every handler on the thread that delivered its message, so the benchmark threads
+     * contend for the node's locks themselves.
+     */
+    static final class CallerRunsExecutor extends AbstractExecutorService {
+        private volatile boolean shutdown;
+
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown = true;
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return shutdown;
+        }
+    }
+}
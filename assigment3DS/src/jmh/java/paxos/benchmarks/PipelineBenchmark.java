@@ -0,0 +1,80 @@
+package paxos.benchmarks;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import paxos.InMemoryNetwork;
+import paxos.MultiPaxos;
+import paxos.NetworkSimulator;
+import paxos.PaxosNode;
+
+/**
+ * Replicated-log throughput, in decided commands per second, for combinations of batch size and
+ * pipeline window. A leader and three acceptors run on the in-process network, where every message
+ * takes `latencyMs` to arrive; each operation submits 1000 commands at once and waits until all
+ * of them are decided.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class PipelineBenchmark {
+    private static final int COMMANDS = 1000;
+    private static final long BATCH_DELAY_MICROS = 200;
+    private static final List<Integer> NODE_IDS = Arrays.asList(1, 2, 3, 4);
+
+    @Param({"1", "8", "64"})
+    public int batchSize;
+
+    @Param({"1", "8", "64"})
+    public int window;
+
+    @Param({"1"})
+    public int latencyMs;
+
+    private final List<PaxosNode> nodes = new ArrayList<>();
+    private MultiPaxos log;
+    private int nextCommand = 0;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        for (int nodeId : NODE_IDS) {
+            NetworkSimulator.setNodeLatency(nodeId, latencyMs);
+        }
+        InMemoryNetwork network = new InMemoryNetwork();
+        Set<Integer> proposerIds = Collections.singleton(1);
+        for (int nodeId : NODE_IDS) {
+            PaxosNode node = new PaxosNode(nodeId, NODE_IDS, proposerIds, network.newTransport());
+            node.start();
+            nodes.add(node);
+        }
+        log = nodes.get(0).replicatedLog();
+        log.setBatching(batchSize, BATCH_DELAY_MICROS);
+        log.setPipelineWindow(window);
+        log.becomeLeader();
+        while (!log.isLeader()) {
+            Thread.sleep(1);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (PaxosNode node : nodes) {
+            node.stop();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COMMANDS)
+    public int decide() throws Exception {
+        CompletableFuture<?>[] decided = new CompletableFuture<?>[COMMANDS];
+        for (int i = 0; i < COMMANDS; i++) {
+            decided[i] = log.submit(nextCommand++);
+        }
+        CompletableFuture.allOf(decided).get(5, TimeUnit.MINUTES);
+        return log.appliedThrough();
+    }
+}
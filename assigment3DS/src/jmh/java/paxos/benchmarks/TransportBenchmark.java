@@ -0,0 +1,88 @@
+package paxos.benchmarks;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.*;
+import paxos.MessageType;
+import paxos.NetworkSimulator;
+import paxos.NioMessageListener;
+import paxos.PaxosMessage;
+import paxos.PeerConnectionManager;
+import paxos.WireFormat;
+
+/**
+ * The cost of getting messages to a peer.
+ *
+ * tcpBurst sends bursts of 64 promises to one peer over loopback TCP and waits until the peer's
+ * NIO listener has decoded all of them, written one frame per message (coalesceMicros 0) or
+ * coalesced into bundles. simulatorSend measures what NetworkSimulator adds to a send without
+ * simulated latency, and directSend the same delivery run directly.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class TransportBenchmark {
+    private static final int BURST = 64;
+    private static final InetSocketAddress PEER = new InetSocketAddress("localhost", 9120);
+
+    /** A peer listening on loopback TCP, and the connection to it. */
+    @State(Scope.Benchmark)
+    public static class Burst {
+        @Param({"0", "50"})
+        public long coalesceMicros;
+
+        final AtomicLong received = new AtomicLong();
+        final PaxosMessage promise = PaxosMessage.of(MessageType.PROMISE, 7, 40);
+        NioMessageListener listener;
+        PeerConnectionManager connections;
+        long sent = 0;
+
+        @Setup
+        public void setUp() throws IOException {
+            listener = new NioMessageListener(PEER.getPort(), message -> received.incrementAndGet(), 1);
+            listener.start();
+            connections = new PeerConnectionManager(WireFormat.BINARY, coalesceMicros, 16384);
+        }
+
+        @TearDown
+        public void tearDown() {
+            connections.closeAll();
+            listener.close();
+        }
+    }
+
+    /** A delivery that does nothing, run on the sending thread. */
+    @State(Scope.Benchmark)
+    public static class Delivery {
+        final Executor direct = Runnable::run;
+        final Runnable delivery = () -> { };
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long tcpBurst(Burst burst) {
+        for (int i = 0; i < BURST; i++) {
+            burst.connections.send(PEER, burst.promise);
+        }
+        burst.sent += BURST;
+        while (burst.received.get() < burst.sent) {
+            Thread.onSpinWait();
+        }
+        return burst.sent;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean simulatorSend(Delivery delivery) {
+        return NetworkSimulator.deliver(1, 2, delivery.direct, delivery.delivery).isDone();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean directSend(Delivery delivery) {
+        return CompletableFuture.runAsync(delivery.delivery, delivery.direct).isDone();
+    }
+}